@@ -0,0 +1,309 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The AdaptiveConcurrency sets how many operations of a bulk push, pull or
+ * delete run at once, by additive increase and multiplicative decrease. The
+ * limit is judged once per window, which lasts at least a second and until
+ * as many operations finished as the limit allows, i.e. one round trip of
+ * the workers. The limit rises by one after a window that kept every slot
+ * busy and moved more than the window before, and falls by half when S3
+ * throttled a request, or by a quarter when the latency per byte (or key)
+ * of a window doubled over the best seen lately. Latency is measured per
+ * unit of work, so a window with one large file among small ones is not a
+ * spike, and the best seen drifts up a little every window it is not met,
+ * so one fast window does not hold the limit down for good. At most one
+ * decrease is made per window, so a burst of 503s does not collapse the
+ * limit.
+ */
+public class AdaptiveConcurrency {
+
+    /** The shortest window, in nanoseconds. */
+    static final long WINDOW_NANOS = 1000000000L;
+
+    /** The goodput rise, as a fraction, that counts as an improvement. */
+    static final double GAIN = 0.05;
+
+    /** The factor the limit is cut by on a throttle. */
+    static final double THROTTLE_CUT = 0.5;
+
+    /** The factor the limit is cut by on a latency spike. */
+    static final double LATENCY_CUT = 0.75;
+
+    /** The latency per unit, over the baseline, that counts as a spike. */
+    static final double SPIKE = 2.0;
+
+    /** The fraction the baseline rises by in a window that did not meet it. */
+    static final double DRIFT = 0.1;
+
+    /** The flat windows after which one more slot is tried anyway. */
+    static final int PROBE_WINDOWS = 5;
+
+    /** The fewest operations at once. */
+    final int min;
+
+    /** The most operations at once. */
+    final int max;
+
+    /** The unit the goodput is reported in, e.g. "MB/s". */
+    final String unit;
+
+    /** The amount of work in one unit, e.g. 1048576 bytes. */
+    final double scale;
+
+    /** The throttled S3 calls, counted by whoever sees them fail. */
+    final AtomicLong throttleCount;
+
+    /** The throttle count already acted on. */
+    long throttlesSeen;
+
+    /** The current limit. Fractional, so cuts compound. */
+    double limit;
+
+    /** The operations running. */
+    int active = 0;
+
+    /** The highest limit reached. */
+    int peak;
+
+    /** The time the controller was made. */
+    final long started = System.nanoTime();
+
+    /** The time the current window started. */
+    long windowStart = started;
+
+    /** The work finished in the current window. */
+    long windowWork = 0;
+
+    /** The operations finished in the current window. */
+    int windowOps = 0;
+
+    /** The summed latency of the current window, in nanoseconds. */
+    long windowLatency = 0;
+
+    /** The most operations running at once in the current window. */
+    int windowActive = 0;
+
+    /** The throttles seen in the current window. */
+    int windowThrottles = 0;
+
+    /** The goodput of the previous window, in work per second. */
+    double lastGoodput = 0;
+
+    /**
+     * The lowest latency per unit of work of recent windows, in nanoseconds.
+     */
+    double baseline = 0;
+
+    /** The windows since the limit last changed. */
+    int flatWindows = 0;
+
+    /** The time of the last decrease, 0 if none. */
+    long lastCut = 0;
+
+    /** The number of increases. */
+    int increases = 0;
+
+    /** The number of decreases on throttles. */
+    int throttleCuts = 0;
+
+    /** The number of decreases on latency spikes. */
+    int latencyCuts = 0;
+
+    /** The work finished overall. */
+    long totalWork = 0;
+
+    /**
+     * The constructor.
+     *
+     * @param minimum the fewest operations at once
+     * @param initial the operations at once to start with
+     * @param maximum the most operations at once
+     * @param throttles the throttled attempt counter to watch
+     * @param unitName the goodput unit, e.g. "MB/s"
+     * @param unitScale the work in one unit
+     */
+    public AdaptiveConcurrency(final int minimum, final int initial,
+            final int maximum, final AtomicLong throttles, 
+            final String unitName, final double unitScale) {
+        min = Math.max(1, minimum);
+        max = Math.max(min, maximum);
+        limit = Math.max(min, Math.min(max, initial));
+        peak = (int) limit;
+        throttleCount = throttles;
+        throttlesSeen = throttles.get();
+        unit = unitName;
+        scale = unitScale;
+    }
+
+    /**
+     * Waits for a free slot and takes it. An interrupt is kept for the
+     * caller to see once the slot is taken.
+     */
+    public synchronized void acquire() {
+        boolean interrupted = false;
+        checkThrottles(System.nanoTime());
+        while (active >= (int) limit) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        active++;
+        windowActive = Math.max(windowActive, active);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gives back a slot and accounts for the operation.
+     *
+     * @param work the bytes or keys moved
+     * @param nanos how long the operation took
+     * @param ok false if the operation failed
+     */
+    public synchronized void release(final long work, final long nanos,
+            final boolean ok) {
+        active--;
+        if (ok) {
+            windowWork += work;
+            totalWork += work;
+            windowOps++;
+            windowLatency += nanos;
+        }
+        final long now = System.nanoTime();
+        checkThrottles(now);
+        if (now - windowStart >= WINDOW_NANOS 
+                && windowOps >= (int) limit) {
+            adjust(now);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Counts a throttled S3 call, for callers that see the failure 
+     * themselves. The limit is cut on the next acquire or release.
+     */
+    public void throttled() {
+        throttleCount.incrementAndGet();
+    }
+
+    /**
+     * Cuts the limit if S3 throttled any attempt since the last look.
+     *
+     * @param now the time
+     */
+    void checkThrottles(final long now) {
+        final long seen = throttleCount.get();
+        if (seen == throttlesSeen) {
+            return;
+        }
+        windowThrottles += (int) (seen - throttlesSeen);
+        throttlesSeen = seen;
+        if (cut(THROTTLE_CUT, now)) {
+            throttleCuts++;
+        }
+    }
+
+    /**
+     * Ends a window: cuts on a latency spike, or raises the limit if every
+     * slot was busy and the goodput improved.
+     *
+     * @param now the time
+     */
+    void adjust(final long now) {
+        final double goodput = windowWork / ((now - windowStart) / 1e9);
+        final double latency = windowWork > 0 
+            ? (double) windowLatency / windowWork : 0;
+
+        if (windowWork > 0) {
+            baseline = (0 == baseline) ? latency 
+                : Math.min(latency, baseline * (1 + DRIFT));
+        }
+        if (0 == windowThrottles) {
+            if (latency > SPIKE * baseline) {
+                if (cut(LATENCY_CUT, now)) {
+                    latencyCuts++;
+                }
+            } else if (windowActive >= (int) limit && limit < max) {
+                if (goodput > lastGoodput * (1 + GAIN) 
+                        || ++flatWindows >= PROBE_WINDOWS) {
+                    limit = Math.min(max, limit + 1);
+                    peak = Math.max(peak, (int) limit);
+                    increases++;
+                    flatWindows = 0;
+                }
+            }
+        }
+
+        lastGoodput = goodput;
+        windowStart = now;
+        windowWork = 0;
+        windowOps = 0;
+        windowLatency = 0;
+        windowActive = active;
+        windowThrottles = 0;
+    }
+
+    /**
+     * Cuts the limit, unless it was already cut in the last window.
+     *
+     * @param factor the factor to cut by
+     * @param now the time
+     * @return true if the limit was cut
+     */
+    boolean cut(final double factor, final long now) {
+        if (0 != lastCut && now - lastCut < WINDOW_NANOS) {
+            return false;
+        }
+        limit = Math.max(min, limit * factor);
+        lastCut = now;
+        flatWindows = 0;
+        return true;
+    }
+
+    /**
+     * @return the operations allowed at once now
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the most operations allowed at once
+     */
+    public int getMax() {
+        return max;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final double secs = (System.nanoTime() - started) / 1e9;
+        return String.format("adaptive: %d of %d..%d at once, peak %d, "
+                + "%d raised, %d cut on throttles, %d cut on latency, "
+                + "goodput %.2f %s", (int) limit, min, max, peak, increases,
+                throttleCuts, latencyCuts, 
+                totalWork / scale / Math.max(secs, 1e-9), unit);
+    }
+}
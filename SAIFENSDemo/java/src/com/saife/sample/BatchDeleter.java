@@ -0,0 +1,226 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+
+/**
+ * The BatchDeleter removes keys from one bucket with DeleteObjects requests
+ * of up to 1000 keys each. Batches run concurrently on a shared pool, and
+ * only as many batches are pending as the AdaptiveConcurrency allows, so a
+ * caller can stream a listing of any size into it, and a bucket that answers
+ * with SlowDown gets fewer requests at once.
+ */
+public class BatchDeleter {
+
+    /** The most keys S3 accepts in one DeleteObjects request. */
+    public static final int MAX_BATCH = 1000;
+
+    /** The s3 handler. */
+    final AmazonS3 s3;
+
+    /** The bucket to delete from. */
+    final String bucket;
+
+    /** The index of the bucket, kept current as keys are deleted. */
+    final ObjectIndex index;
+
+    /** The pool the batches run on. */
+    final ExecutorService pool;
+
+    /** The controller that bounds the pending batches. */
+    final AdaptiveConcurrency control;
+
+    /** The pending batches. */
+    final List<Future<Integer>> pending = new Vector<Future<Integer>>();
+
+    /** The number of keys deleted. */
+    final AtomicInteger deleted = new AtomicInteger();
+
+    /** The number of keys that could not be deleted. */
+    final AtomicInteger failed = new AtomicInteger();
+
+    /** The keys deleted, null unless asked for with keepDeletedKeys. */
+    volatile List<String> deletedKeys = null;
+
+    /**
+     * The constructor.
+     *
+     * @param s3client the Amazon S3 handler
+     * @param bucketName the bucket to delete from
+     * @param bucketIndex the object index of the bucket
+     * @param deletePool the pool to run batches on
+     * @param concurrency the controller of the batches pending at once
+     */
+    public BatchDeleter(final AmazonS3 s3client, final String bucketName,
+            final ObjectIndex bucketIndex, final ExecutorService deletePool,
+            final AdaptiveConcurrency concurrency) {
+        s3 = s3client;
+        bucket = bucketName;
+        index = bucketIndex;
+        pool = deletePool;
+        control = concurrency;
+    }
+
+    /**
+     * Queues keys for deletion, split into batches. Blocks while as many
+     * batches are pending as the controller allows.
+     *
+     * @param keys the keys to delete
+     */
+    public void submit(final List<String> keys) {
+        for (int i = 0; i < keys.size(); i += MAX_BATCH) {
+            final List<String> batch = new ArrayList<String>(
+                    keys.subList(i, Math.min(keys.size(), i + MAX_BATCH)));
+            control.acquire();
+            pending.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    final long start = System.nanoTime();
+                    int done = 0;
+                    try {
+                        done = deleteBatch(batch);
+                        return done;
+                    } finally {
+                        control.release(done, System.nanoTime() - start, 
+                                done > 0);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Waits for every queued batch.
+     *
+     * @return the number of keys deleted
+     */
+    public int await() {
+        for (final Future<Integer> f : pending) {
+            try {
+                f.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (final ExecutionException e) {
+                System.out.println("Delete batch failed: " 
+                        + e.getCause().getMessage());
+            }
+        }
+        pending.clear();
+        return deleted.get();
+    }
+
+    /**
+     * Remembers the keys deleted, for callers that track them. Off by
+     * default, since a drained bucket may hold any number of keys. Must be
+     * called before the first submit.
+     */
+    public void keepDeletedKeys() {
+        deletedKeys = new Vector<String>();
+    }
+
+    /**
+     * @return the keys deleted so far, empty unless keepDeletedKeys was
+     * called
+     */
+    public List<String> getDeletedKeys() {
+        final List<String> keys = deletedKeys;
+        return (null == keys) ? new ArrayList<String>() 
+            : new ArrayList<String>(keys);
+    }
+
+    /**
+     * @return the controller of the batches pending at once
+     */
+    public AdaptiveConcurrency getConcurrency() {
+        return control;
+    }
+
+    /**
+     * @return the number of keys that could not be deleted
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Deletes one batch in a single quiet DeleteObjects request.
+     *
+     * @param keys at most MAX_BATCH keys
+     * @return the number of keys deleted
+     */
+    int deleteBatch(final List<String> keys) {
+        final List<KeyVersion> kvs = new ArrayList<KeyVersion>(keys.size());
+        for (final String key : keys) {
+            kvs.add(new KeyVersion(key));
+        }
+
+        int done = keys.size();
+        try {
+            s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(kvs)
+                    .withQuiet(true));
+        } catch (final MultiObjectDeleteException mode) {
+            boolean slowDown = false;
+            for (final DeleteError err : mode.getErrors()) {
+                slowDown |= "SlowDown".equals(err.getCode());
+                System.out.println("Failed to delete " + err.getKey() + ": "
+                        + err.getMessage());
+                keys.remove(err.getKey());
+            }
+            done = keys.size();
+            failed.addAndGet(mode.getErrors().size());
+            if (slowDown) {
+                control.throttled();
+            }
+        } catch (final AmazonClientException ace) {
+            if (RequestPolicy.isThrottle(ace)) {
+                control.throttled();
+            }
+            System.out.println("Failed to delete " + keys.size() 
+                    + " objects: " + ace.getMessage());
+            failed.addAndGet(keys.size());
+            return 0;
+        }
+
+        for (final String key : keys) {
+            index.remove(key);
+        }
+        final List<String> kept = deletedKeys;
+        if (null != kept) {
+            kept.addAll(keys);
+        }
+        deleted.addAndGet(done);
+        return done;
+    }
+}
@@ -0,0 +1,242 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.Bucket;
+
+/**
+ * The BucketDirectory caches the bucket names visible to this account in a
+ * sorted prefix trie. A share name typed by the user resolves in time
+ * proportional to its length, with no request to S3. The directory reloads
+ * in the background and whenever it is invalidated after a bucket is created
+ * or deleted.
+ */
+public class BucketDirectory {
+
+    /**
+     * The Node is one character position in the trie.
+     */
+    static class Node {
+
+        /** The children, sorted by character. */
+        final TreeMap<Character, Node> children = 
+            new TreeMap<Character, Node>();
+
+        /** The bucket whose name ends here, null if none. */
+        String bucket = null;
+
+        /** The number of buckets whose names start with this prefix. */
+        int count = 0;
+
+        /** A bucket whose name starts with this prefix. */
+        String any = null;
+    }
+
+    /** The s3 handler. */
+    final AmazonS3 s3;
+
+    /** The time to live of a load, in milliseconds. */
+    final long ttl;
+
+    /** The trie root, replaced whole on every load. */
+    volatile Node root = new Node();
+
+    /** The time of the last load, 0 if it must reload. */
+    volatile long loadedAt = 0;
+
+    /** The refresher reloads the directory in the background. */
+    ScheduledExecutorService refresher = null;
+
+    /**
+     * The constructor.
+     *
+     * @param s3client the Amazon S3 handler
+     * @param ttlMillis how long a load stays valid
+     */
+    public BucketDirectory(final AmazonS3 s3client, final long ttlMillis) {
+        s3 = s3client;
+        ttl = ttlMillis;
+    }
+
+    /**
+     * Reloads the bucket names from S3 every ttl milliseconds on a daemon
+     * thread.
+     */
+    public synchronized void startBackgroundRefresh() {
+        if (null != refresher) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("bucket-refresh"));
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, ttl, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reloads the bucket names from S3. On failure the previous names are
+     * kept.
+     *
+     * @return true if the reload worked
+     */
+    public synchronized boolean refresh() {
+        final List<String> names = new Vector<String>();
+        try {
+            for (final Bucket bucket : s3.listBuckets()) {
+                names.add(bucket.getName());
+            }
+        } catch (final AmazonClientException ace) {
+            System.out.println("Failed to refresh bucket names: " 
+                    + ace.getMessage());
+            return false;
+        }
+        root = build(names);
+        loadedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Marks the directory for a reload on its next use. Call after a bucket
+     * is created or deleted.
+     */
+    public void invalidate() {
+        loadedAt = 0;
+    }
+
+    /**
+     * @param name a full bucket name
+     * @return true if the bucket exists
+     */
+    public boolean contains(final String name) {
+        final Node n = find(name);
+        return null != n && name.equals(n.bucket);
+    }
+
+    /**
+     * @param prefix the start of a bucket name
+     * @return the number of buckets whose names start with the prefix
+     */
+    public int count(final String prefix) {
+        final Node n = find(prefix);
+        return (null == n) ? 0 : n.count;
+    }
+
+    /**
+     * Resolves a share name. An exact bucket name always wins; otherwise the
+     * prefix must be unique.
+     *
+     * @param prefix the start of a bucket name
+     * @return the full bucket name, null if none or more than one match
+     */
+    public String resolve(final String prefix) {
+        final Node n = find(prefix);
+        if (null == n) {
+            return null;
+        }
+        if (null != n.bucket) {
+            return n.bucket;
+        }
+        return (1 == n.count) ? n.any : null;
+    }
+
+    /**
+     * @return every bucket name, in sorted order
+     */
+    public List<String> names() {
+        final List<String> names = new Vector<String>();
+        collect(current(), names);
+        return names;
+    }
+
+    /**
+     * Walks the trie along a prefix.
+     *
+     * @param prefix the prefix
+     * @return the node for the prefix, null if no name starts with it
+     */
+    Node find(final String prefix) {
+        Node n = current();
+        for (int i = 0; i < prefix.length() && null != n; i++) {
+            n = n.children.get(prefix.charAt(i));
+        }
+        return n;
+    }
+
+    /**
+     * @return the trie root, reloading first if it has expired
+     */
+    Node current() {
+        if (0 == loadedAt || System.currentTimeMillis() - loadedAt > ttl) {
+            refresh();
+        }
+        return root;
+    }
+
+    /**
+     * @param names the bucket names
+     * @return a new trie holding the names
+     */
+    static Node build(final List<String> names) {
+        final Node top = new Node();
+        for (final String name : names) {
+            Node n = top;
+            n.count++;
+            n.any = name;
+            for (int i = 0; i < name.length(); i++) {
+                Node next = n.children.get(name.charAt(i));
+                if (null == next) {
+                    next = new Node();
+                    n.children.put(name.charAt(i), next);
+                }
+                n = next;
+                n.count++;
+                n.any = name;
+            }
+            n.bucket = name;
+        }
+        return top;
+    }
+
+    /**
+     * Adds every name under a node to a list, in sorted order.
+     *
+     * @param n the node
+     * @param names the list
+     */
+    static void collect(final Node n, final List<String> names) {
+        if (null != n.bucket) {
+            names.add(n.bucket);
+        }
+        for (final Node child : n.children.values()) {
+            collect(child, names);
+        }
+    }
+}
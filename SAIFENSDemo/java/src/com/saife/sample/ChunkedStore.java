@@ -0,0 +1,567 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The ChunkedStore keeps a file as one object made of fixed-size plain text
+ * chunks, each encrypted on its own, followed by an encrypted index of the
+ * chunks and an 8-byte trailer holding the offset of the index:
+ *
+ * <pre>
+ * [chunk 0][chunk 1]...[chunk n-1][index][index offset, 8 bytes]
+ * </pre>
+ *
+ * A read of any range then needs only the index and the chunks covering
+ * the range, fetched with S3 range GETs. Indexes are cached by ETag, and a
+ * read sends the cached ETag as an If-Match constraint, so a cached index
+ * costs no extra round trip and a replaced object is noticed.
+ */
+public class ChunkedStore {
+
+    /** The layout recorded in the object's user metadata. */
+    public static final String LAYOUT = "chunked";
+
+    /** The default plain text chunk size. */
+    public static final int DEFAULT_CHUNK = 1024 * 1024;
+
+    /** The size of the trailer. */
+    static final int TRAILER = 8;
+
+    /** The most ciphertext fetched in one range GET, at least one chunk. */
+    static final int BYTES_PER_GET = 8 * 1024 * 1024;
+
+    /** The number of indexes cached. */
+    static final int INDEX_CACHE = 64;
+
+    /**
+     * The Chunk locates one encrypted chunk in the object.
+     */
+    static class Chunk {
+
+        /** The offset of the ciphertext in the object. */
+        long offset;
+
+        /** The ciphertext length. */
+        int length;
+
+        /** The plain text length. */
+        int plainLength;
+    }
+
+    /**
+     * The Index lists the chunks of an object.
+     */
+    static class Index {
+
+        /** The format version. */
+        int version = 1;
+
+        /** The plain text chunk size; every chunk but the last is full. */
+        int chunkSize;
+
+        /** The plain text size of the file. */
+        long size;
+
+        /** The chunks, in order. */
+        List<Chunk> chunks = new ArrayList<Chunk>();
+
+        /** The ETag of the object, not stored. */
+        transient String etag;
+    }
+
+    /** The S3 manager. */
+    final S3Manager s3m;
+
+    /** The plain text chunk size for uploads. */
+    final int chunkSize;
+
+    /** The cached indexes, by bucket and key, least recently used first. */
+    final Map<String, Index> indexes = Collections.synchronizedMap(
+            new LinkedHashMap<String, Index>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, Index> eldest) {
+                    return size() > INDEX_CACHE;
+                }
+            });
+
+    /**
+     * The constructor.
+     *
+     * @param manager the S3 manager
+     * @param plainChunkSize the plain text chunk size for uploads
+     */
+    public ChunkedStore(final S3Manager manager, final int plainChunkSize) {
+        s3m = manager;
+        chunkSize = plainChunkSize;
+    }
+
+    /**
+     * Uploads a stream in the chunked layout. The object is written through
+     * an S3OutputStream, so large files go out as multipart uploads.
+     *
+     * @param in the content, left open
+     * @param key the object key
+     * @return true if the upload worked
+     */
+    public boolean upload(final InputStream in, final String key) {
+        final SaifeManager.S3OutputStream s3os = 
+            s3m.getSaife().getNewS3Stream(key);
+        s3os.setUserMetadata(StoredObject.LAYOUT, LAYOUT);
+
+        final Index index = new Index();
+        index.chunkSize = chunkSize;
+        long offset = 0;
+        try {
+            final byte[] plain = new byte[chunkSize];
+            int len;
+            while ((len = S3Manager.readFully(in, plain)) > 0) {
+                final byte[] cipher = encrypt(plain, len);
+                s3os.write(cipher);
+                final Chunk c = new Chunk();
+                c.offset = offset;
+                c.length = cipher.length;
+                c.plainLength = len;
+                index.chunks.add(c);
+                index.size += len;
+                offset += cipher.length;
+            }
+
+            final byte[] json = new Gson().toJson(index)
+                .getBytes(StandardCharsets.UTF_8);
+            s3os.write(encrypt(json, json.length));
+            s3os.write(ByteBuffer.allocate(TRAILER).putLong(offset).array());
+            s3os.close();
+        } catch (final IOException e) {
+            System.out.println("Failed to upload " + key + ": " 
+                    + e.getMessage());
+            S3Manager.abortStore(s3os);
+            return false;
+        } catch (final AmazonClientException ace) {
+            System.out.println("Failed to upload " + key + ": " 
+                    + ace.getMessage());
+            S3Manager.abortStore(s3os);
+            return false;
+        }
+
+        System.out.format("chunked: %s %d chunks of %dB, %dB%n", key,
+                index.chunks.size(), chunkSize, index.size);
+        return true;
+    }
+
+    /**
+     * Reads a range of a file.
+     *
+     * @param key the object key
+     * @param offset the offset in the plain text
+     * @param length the number of bytes
+     * @return the bytes, fewer if the file ends first
+     * @throws IOException if the read fails
+     */
+    public byte[] read(final String key, final long offset, final int length)
+            throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                Math.max(0, length));
+        read(key, offset, length, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reads a range of a file into a stream. Chunks are fetched a few at a
+     * time, so memory use does not depend on the length of the range. With
+     * a crypto pool, one run of chunks per pool thread is fetched and 
+     * decrypted ahead, concurrently, and written out in order. If the object
+     * is replaced before anything is written, the read starts over on the
+     * new version; after that it fails, rather than mix the two.
+     *
+     * @param key the object key
+     * @param offset the offset in the plain text
+     * @param length the number of bytes, negative for the rest of the file
+     * @param out the stream to write to
+     * @return the number of bytes written
+     * @throws IOException if the read fails, or the object changed after
+     * part of it was written
+     */
+    public long read(final String key, final long offset, final long length,
+            final OutputStream out) throws IOException {
+        final ForkJoinPool pool = s3m.getCryptoPool();
+        final int depth = (null == pool) ? 1 : pool.getParallelism();
+        final Deque<Future<List<byte[]>>> ahead = 
+            new ArrayDeque<Future<List<byte[]>>>();
+        Index index = getIndex(key);
+        long end = end(index, offset, length);
+        long pos = Math.max(0, offset);
+        long next = pos;
+        try {
+            while (pos < end) {
+                final int perGet = Math.max(1, 
+                        BYTES_PER_GET / index.chunkSize);
+                while (next < end && ahead.size() < depth) {
+                    final int a = (int) (next / index.chunkSize);
+                    final int b = (int) Math.min((end - 1) / index.chunkSize,
+                            a + perGet - 1);
+                    ahead.add(submit(pool, key, index, a, b));
+                    next = (long) (b + 1) * index.chunkSize;
+                }
+
+                final int first = (int) (pos / index.chunkSize);
+                final List<byte[]> plain = await(ahead.poll());
+                if (null == plain) {
+                    // replaced since the index was cached; start over on 
+                    // the new version, unless the old one was partly
+                    // written already
+                    cancel(ahead);
+                    indexes.remove(cacheKey(key));
+                    if (pos != Math.max(0, offset)) {
+                        throw new IOException(key + " changed while it was "
+                                + "being read");
+                    }
+                    index = getIndex(key);
+                    end = end(index, offset, length);
+                    next = pos;
+                    continue;
+                }
+                for (int i = 0; i < plain.size() && pos < end; i++) {
+                    final long chunkStart = 
+                        (long) (first + i) * index.chunkSize;
+                    final int from = (int) (pos - chunkStart);
+                    final int n = (int) Math.min(plain.get(i).length - from,
+                            end - pos);
+                    out.write(plain.get(i), from, n);
+                    pos += n;
+                }
+            }
+        } finally {
+            cancel(ahead);
+        }
+        return pos - Math.max(0, offset);
+    }
+
+    /**
+     * Starts fetching a run of chunks, on the pool if there is one, or 
+     * runs it now.
+     *
+     * @param pool the crypto pool, null to fetch on this thread
+     * @param key the object key
+     * @param index the index
+     * @param first the first chunk
+     * @param last the last chunk
+     * @return the pending plain text of the chunks
+     */
+    Future<List<byte[]>> submit(final ForkJoinPool pool, final String key,
+            final Index index, final int first, final int last) {
+        final Callable<List<byte[]>> call = new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws IOException {
+                return fetch(key, index, first, last);
+            }
+        };
+        if (null != pool) {
+            return pool.submit(call);
+        }
+        final FutureTask<List<byte[]>> task = 
+            new FutureTask<List<byte[]>>(call);
+        task.run();
+        return task;
+    }
+
+    /**
+     * Waits for a run of chunks.
+     *
+     * @param run the pending run
+     * @return the plain text of the chunks, null if the object has changed
+     * @throws IOException if the fetch failed or the wait is interrupted
+     */
+    static List<byte[]> await(final Future<List<byte[]>> run) 
+            throws IOException {
+        try {
+            return run.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading chunks");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Cancels the runs fetched ahead.
+     *
+     * @param ahead the pending runs
+     */
+    static void cancel(final Deque<Future<List<byte[]>>> ahead) {
+        for (final Future<List<byte[]>> run : ahead) {
+            run.cancel(true);
+        }
+        ahead.clear();
+    }
+
+    /**
+     * Returns the end of a range, clipped to the size of the file.
+     *
+     * @param index the index
+     * @param offset the offset in the plain text
+     * @param length the number of bytes, negative for the rest of the file
+     * @return the offset just past the range
+     */
+    static long end(final Index index, final long offset, final long length) {
+        return (length < 0) ? index.size 
+            : Math.min(index.size, offset + length);
+    }
+
+    /**
+     * Fetches and decrypts a run of chunks with one range GET.
+     *
+     * @param key the object key
+     * @param index the index
+     * @param first the first chunk
+     * @param last the last chunk
+     * @return the plain text of each chunk, null if the object has changed
+     * @throws IOException if the read fails
+     */
+    List<byte[]> fetch(final String key, final Index index, final int first,
+            final int last) throws IOException {
+        final Chunk a = index.chunks.get(first);
+        final Chunk b = index.chunks.get(last);
+        final byte[] cipher = getRange(key, a.offset, 
+                b.offset + b.length - 1, index.etag);
+        if (null == cipher) {
+            return null;
+        }
+
+        final List<byte[]> plain = new ArrayList<byte[]>(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            final Chunk c = index.chunks.get(i);
+            final byte[] p = decrypt(cipher, (int) (c.offset - a.offset), 
+                    c.length);
+            if (p.length != c.plainLength) {
+                throw new IOException("Chunk " + i + " of " + key 
+                        + " is corrupt");
+            }
+            plain.add(p);
+        }
+        return plain;
+    }
+
+    /**
+     * Returns the index of an object, from the cache or from the object.
+     *
+     * @param key the object key
+     * @return the index
+     * @throws IOException if the object is not chunked or can't be read
+     */
+    Index getIndex(final String key) throws IOException {
+        final Index cached = indexes.get(cacheKey(key));
+        if (null != cached) {
+            return cached;
+        }
+
+        final ObjectMetadata meta = head(key);
+        if (!LAYOUT.equals(meta.getUserMetadata().get(StoredObject.LAYOUT))) {
+            throw new IOException(key + " is not stored in the chunked "
+                    + "layout");
+        }
+        final String etag = meta.getETag();
+        final long size = meta.getContentLength();
+        final byte[] trailer = getRange(key, size - TRAILER, size - 1, etag);
+        if (null == trailer || trailer.length != TRAILER) {
+            throw new IOException(key + " changed while reading its index");
+        }
+        final long at = ByteBuffer.wrap(trailer).getLong();
+        final byte[] sealed = getRange(key, at, size - TRAILER - 1, etag);
+        if (null == sealed) {
+            throw new IOException(key + " changed while reading its index");
+        }
+
+        final Index index;
+        try {
+            index = new Gson().fromJson(new String(
+                        decrypt(sealed, 0, sealed.length), 
+                        StandardCharsets.UTF_8), Index.class);
+        } catch (final JsonParseException e) {
+            throw new IOException("Invalid chunk index in " + key, e);
+        }
+        if (null == index || null == index.chunks || index.chunkSize <= 0) {
+            throw new IOException("Invalid chunk index in " + key);
+        }
+        index.etag = etag;
+        indexes.put(cacheKey(key), index);
+        return index;
+    }
+
+    /**
+     * Fetches a byte range of an object.
+     *
+     * @param key the object key
+     * @param start the first byte
+     * @param end the last byte, inclusive
+     * @param etag the ETag the object must still have
+     * @return the bytes, null if the object no longer has the ETag
+     * @throws IOException if the read fails
+     */
+    byte[] getRange(final String key, final long start, final long end,
+            final String etag) throws IOException {
+        final GetObjectRequest req = new GetObjectRequest(s3m.getBucket(), 
+                key).withRange(start, end);
+        req.setMatchingETagConstraints(Collections.singletonList(etag));
+        final S3Object o = getObject(req);
+        if (null == o) {
+            return null;
+        }
+        final InputStream is = o.getObjectContent();
+        try {
+            final byte[] buf = new byte[(int) (end - start + 1)];
+            final int n = S3Manager.readFully(is, buf);
+            if (n != buf.length) {
+                throw new IOException("Short read of " + key);
+            }
+            return buf;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Fetches the metadata of an object with a HEAD request.
+     *
+     * @param key the object key
+     * @return the metadata
+     * @throws IOException if the request fails
+     */
+    ObjectMetadata head(final String key) throws IOException {
+        final Callable<ObjectMetadata> call = new Callable<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata call() {
+                return s3m.getS3Mgr().getObjectMetadata(s3m.getBucket(), key);
+            }
+        };
+        try {
+            final RequestPolicy policy = s3m.getRequestPolicy();
+            return (null == policy) ? call.call() 
+                : policy.execute("head", call);
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends a GET, through the request policy if there is one.
+     *
+     * @param req the request
+     * @return the object, null if a constraint was not met
+     * @throws IOException if the GET fails
+     */
+    S3Object getObject(final GetObjectRequest req) throws IOException {
+        try {
+            final RequestPolicy policy = s3m.getRequestPolicy();
+            return (null == policy) ? s3m.getS3Mgr().getObject(req)
+                : policy.getObject(req);
+        } catch (final AmazonClientException ace) {
+            throw new IOException(ace.getMessage(), ace);
+        }
+    }
+
+    /**
+     * Encrypts one chunk on its own.
+     *
+     * @param plain the plain text
+     * @param len the number of bytes to use
+     * @return the ciphertext
+     * @throws IOException if encryption fails
+     */
+    byte[] encrypt(final byte[] plain, final int len) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                len + 1024);
+        final OutputStream os = s3m.getSaife().openEncryptStream(bos);
+        os.write(plain, 0, len);
+        os.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decrypts one chunk.
+     *
+     * @param cipher the buffer holding the ciphertext
+     * @param off the offset of the chunk
+     * @param len the ciphertext length
+     * @return the plain text
+     * @throws IOException if decryption fails
+     */
+    byte[] decrypt(final byte[] cipher, final int off, final int len) 
+            throws IOException {
+        final InputStream is = s3m.getSaife().openDecryptStream(
+                new ByteArrayInputStream(cipher, off, len));
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                    Math.max(32, len));
+            final byte[] block = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(block)) > 0) {
+                bos.write(block, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @param key the object key
+     * @return the index cache key
+     */
+    String cacheKey(final String key) {
+        return s3m.getBucket() + "/" + key;
+    }
+}
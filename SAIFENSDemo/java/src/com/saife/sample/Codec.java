@@ -0,0 +1,57 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The Codec compresses plain text before it is encrypted, and restores it
+ * after decryption. Ciphertext does not compress, so this is the only point
+ * where compression helps. The codec name is recorded in the object's user
+ * metadata; see Codecs for the registry.
+ */
+public interface Codec {
+
+    /**
+     * @return the name recorded in object metadata
+     */
+    String getName();
+
+    /**
+     * Wraps a stream so what is written to it is compressed into out. 
+     * Closing the wrapper finishes the data and closes out.
+     *
+     * @param out the stream the compressed data goes to
+     * @return the stream to write plain text to
+     * @throws IOException if the stream can't be set up
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps a stream so compressed data written to it is restored into out.
+     * Closing the wrapper finishes the data and flushes out, but leaves it 
+     * open.
+     *
+     * @param out the stream the plain text goes to
+     * @return the stream to write compressed data to
+     * @throws IOException if the stream can't be set up
+     */
+    OutputStream decompress(OutputStream out) throws IOException;
+}
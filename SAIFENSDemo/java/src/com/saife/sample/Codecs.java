@@ -0,0 +1,158 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Codecs hold the registered compression codecs, and decide from a
+ * sample of the plain text whether compressing an object is worth it.
+ */
+public final class Codecs {
+
+    /** The size of the sample taken from the start of an object. */
+    public static final int SAMPLE_SIZE = 256 * 1024;
+
+    /** The largest sample ratio at which compression is still used. */
+    public static final double MAX_RATIO = 0.9;
+
+    /** The registered codecs, by name. */
+    static final Map<String, Codec> CODECS = 
+        new ConcurrentHashMap<String, Codec>();
+
+    static {
+        register(new DeflateCodec(1));
+    }
+
+    /**
+     * Not instantiated.
+     */
+    private Codecs() {
+    }
+
+    /**
+     * Registers a codec, replacing any with the same name.
+     *
+     * @param codec the codec
+     */
+    public static void register(final Codec codec) {
+        CODECS.put(codec.getName(), codec);
+    }
+
+    /**
+     * @param name a codec name
+     * @return the codec, null if none is registered under the name
+     */
+    public static Codec get(final String name) {
+        return (null == name) ? null : CODECS.get(name);
+    }
+
+    /**
+     * Compresses a sample to see how well the rest will compress.
+     *
+     * @param codec the codec
+     * @param sample the sample
+     * @param len the sample length
+     * @return compressed size over sample size, 1 for an empty sample
+     * @throws IOException if the codec fails
+     */
+    public static double sampleRatio(final Codec codec, final byte[] sample,
+            final int len) throws IOException {
+        if (len <= 0) {
+            return 1;
+        }
+        final Meter sink = new Meter(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int n) {
+            }
+        });
+        final OutputStream os = codec.compress(sink);
+        os.write(sample, 0, len);
+        os.close();
+        return (double) sink.bytes / len;
+    }
+
+    /**
+     * The Meter counts the bytes written through it and the time spent in
+     * the streams below it.
+     */
+    public static class Meter extends FilterOutputStream {
+
+        /** The bytes written. */
+        long bytes = 0;
+
+        /** The nanoseconds spent writing. */
+        long nanos = 0;
+
+        /**
+         * The constructor.
+         *
+         * @param out the stream to meter
+         */
+        public Meter(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            final long t = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - t;
+            bytes++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) 
+                throws IOException {
+            final long t = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - t;
+            bytes += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long t = System.nanoTime();
+            super.close();
+            nanos += System.nanoTime() - t;
+        }
+
+        /**
+         * @return the bytes written
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the nanoseconds spent in the streams below
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The DaemonThreadFactory names the worker threads used for S3 transfers and
+ * marks them as daemons, so an idle pool never keeps the ns-cli from exiting.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /** The prefix for every thread name made by this factory. */
+    final String prefix;
+
+    /** The count of threads created so far. */
+    final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * The constructor.
+     *
+     * @param name the thread name prefix
+     */
+    public DaemonThreadFactory(final String name) {
+        prefix = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        final Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,555 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The DedupStore uploads files as content-defined chunks, so content the
+ * share already holds is not sent again. Chunk boundaries are found on the
+ * plain text with a gear rolling hash, which keeps them stable when bytes
+ * are inserted or removed elsewhere in the file. Each new chunk is encrypted
+ * through the NetworkShare and stored under a keyed hash of its content.
+ * The file itself becomes a small encrypted manifest listing its chunks.
+ *
+ * Chunk keys are HMACs under a random salt kept encrypted in the share, so
+ * the key names in the bucket reveal nothing about the plain text.
+ */
+public class DedupStore {
+
+    /** The layout recorded in a manifest's user metadata. */
+    public static final String LAYOUT = "dedup";
+
+    /** The key prefix of dedup objects. */
+    static final String PREFIX = S3Manager.INTERNAL_PREFIX + "dedup/";
+
+    /** The key prefix of chunk objects. */
+    static final String CHUNK_PREFIX = PREFIX + "chunk/";
+
+    /** The key of the encrypted HMAC salt. */
+    static final String SALT_KEY = PREFIX + "salt";
+
+    /** The smallest chunk, except at the end of a file. */
+    static final int MIN_CHUNK = 256 * 1024;
+
+    /** The largest chunk. */
+    static final int MAX_CHUNK = 4 * 1024 * 1024;
+
+    /** The boundary mask, for an average chunk of about 1 MB. */
+    static final long MASK = (1L << 20) - 1;
+
+    /** The number of chunks uploaded or fetched at once. */
+    static final int WORKERS = 4;
+
+    /** The gear table. Fixed, so chunk boundaries are the same every run. */
+    static final long[] GEAR = new long[256];
+
+    static {
+        final Random r = new Random(0x5A1FE0DEDL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = r.nextLong();
+        }
+    }
+
+    /**
+     * The ChunkRef names one chunk of a file in a manifest.
+     */
+    static class ChunkRef {
+
+        /** The chunk id, the HMAC of its content. */
+        String id;
+
+        /** The SHA-256 of the content, checked on download. */
+        String sha256;
+
+        /** The plain text length. */
+        int length;
+    }
+
+    /**
+     * The Manifest lists the chunks of a file, in order.
+     */
+    static class Manifest {
+
+        /** The format version. */
+        int version = 1;
+
+        /** The plain text size of the file. */
+        long size;
+
+        /** The chunks. */
+        List<ChunkRef> chunks = new ArrayList<ChunkRef>();
+    }
+
+    /** The S3 manager. */
+    final S3Manager s3m;
+
+    /** The pool chunks are uploaded and fetched on. */
+    final ExecutorService pool = Executors.newFixedThreadPool(WORKERS,
+            new DaemonThreadFactory("s3-dedup"));
+
+    /** The HMAC salt of each bucket, loaded on first use. */
+    final Map<String, byte[]> salts = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * The constructor.
+     *
+     * @param manager the S3 manager
+     */
+    public DedupStore(final S3Manager manager) {
+        s3m = manager;
+    }
+
+    /**
+     * Uploads a file as chunks plus a manifest. Only chunks missing from the
+     * current share are sent.
+     *
+     * @param f the file
+     * @param key the object key of the manifest
+     * @return true if the upload worked
+     */
+    public boolean upload(final File f, final String key) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(f);
+            return upload(is, key);
+        } catch (final IOException e) {
+            System.out.println("Failed to locate or open file: " 
+                    + f.getName());
+            return false;
+        } finally {
+            try {
+                if (null != is) {
+                    is.close();
+                }
+            } catch (final IOException e) {}
+        }
+    }
+
+    /**
+     * Reserves a buffer from the memory budget. While there is no room, 
+     * waits for the oldest chunk still being written; with none left the
+     * buffer goes over the cap rather than wait on memory held elsewhere.
+     *
+     * @param n the bytes
+     * @param pending the chunks being written, oldest first
+     * @return the reservation
+     * @throws IOException if interrupted while waiting for room
+     * @throws InterruptedException if interrupted while waiting for a chunk
+     * @throws ExecutionException if a chunk failed
+     */
+    MemoryBudget.Reservation reserve(final int n, 
+            final List<Future<Void>> pending) 
+        throws IOException, InterruptedException, ExecutionException {
+        final MemoryBudget budget = MemoryBudget.global();
+        while (true) {
+            final MemoryBudget.Reservation r = 
+                budget.hold(n, budget.spillWait);
+            if (null != r) {
+                return r;
+            }
+            Future<Void> oldest = null;
+            for (final Future<Void> p : pending) {
+                if (!p.isDone()) {
+                    oldest = p;
+                    break;
+                }
+            }
+            if (null == oldest) {
+                return budget.holdOver(n);
+            }
+            oldest.get();
+        }
+    }
+
+    /**
+     * Uploads a stream as chunks plus a manifest, see upload(File, String).
+     *
+     * @param in the content, left open
+     * @param key the object key of the manifest
+     * @return true if the upload worked
+     */
+    public boolean upload(final InputStream in, final String key) {
+        final Manifest manifest = new Manifest();
+        final Set<String> sent = new HashSet<String>();
+        final List<Future<Void>> pending = new LinkedList<Future<Void>>();
+        final Semaphore inFlight = new Semaphore(WORKERS);
+        final List<MemoryBudget.Reservation> held = 
+            new ArrayList<MemoryBudget.Reservation>();
+        long newBytes = 0;
+        int newChunks = 0;
+
+        try {
+            final ObjectIndex index = s3m.getFreshIndex();
+            final byte[] salt = getSalt();
+            final InputStream is = new BufferedInputStream(in, 1 << 16);
+
+            held.add(reserve(MAX_CHUNK, pending));
+            final byte[] buf = new byte[MAX_CHUNK];
+            int len;
+            while ((len = nextChunk(is, buf)) > 0) {
+                final ChunkRef ref = new ChunkRef();
+                ref.id = hex(hmac(salt, buf, len));
+                ref.sha256 = hex(sha256(buf, len));
+                ref.length = len;
+                manifest.chunks.add(ref);
+                manifest.size += len;
+
+                final String chunkKey = CHUNK_PREFIX + ref.id;
+                if (index.contains(chunkKey) || !sent.add(ref.id)) {
+                    continue;
+                }
+                newChunks++;
+                newBytes += len;
+                inFlight.acquire();
+                final MemoryBudget.Reservation r = reserve(len, pending);
+                held.add(r);
+                final byte[] chunk = Arrays.copyOf(buf, len);
+                pending.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            writeEncrypted(chunkKey, chunk, chunk.length, 
+                                    null);
+                            return null;
+                        } finally {
+                            r.release();
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<Void> p : pending) {
+                p.get();
+            }
+
+            // the manifest goes last, so it never names a missing chunk
+            final byte[] json = new Gson().toJson(manifest)
+                .getBytes(StandardCharsets.UTF_8);
+            writeEncrypted(key, json, json.length, LAYOUT);
+        } catch (final ExecutionException e) {
+            System.out.println("Failed to upload a chunk of " + key 
+                    + ": " + e.getCause().getMessage());
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final AmazonClientException ace) {
+            System.out.println(ace.getMessage());
+            return false;
+        } catch (final IOException e) {
+            System.out.println("Failed to upload " + key + ": "
+                    + e.getMessage());
+            return false;
+        } finally {
+            for (final Future<Void> p : pending) {
+                p.cancel(true);
+            }
+            // also the chunks cancelled before they ran
+            for (final MemoryBudget.Reservation r : held) {
+                r.release();
+            }
+        }
+
+        System.out.format("dedup: %s %d chunks, %d new, sent %dB of %dB%n",
+                key, manifest.chunks.size(), newChunks, newBytes, 
+                manifest.size);
+        return true;
+    }
+
+    /**
+     * Rebuilds a file from its manifest. Chunks are fetched and decrypted a
+     * few at a time ahead of the writer, and each is checked against its
+     * SHA-256.
+     *
+     * @param fname the object key of the manifest
+     * @param so the manifest object, closed by this call
+     * @param os the stream to write the file to, left open
+     * @return true if the download worked
+     */
+    public boolean restore(final String fname, final StoredObject so, 
+            final OutputStream os) {
+        final LinkedList<Future<byte[]>> ahead = 
+            new LinkedList<Future<byte[]>>();
+        try {
+            final Manifest manifest = readManifest(so);
+
+            int next = 0;
+            final int count = manifest.chunks.size();
+            while (next < count || !ahead.isEmpty()) {
+                while (next < count && ahead.size() < WORKERS) {
+                    ahead.add(fetchAsync(manifest.chunks.get(next++)));
+                }
+                os.write(ahead.removeFirst().get());
+            }
+        } catch (final ExecutionException e) {
+            System.out.println("Failed to fetch a chunk of " + fname + ": " 
+                    + e.getCause().getMessage());
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final AmazonS3Exception as3e) {
+            System.out.println(as3e.getMessage());
+            return false;
+        } catch (final IOException e) {
+            System.out.println("IOException during download: " + fname);
+            return false;
+        } finally {
+            for (final Future<byte[]> f : ahead) {
+                f.cancel(true);
+            }
+            so.close();
+        }
+        return true;
+    }
+
+    /**
+     * Fetches and checks one chunk on the pool.
+     *
+     * @param ref the chunk
+     * @return the pending plain text
+     */
+    Future<byte[]> fetchAsync(final ChunkRef ref) {
+        return pool.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                final byte[] data = readDecrypted(
+                        s3m.openStored(CHUNK_PREFIX + ref.id), ref.length);
+                if (data.length != ref.length 
+                        || !ref.sha256.equals(hex(sha256(data, data.length)))) {
+                    throw new IOException("Chunk " + ref.id + " is corrupt");
+                }
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Reads and parses a manifest.
+     *
+     * @param so the manifest object
+     * @return the manifest
+     * @throws IOException if it can't be read or parsed
+     */
+    Manifest readManifest(final StoredObject so) throws IOException {
+        final InputStream is = s3m.getSaife().openDecryptStream(
+                so.getContent());
+        try {
+            final Reader r = new InputStreamReader(is, StandardCharsets.UTF_8);
+            final Manifest m = new Gson().fromJson(r, Manifest.class);
+            if (null == m || null == m.chunks) {
+                throw new IOException("Empty dedup manifest");
+            }
+            return m;
+        } catch (final JsonParseException e) {
+            throw new IOException("Invalid dedup manifest", e);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Returns the HMAC salt of the current share, creating it on first use.
+     *
+     * @return the salt
+     * @throws IOException if it can't be read or stored
+     */
+    synchronized byte[] getSalt() throws IOException {
+        final String bucket = s3m.getBucket();
+        byte[] salt = salts.get(bucket);
+        if (null != salt) {
+            return salt;
+        }
+
+        if (s3m.getFreshIndex().contains(SALT_KEY)) {
+            salt = readDecrypted(s3m.openStored(SALT_KEY), 32);
+        } else {
+            salt = new byte[32];
+            new SecureRandom().nextBytes(salt);
+            writeEncrypted(SALT_KEY, salt, salt.length, null);
+        }
+        salts.put(bucket, salt);
+        return salt;
+    }
+
+    /**
+     * Encrypts data into an object of the current share.
+     *
+     * @param key the object key
+     * @param data the plain text
+     * @param len the number of bytes to write
+     * @param layout the layout to record, null for none
+     * @throws IOException if the write fails
+     */
+    void writeEncrypted(final String key, final byte[] data, final int len,
+            final String layout) throws IOException {
+        final SaifeManager.S3OutputStream s3os = 
+            s3m.getSaife().getNewS3Stream(key);
+        if (null != layout) {
+            s3os.setUserMetadata(StoredObject.LAYOUT, layout);
+        }
+        final OutputStream os = s3m.getSaife().openEncryptStream(s3os);
+        try {
+            os.write(data, 0, len);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads and decrypts a whole object.
+     *
+     * @param so the object, closed by this call
+     * @param sizeHint the expected plain text size
+     * @return the plain text
+     * @throws IOException if the read fails
+     */
+    byte[] readDecrypted(final StoredObject so, final int sizeHint) 
+            throws IOException {
+        final InputStream is = s3m.getSaife().openDecryptStream(
+                so.getContent());
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                    Math.max(32, sizeHint));
+            final byte[] block = new byte[1 << 16];
+            int n;
+            while ((n = is.read(block)) > 0) {
+                bos.write(block, 0, n);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+            so.close();
+        }
+    }
+
+    /**
+     * Reads the next content-defined chunk. A boundary falls where the gear
+     * hash has its low bits clear, after at least MIN_CHUNK bytes, or at
+     * MAX_CHUNK bytes.
+     *
+     * @param is the plain text
+     * @param buf a buffer of MAX_CHUNK bytes
+     * @return the chunk length, 0 at the end of the stream
+     * @throws IOException if the read fails
+     */
+    static int nextChunk(final InputStream is, final byte[] buf) 
+            throws IOException {
+        long hash = 0;
+        int len = 0;
+        int b;
+        while (len < MAX_CHUNK && (b = is.read()) >= 0) {
+            buf[len++] = (byte) b;
+            hash = (hash << 1) + GEAR[b];
+            if (len >= MIN_CHUNK && 0 == (hash & MASK)) {
+                break;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * @param key the HMAC key
+     * @param data the data
+     * @param len the number of bytes to use
+     * @return the HMAC-SHA256 of the data
+     */
+    static byte[] hmac(final byte[] key, final byte[] data, final int len) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            mac.update(data, 0, len);
+            return mac.doFinal();
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is unavailable", e);
+        }
+    }
+
+    /**
+     * @param data the data
+     * @param len the number of bytes to use
+     * @return the SHA-256 of the data
+     */
+    static byte[] sha256(final byte[] data, final int len) {
+        final MessageDigest md = newSha256();
+        md.update(data, 0, len);
+        return md.digest();
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+    }
+
+    /**
+     * @param bytes the bytes
+     * @return the bytes in lower case hex
+     */
+    static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * The DeflateCodec compresses with the JDK Deflater (zlib format). The
+ * default level favours speed, since compression runs on the transfer path.
+ */
+public class DeflateCodec implements Codec {
+
+    /** The codec name. */
+    public static final String NAME = "deflate";
+
+    /** The size of the deflater buffers. */
+    static final int BUFFER = 64 * 1024;
+
+    /** The compression level, 1 (fast) to 9 (small). */
+    final int level;
+
+    /**
+     * The constructor.
+     *
+     * @param compressionLevel the Deflater level
+     */
+    public DeflateCodec(final int compressionLevel) {
+        level = compressionLevel;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream compress(final OutputStream out) {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputStream decompress(final OutputStream out) {
+        final Inflater inflater = new Inflater();
+        final OutputStream keepOpen = new FilterOutputStream(out) {
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                    throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        return new InflaterOutputStream(keepOpen, inflater, BUFFER) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,515 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The DirectorySync mirrors a local directory and a network share in either
+ * direction. The size, modified time, content hash and ETag of every synced
+ * file are kept in a manifest in the directory, so a later run only stats
+ * local files and lists the bucket: unchanged files are neither hashed nor
+ * transferred. Changed files move in parallel on a TransferBatch.
+ */
+public class DirectorySync {
+
+    /** The name of the manifest file in the synced directory. */
+    public static final String MANIFEST_NAME = ".ns-sync";
+
+    /**
+     * The FileState is what the manifest remembers about one file.
+     */
+    static class FileState {
+
+        /** The plain text size. */
+        long size;
+
+        /** The local modified time, in milliseconds. */
+        long mtime;
+
+        /** The SHA-256 of the plain text. */
+        String sha256;
+
+        /** The ETag of the object in the share. */
+        String etag;
+
+        /**
+         * The constructor.
+         *
+         * @param sz the size
+         * @param modified the modified time
+         * @param hash the content hash
+         * @param tag the ETag
+         */
+        FileState(final long sz, final long modified, final String hash,
+                final String tag) {
+            size = sz;
+            mtime = modified;
+            sha256 = hash;
+            etag = tag;
+        }
+    }
+
+    /**
+     * The Manifest is the persisted form of the sync state.
+     */
+    static class Manifest {
+
+        /** The format version. */
+        int version = 1;
+
+        /** The bucket the state belongs to. */
+        String bucket;
+
+        /** The state of each file, by object key. */
+        Map<String, FileState> files = new TreeMap<String, FileState>();
+    }
+
+    /**
+     * The LocalFile is a file found by the directory walk.
+     */
+    static class LocalFile {
+
+        /** The file. */
+        final Path path;
+
+        /** The size. */
+        final long size;
+
+        /** The modified time, in milliseconds. */
+        final long mtime;
+
+        /**
+         * The constructor.
+         *
+         * @param p the file
+         * @param attrs its attributes
+         */
+        LocalFile(final Path p, final BasicFileAttributes attrs) {
+            path = p;
+            size = attrs.size();
+            mtime = attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    /** The S3 manager, set up for the share. */
+    final S3Manager s3m;
+
+    /** The synced directory. */
+    final Path root;
+
+    /** The number of concurrent transfers. */
+    final int workers;
+
+    /** If true, files missing from the source are deleted. */
+    final boolean deleteExtras;
+
+    /** The state of each file, updated by the transfers. */
+    final Map<String, FileState> state = 
+        new ConcurrentHashMap<String, FileState>();
+
+    /** The number of files found unchanged. */
+    final AtomicInteger unchanged = new AtomicInteger();
+
+    /**
+     * The constructor. The S3 manager must already point at the share and
+     * have its NetworkShare set up.
+     *
+     * @param manager the S3 manager
+     * @param dir the directory to sync
+     * @param workerCount the number of concurrent transfers
+     * @param delete true to delete files missing from the source
+     */
+    public DirectorySync(final S3Manager manager, final Path dir, 
+            final int workerCount, final boolean delete) {
+        s3m = manager;
+        root = dir.toAbsolutePath().normalize();
+        workers = Math.max(1, workerCount);
+        deleteExtras = delete;
+    }
+
+    /**
+     * Uploads new and changed local files to the share.
+     *
+     * @return true if every transfer worked
+     */
+    public boolean push() {
+        final ObjectIndex index = loadIndex();
+        if (null == index) {
+            return false;
+        }
+        final Map<String, LocalFile> local = walk();
+        if (null == local) {
+            return false;
+        }
+
+        final TransferBatch batch = s3m.newBatch("sync", workers);
+        for (final Map.Entry<String, LocalFile> e : local.entrySet()) {
+            final String key = e.getKey();
+            final LocalFile lf = e.getValue();
+            final FileState old = state.get(key);
+            final ObjectIndex.Entry remote = index.get(key);
+
+            final boolean sameStat = null != old && old.size == lf.size 
+                && old.mtime == lf.mtime;
+            if (sameStat && inShare(old, remote)) {
+                unchanged.incrementAndGet();
+                continue;
+            }
+
+            batch.submit(key, new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    // a touched file keeps its hash, so it is not resent
+                    final String hash = sameStat ? old.sha256 : hash(lf.path);
+                    if (null != old && hash.equals(old.sha256) 
+                            && inShare(old, remote)) {
+                        state.put(key, new FileState(lf.size, lf.mtime, hash,
+                                    old.etag));
+                        unchanged.incrementAndGet();
+                        return 0L;
+                    }
+                    if (!s3m.upload(lf.path.toFile(), key)) {
+                        return -1L;
+                    }
+                    final ObjectIndex.Entry sent = index.get(key);
+                    state.put(key, new FileState(lf.size, lf.mtime, hash,
+                                null == sent ? null : sent.etag));
+                    return lf.size;
+                }
+            });
+        }
+        boolean result = batch.await();
+
+        int deleted = 0;
+        if (deleteExtras) {
+            final List<String> extras = new ArrayList<String>();
+            for (final String key : index.keys()) {
+                if (!S3Manager.isInternal(key) && !local.containsKey(key)) {
+                    extras.add(key);
+                }
+            }
+            if (!extras.isEmpty()) {
+                deleted = s3m.deleteObjects(extras);
+                result &= deleted == extras.size();
+            }
+        }
+
+        // forget files that are no longer here
+        state.keySet().retainAll(local.keySet());
+        final boolean saved = save();
+        report(deleted);
+        return saved && result;
+    }
+
+    /**
+     * Downloads new and changed objects from the share into the directory.
+     *
+     * @return true if every transfer worked
+     */
+    public boolean pull() {
+        final ObjectIndex index = loadIndex();
+        if (null == index) {
+            return false;
+        }
+
+        final TransferBatch batch = s3m.newBatch("sync", workers);
+        final Map<String, Path> remote = new TreeMap<String, Path>();
+        boolean result = true;
+        for (final ObjectIndex.Entry r : index.values()) {
+            final String key = r.key;
+            if (S3Manager.isInternal(key) || key.endsWith("/")) {
+                continue;
+            }
+            final Path target = resolve(key);
+            if (null == target) {
+                System.out.println("Skipping " + key 
+                        + ": it names a file outside " + root);
+                result = false;
+                continue;
+            }
+            remote.put(key, target);
+
+            final FileState old = state.get(key);
+            if (inShare(old, r) && matches(old, target)) {
+                unchanged.incrementAndGet();
+                continue;
+            }
+
+            batch.submit(key, new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    Files.createDirectories(target.getParent());
+                    if (!s3m.download(key, target.toString())) {
+                        return -1L;
+                    }
+                    final long size = Files.size(target);
+                    state.put(key, new FileState(size, 
+                                Files.getLastModifiedTime(target).toMillis(),
+                                hash(target), r.etag));
+                    return size;
+                }
+            });
+        }
+        result &= batch.await();
+
+        int deleted = 0;
+        if (deleteExtras) {
+            final Map<String, LocalFile> local = walk();
+            if (null == local) {
+                return false;
+            }
+            for (final Map.Entry<String, LocalFile> e : local.entrySet()) {
+                if (remote.containsKey(e.getKey())) {
+                    continue;
+                }
+                try {
+                    Files.delete(e.getValue().path);
+                    deleted++;
+                } catch (final IOException ex) {
+                    System.out.println("Failed to delete " 
+                            + e.getValue().path + ": " + ex.getMessage());
+                    result = false;
+                }
+            }
+        }
+
+        state.keySet().retainAll(remote.keySet());
+        final boolean saved = save();
+        report(deleted);
+        return saved && result;
+    }
+
+    /**
+     * Loads the manifest and a fresh listing of the share.
+     *
+     * @return the share's index, null on failure
+     */
+    ObjectIndex loadIndex() {
+        if (!load()) {
+            return null;
+        }
+        try {
+            s3m.getIndex().invalidate();
+            return s3m.getFreshIndex();
+        } catch (final AmazonClientException ace) {
+            System.out.println(ace.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param old the remembered state, may be null
+     * @param remote the object in the share, may be null
+     * @return true if the share still holds the object that was synced
+     */
+    static boolean inShare(final FileState old, 
+            final ObjectIndex.Entry remote) {
+        return null != old && null != remote && null != old.etag 
+            && old.etag.equals(remote.etag);
+    }
+
+    /**
+     * @param old the remembered state
+     * @param file the local file
+     * @return true if the file's size and modified time are as remembered
+     */
+    static boolean matches(final FileState old, final Path file) {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(file, 
+                    BasicFileAttributes.class);
+            return attrs.size() == old.size 
+                && attrs.lastModifiedTime().toMillis() == old.mtime;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Resolves an object key to a file in the directory.
+     *
+     * @param key the object key
+     * @return the file, null if the key would escape the directory
+     */
+    Path resolve(final String key) {
+        final Path p = root.resolve(key).normalize();
+        if (!p.startsWith(root) || p.equals(root) 
+                || p.getFileName().toString().equals(MANIFEST_NAME)) {
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Walks the directory. Object keys are the relative paths, separated by
+     * `/`.
+     *
+     * @return the regular files by key, null if the walk failed
+     */
+    Map<String, LocalFile> walk() {
+        final Map<String, LocalFile> files = new TreeMap<String, LocalFile>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                        final BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.getFileName()
+                            .toString().equals(MANIFEST_NAME)) {
+                        files.put(keyOf(file), new LocalFile(file, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, 
+                        final IOException e) {
+                    System.out.println("Skipping " + file + ": " 
+                            + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            System.out.println("Failed to read " + root + ": " 
+                    + e.getMessage());
+            return null;
+        }
+        return files;
+    }
+
+    /**
+     * @param file a file in the directory
+     * @return its object key
+     */
+    String keyOf(final Path file) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Path part : root.relativize(file)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the manifest. A missing manifest, or one kept for another share,
+     * starts from an empty state.
+     *
+     * @return true unless the manifest exists and can't be read
+     */
+    boolean load() {
+        state.clear();
+        final Path file = root.resolve(MANIFEST_NAME);
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            final Manifest m = new Gson().fromJson(r, Manifest.class);
+            if (null != m && null != m.files 
+                    && s3m.getBucket().equals(m.bucket)) {
+                state.putAll(m.files);
+            }
+            return true;
+        } catch (final NoSuchFileException e) {
+            return true;
+        } catch (final IOException | JsonParseException e) {
+            System.out.println("Failed to read " + file + ": " 
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes the manifest, replacing the old one atomically.
+     *
+     * @return true if it was written
+     */
+    boolean save() {
+        final Manifest m = new Manifest();
+        m.bucket = s3m.getBucket();
+        m.files.putAll(state);
+        final Path file = root.resolve(MANIFEST_NAME);
+        try (Writer w = new OutputStreamWriter(
+                    new FilePersister.AtomicFileOutputStream(file), 
+                    StandardCharsets.UTF_8)) {
+            new Gson().toJson(m, w);
+            return true;
+        } catch (final IOException e) {
+            System.out.println("Failed to write " + file + ": " 
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Prints the outcome of a sync.
+     *
+     * @param deleted the number of files deleted
+     */
+    void report(final int deleted) {
+        System.out.format("sync: %d files tracked, %d unchanged, %d deleted%n",
+                state.size(), unchanged.get(), deleted);
+    }
+
+    /**
+     * @param file a file
+     * @return the SHA-256 of its content, in hex
+     * @throws IOException if it can't be read
+     */
+    static String hash(final Path file) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is unavailable", e);
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        }
+        return DedupStore.hex(md.digest());
+    }
+}
@@ -0,0 +1,448 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * The FileLister streams the listing of a bucket a page at a time, in
+ * constant memory whatever the number of objects. Filters are applied as
+ * each page arrives, and the literal start of a glob is sent to S3 as the
+ * listing prefix. Lines are printed with fixed column widths, so nothing
+ * is buffered to measure them. Sorting by size or time keeps only the top
+ * N entries in a heap; counting keeps only the totals.
+ */
+public class FileLister {
+
+    /** The number of keys asked for per page. */
+    static final int PAGE_SIZE = 1000;
+
+    /** The width of the size column, enough for 999 GB. */
+    static final int SIZE_WIDTH = 12;
+
+    /** The milliseconds in a day. */
+    static final long DAY = 24L * 60 * 60 * 1000;
+
+    /** Orders by key, as S3 lists them. */
+    static final Comparator<S3ObjectSummary> BY_NAME = 
+        new Comparator<S3ObjectSummary>() {
+            @Override
+            public int compare(final S3ObjectSummary a, 
+                    final S3ObjectSummary b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        };
+
+    /** Orders by size, largest first. */
+    static final Comparator<S3ObjectSummary> BY_SIZE = 
+        new Comparator<S3ObjectSummary>() {
+            @Override
+            public int compare(final S3ObjectSummary a, 
+                    final S3ObjectSummary b) {
+                final int c = Long.compare(b.getSize(), a.getSize());
+                return (0 != c) ? c : a.getKey().compareTo(b.getKey());
+            }
+        };
+
+    /** Orders by modified time, newest first. */
+    static final Comparator<S3ObjectSummary> BY_MTIME = 
+        new Comparator<S3ObjectSummary>() {
+            @Override
+            public int compare(final S3ObjectSummary a, 
+                    final S3ObjectSummary b) {
+                final int c = Long.compare(millis(b), millis(a));
+                return (0 != c) ? c : a.getKey().compareTo(b.getKey());
+            }
+        };
+
+    /** The glob the keys must match, null for any. */
+    String glob = null;
+
+    /** The compiled glob. */
+    Pattern pattern = null;
+
+    /** The smallest size listed. */
+    long minSize = 0;
+
+    /** The largest size listed. */
+    long maxSize = Long.MAX_VALUE;
+
+    /** The oldest modified time listed, in milliseconds. */
+    long since = Long.MIN_VALUE;
+
+    /** The order, null for listing order. */
+    Comparator<S3ObjectSummary> order = null;
+
+    /** The most entries to print, 0 for all. */
+    int top = 0;
+
+    /** If true only the totals are printed. */
+    boolean countOnly = false;
+
+    /** The day of the cached date, in local days since the epoch. */
+    long cachedDay = Long.MIN_VALUE;
+
+    /** The cached date, yyyy-mm-dd. */
+    String cachedDate = null;
+
+    /**
+     * Lists only keys matching a glob: `*` and `?` stay within one path
+     * segment, `**` crosses segments, and `[...]` and `{a,b}` work as in a
+     * shell.
+     *
+     * @param g the glob, null for any key
+     */
+    public void setGlob(final String g) {
+        glob = g;
+        pattern = (null == g) ? null : Pattern.compile(globToRegex(g));
+    }
+
+    /**
+     * @param min the smallest size listed
+     * @param max the largest size listed
+     */
+    public void setSizeRange(final long min, final long max) {
+        minSize = min;
+        maxSize = max;
+    }
+
+    /**
+     * @param millis the oldest modified time listed
+     */
+    public void setSince(final long millis) {
+        since = millis;
+    }
+
+    /**
+     * Selects the order. Any order but name needs a top N, since the whole
+     * listing would have to be held to sort it.
+     *
+     * @param name "name", "size" or "mtime"
+     * @return false if the name is unknown
+     */
+    public boolean setOrder(final String name) {
+        if ("name".equals(name)) {
+            order = BY_NAME;
+        } else if ("size".equals(name)) {
+            order = BY_SIZE;
+        } else if ("mtime".equals(name)) {
+            order = BY_MTIME;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param n the most entries to print, 0 for all
+     */
+    public void setTop(final int n) {
+        top = Math.max(0, n);
+    }
+
+    /**
+     * @param count true to print only the number and total size of the
+     * matching files
+     */
+    public void setCountOnly(final boolean count) {
+        countOnly = count;
+    }
+
+    /**
+     * @return true if the options can be served without holding the whole
+     * listing
+     */
+    public boolean isStreamable() {
+        return countOnly || top > 0 || null == order || BY_NAME == order;
+    }
+
+    /**
+     * Streams the listing of a bucket. Share metadata is skipped and sizes
+     * are those of the stored objects.
+     *
+     * @param s3 the s3 handler
+     * @param bucket the bucket
+     * @param out the stream to print to
+     * @return true if the whole listing was read
+     */
+    public boolean list(final AmazonS3 s3, final String bucket, 
+            final OutputStream out) {
+        // one flush per buffer rather than per line
+        final PrintStream w = new PrintStream(
+                new BufferedOutputStream(out, 1 << 16), false);
+        try {
+            return list(s3, bucket, w);
+        } finally {
+            w.flush();
+        }
+    }
+
+    /**
+     * Streams the listing of a bucket, see list(AmazonS3, String, 
+     * OutputStream).
+     *
+     * @param s3 the s3 handler
+     * @param bucket the bucket
+     * @param out the stream to print to
+     * @return true if the whole listing was read
+     */
+    boolean list(final AmazonS3 s3, final String bucket, 
+            final PrintStream out) {
+        // S3 already lists by name, a heap is only needed for other orders
+        final boolean byName = null == order || BY_NAME == order;
+        final PriorityQueue<S3ObjectSummary> best = (byName || countOnly) 
+            ? null : new PriorityQueue<S3ObjectSummary>(top + 1, 
+                    Collections.reverseOrder(order));
+        final StringBuilder sb = new StringBuilder(256);
+        long matched = 0;
+        long bytes = 0;
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withPrefix(literalPrefix(glob))
+                    .withMaxKeys(PAGE_SIZE));
+            while (true) {
+                for (final S3ObjectSummary os : listing.getObjectSummaries()) {
+                    if (!accept(os)) {
+                        continue;
+                    }
+                    matched++;
+                    bytes += os.getSize();
+                    if (countOnly) {
+                        continue;
+                    }
+                    if (null != best) {
+                        best.add(os);
+                        if (best.size() > top) {
+                            best.poll();
+                        }
+                    } else {
+                        sb.setLength(0);
+                        out.append(format(sb, bucket, os));
+                        if (top > 0 && matched >= top) {
+                            return true;
+                        }
+                    }
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+        } catch (final AmazonClientException ace) {
+            System.out.println(ace.getMessage());
+            return false;
+        }
+
+        if (null != best) {
+            final List<S3ObjectSummary> sorted = 
+                new ArrayList<S3ObjectSummary>(best);
+            Collections.sort(sorted, order);
+            for (final S3ObjectSummary os : sorted) {
+                sb.setLength(0);
+                out.append(format(sb, bucket, os));
+            }
+        }
+        if (countOnly) {
+            out.format("%d files, %dB%n", matched, bytes);
+        }
+        return true;
+    }
+
+    /**
+     * @param os an object
+     * @return true if the object is a user file that passes the filters
+     */
+    boolean accept(final S3ObjectSummary os) {
+        final String key = os.getKey();
+        return !S3Manager.isInternal(key) 
+            && os.getSize() >= minSize && os.getSize() <= maxSize
+            && (Long.MIN_VALUE == since || millis(os) >= since)
+            && (null == pattern || pattern.matcher(key).matches());
+    }
+
+    /**
+     * Formats one line: bucket, date, time, size and key, in local time.
+     * Dates are cached per day, so no date object is made per line.
+     *
+     * @param sb the builder to format into
+     * @param bucket the bucket
+     * @param os the object
+     * @return the builder
+     */
+    StringBuilder format(final StringBuilder sb, final String bucket,
+            final S3ObjectSummary os) {
+        final long utc = millis(os);
+        final long local = utc + TimeZone.getDefault().getOffset(utc);
+        final long day = Math.floorDiv(local, DAY);
+        if (day != cachedDay) {
+            cachedDate = ISODateTimeFormat.date().withZoneUTC()
+                .print(day * DAY);
+            cachedDay = day;
+        }
+        final int secs = (int) ((local - day * DAY) / 1000);
+        sb.append(bucket).append(' ').append(cachedDate).append(' ');
+        pad2(sb, secs / 3600).append(':');
+        pad2(sb, secs / 60 % 60).append(':');
+        pad2(sb, secs % 60).append(' ');
+        final String size = Long.toString(os.getSize());
+        for (int i = size.length(); i < SIZE_WIDTH; i++) {
+            sb.append(' ');
+        }
+        sb.append(size).append("B ").append(os.getKey())
+            .append(System.lineSeparator());
+        return sb;
+    }
+
+    /**
+     * @param sb the builder
+     * @param n a number below 100
+     * @return the builder, with n in two digits
+     */
+    static StringBuilder pad2(final StringBuilder sb, final int n) {
+        return sb.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+    }
+
+    /**
+     * @param os an object
+     * @return its modified time in milliseconds, 0 if unknown
+     */
+    static long millis(final S3ObjectSummary os) {
+        return (null == os.getLastModified()) ? 0 
+            : os.getLastModified().getTime();
+    }
+
+    /**
+     * @param g a glob, may be null
+     * @return the part before the first wildcard, the listing prefix
+     */
+    static String literalPrefix(final String g) {
+        if (null == g) {
+            return "";
+        }
+        for (int i = 0; i < g.length(); i++) {
+            if ("*?[{\\".indexOf(g.charAt(i)) >= 0) {
+                return g.substring(0, i);
+            }
+        }
+        return g;
+    }
+
+    /**
+     * @param g a glob
+     * @return the equivalent regular expression
+     */
+    static String globToRegex(final String g) {
+        final StringBuilder re = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < g.length(); i++) {
+            final char c = g.charAt(i);
+            if ('*' == c) {
+                if (i + 1 < g.length() && '*' == g.charAt(i + 1)) {
+                    re.append(".*");
+                    i++;
+                } else {
+                    re.append("[^/]*");
+                }
+            } else if ('?' == c) {
+                re.append("[^/]");
+            } else if ('[' == c) {
+                final int end = g.indexOf(']', i + 1);
+                if (end < 0) {
+                    re.append("\\[");
+                } else {
+                    String set = g.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    re.append('[').append(set.replace("\\", "\\\\"))
+                        .append(']');
+                    i = end;
+                }
+            } else if ('{' == c) {
+                re.append("(?:");
+                inGroup = true;
+            } else if ('}' == c && inGroup) {
+                re.append(')');
+                inGroup = false;
+            } else if (',' == c && inGroup) {
+                re.append('|');
+            } else if ('\\' == c && i + 1 < g.length()) {
+                literal(re, g.charAt(++i));
+            } else {
+                literal(re, c);
+            }
+        }
+        return re.toString();
+    }
+
+    /**
+     * Appends a character that must match itself.
+     *
+     * @param re the regular expression being built
+     * @param c the character
+     */
+    static void literal(final StringBuilder re, final char c) {
+        // a backslash before anything but a letter or digit is a literal
+        if (!Character.isLetterOrDigit(c)) {
+            re.append('\\');
+        }
+        re.append(c);
+    }
+
+    /**
+     * Parses a time, either an ISO date or date-time such as 2016-05-01 or
+     * an age such as 30m, 12h or 7d.
+     *
+     * @param s the time
+     * @param now the current time, in milliseconds
+     * @return the time in milliseconds
+     * @throws IllegalArgumentException if the time is not valid
+     */
+    static long parseSince(final String s, final long now) {
+        if (s.isEmpty()) {
+            throw new IllegalArgumentException("Empty time");
+        }
+        final String units = "mhd";
+        final long[] scale = {60 * 1000L, 60 * 60 * 1000L, DAY};
+        final int u = units.indexOf(s.charAt(s.length() - 1));
+        if (u >= 0 && s.length() > 1 
+                && Character.isDigit(s.charAt(s.length() - 2))) {
+            return now - Long.parseLong(s.substring(0, s.length() - 1)) 
+                * scale[u];
+        }
+        return ISODateTimeFormat.dateTimeParser().parseMillis(s);
+    }
+}
@@ -0,0 +1,451 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.UUID;
+import java.util.Vector;
+
+import com.saife.dar.PersistedObject;
+import com.saife.dar.PersistentStore;
+
+/**
+ * The FilePersister is a PersistentStore that keeps NetworkShare black data
+ * in a local directory tree instead of S3. Objects are written through a
+ * FileChannel into a temp file that is renamed over the object on close, so
+ * readers never see a partial object. Reads are served from memory-mapped
+ * files. It is a drop-in replacement for the S3 Persister in a
+ * NetworkShareManager.getNetworkShare call.
+ */
+public class FilePersister implements PersistentStore {
+
+    /**
+     * The FileObject is a PersistedObject stored as a file.
+     */
+    public static class FileObject implements PersistedObject {
+
+        /** The object name. */
+        final String name;
+
+        /** The path of the object's file. */
+        final Path path;
+
+        /**
+         * The constructor.
+         *
+         * @param objName the object name
+         * @param objPath the file
+         */
+        public FileObject(final String objName, final Path objPath) {
+            name = objName;
+            path = objPath;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    /** The largest window mapped at once. */
+    static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    /** The size of the write buffer in front of the channel. */
+    static final int WRITE_BUFFER = 64 * 1024;
+
+    /** The suffix of files still being written. */
+    static final String TEMP_SUFFIX = ".part";
+
+    /** The root directory of the store. */
+    final Path root;
+
+    /**
+     * The constructor. Creates the root directory if needed.
+     *
+     * @param dir the root directory
+     * @throws IOException if the directory can't be created
+     */
+    public FilePersister(final Path dir) throws IOException {
+        root = dir;
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public List<PersistedObject> getObjects(final String storagePath, 
+            final String prefix) throws IOException {
+        final List<PersistedObject> objects = new Vector<PersistedObject>();
+        final Path dir = resolve(storagePath, "");
+        if (!Files.isDirectory(dir)) {
+            return objects;
+        }
+
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (final Path p : ds) {
+                final String name = p.getFileName().toString();
+                if (name.startsWith(prefix) && !name.endsWith(TEMP_SUFFIX)
+                        && Files.isRegularFile(p)) {
+                    objects.add(new FileObject(name, p));
+                }
+            }
+        }
+        return objects;
+    }
+
+    @Override
+    public void releaseObjects(final List<PersistedObject> releaseObjects) {
+        // nothing is held open per object
+    }
+
+    @Override
+    public InputStream getInputStream(final PersistedObject object) 
+            throws IOException {
+        return openMapped(pathOf(object));
+    }
+
+    @Override
+    public InputStream getInputStream(final String storagePath, 
+            final String name) throws IOException {
+        return openMapped(resolve(storagePath, name));
+    }
+
+    @Override
+    public void releaseInputStream(final InputStream is) {
+
+    }
+
+    @Override
+    public OutputStream getOutputStream(final PersistedObject object) 
+            throws IOException {
+        return new AtomicFileOutputStream(pathOf(object));
+    }
+
+    @Override
+    public OutputStream getOutputStream(final String storagePath, 
+            final String name) throws IOException {
+        return new AtomicFileOutputStream(resolve(storagePath, name));
+    }
+
+    @Override
+    public void releaseOutputStream(final OutputStream os) {
+
+    }
+
+    @Override
+    public void deleteObject(final PersistedObject object) 
+            throws IOException {
+        Files.deleteIfExists(pathOf(object));
+    }
+
+    @Override
+    public void deleteObject(final String storagePath, final String name) 
+            throws IOException {
+        Files.deleteIfExists(resolve(storagePath, name));
+    }
+
+    /**
+     * Maps a storage path and object name to a file under the root. Names
+     * that would escape the root are refused.
+     *
+     * @param storagePath the NetworkShare storage path
+     * @param name the object name
+     * @return the file
+     * @throws IOException if the name is outside the root
+     */
+    Path resolve(final String storagePath, final String name) 
+            throws IOException {
+        String sp = (null == storagePath) ? "" : storagePath;
+        while (sp.startsWith("/")) {
+            sp = sp.substring(1);
+        }
+        final Path p = root.resolve(sp).resolve(name).normalize();
+        if (!p.startsWith(root.normalize())) {
+            throw new IOException("Object " + name + " is outside the store");
+        }
+        return p;
+    }
+
+    /**
+     * @param object a persisted object
+     * @return its file
+     * @throws IOException if the name is outside the root
+     */
+    Path pathOf(final PersistedObject object) throws IOException {
+        if (object instanceof FileObject) {
+            return ((FileObject) object).path;
+        }
+        return resolve("", object.getName());
+    }
+
+    /**
+     * Opens a file for reading through memory-mapped windows.
+     *
+     * @param p the file
+     * @return a stream over the file
+     * @throws IOException if the file can't be opened
+     */
+    static InputStream openMapped(final Path p) throws IOException {
+        try {
+            return new MappedInputStream(FileChannel.open(p, 
+                        StandardOpenOption.READ));
+        } catch (final NoSuchFileException e) {
+            throw new IOException("No object " + p.getFileName(), e);
+        }
+    }
+
+    /**
+     * The MappedInputStream reads a file through read-only mappings of up
+     * to MAP_WINDOW bytes, so files of any size can be read.
+     */
+    static class MappedInputStream extends InputStream {
+
+        /** The channel. */
+        final FileChannel channel;
+
+        /** The file size. */
+        final long size;
+
+        /** The file offset of the next byte to read. */
+        long pos = 0;
+
+        /** The file offset of the current window. */
+        long windowStart = 0;
+
+        /**
+         * The current window, positioned at pos. Null before the first read
+         * and after a skip past it.
+         */
+        MappedByteBuffer window = null;
+
+        /**
+         * The constructor.
+         *
+         * @param fc an open channel, closed with this stream
+         * @throws IOException if the size can't be read
+         */
+        MappedInputStream(final FileChannel fc) throws IOException {
+            channel = fc;
+            size = fc.size();
+        }
+
+        /**
+         * Maps a window from the current position once the current one is
+         * used up.
+         *
+         * @return false at the end of the file
+         * @throws IOException if the mapping fails
+         */
+        boolean fill() throws IOException {
+            if (null != window && window.hasRemaining()) {
+                return true;
+            }
+            if (pos >= size) {
+                return false;
+            }
+            windowStart = pos;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, 
+                    Math.min(MAP_WINDOW, size - pos));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            pos++;
+            return window.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) 
+                throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long to = Math.min(size, pos + Math.max(0, n));
+            final long skipped = to - pos;
+            pos = to;
+            if (null != window && to < windowStart + window.capacity()) {
+                window.position((int) (to - windowStart));
+            } else {
+                // the next read maps a window from pos
+                window = null;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - pos);
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * The AtomicFileOutputStream writes to a temp file next to the target
+     * through a buffered FileChannel, and renames it over the target on
+     * close. An aborted stream deletes the temp file and leaves the target
+     * as it was.
+     */
+    static class AtomicFileOutputStream extends OutputStream {
+
+        /** The file being written. */
+        final Path target;
+
+        /** The temp file. */
+        final Path temp;
+
+        /** The channel to the temp file. */
+        final FileChannel channel;
+
+        /** The write buffer. */
+        final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER);
+
+        /** The closed flag. */
+        boolean closed = false;
+
+        /**
+         * The constructor.
+         *
+         * @param file the object file
+         * @throws IOException if the temp file can't be created
+         */
+        AtomicFileOutputStream(final Path file) throws IOException {
+            target = file;
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            temp = file.resolveSibling(file.getFileName() + "." 
+                    + UUID.randomUUID() + TEMP_SUFFIX);
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) 
+                throws IOException {
+            if (len >= buffer.capacity()) {
+                // large writes skip the buffer
+                drain();
+                final ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+                return;
+            }
+            if (len > buffer.remaining()) {
+                drain();
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                drain();
+                channel.force(true);
+            } catch (final IOException e) {
+                channel.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Discards what was written: the temp file is deleted and close()
+         * will not touch the target.
+         */
+        public void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                // the file goes anyway
+            }
+            try {
+                Files.deleteIfExists(temp);
+            } catch (final IOException e) {
+                System.out.println("Failed to delete " + temp + ": " 
+                        + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes the buffer to the channel.
+         *
+         * @throws IOException if the write fails
+         */
+        void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.saife.dar.PersistedObject;
+
+/**
+ * The LazyObjectList is the result of a paginated S3 listing that is read
+ * one page at a time, as the caller walks the list. The first page is read
+ * when the list is created, so the NetworkShare gets its first objects
+ * without waiting for the whole listing. Asking for the size reads every
+ * page. A page that fails to load throws a ListingException rather than
+ * end the list early, since a short list would read as missing objects.
+ */
+public class LazyObjectList extends AbstractList<PersistedObject> {
+
+    /** The saifeManager creates the persisted objects. */
+    final SaifeManager saifeManager;
+
+    /** The s3 handler. */
+    final AmazonS3 s3;
+
+    /** The objects read so far. */
+    final List<PersistedObject> loaded = new ArrayList<PersistedObject>();
+
+    /** The last page read, null once every page has been read. */
+    ObjectListing listing;
+
+    /**
+     * The constructor. Reads the first page.
+     *
+     * @param sm the SAIFE manager
+     * @param s3client the Amazon S3 handler
+     * @param request the listing to run
+     */
+    public LazyObjectList(final SaifeManager sm, final AmazonS3 s3client,
+            final ListObjectsRequest request) {
+        saifeManager = sm;
+        s3 = s3client;
+        listing = s3.listObjects(request);
+        addPage();
+    }
+
+    @Override
+    public synchronized PersistedObject get(final int index) {
+        while (loaded.size() <= index && nextPage()) {
+            // keep reading
+        }
+        return loaded.get(index);
+    }
+
+    @Override
+    public synchronized int size() {
+        while (nextPage()) {
+            // keep reading
+        }
+        return loaded.size();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        while (loaded.isEmpty() && nextPage()) {
+            // keep reading
+        }
+        return loaded.isEmpty();
+    }
+
+    @Override
+    public Iterator<PersistedObject> iterator() {
+        return new Iterator<PersistedObject>() {
+
+            /** The index of the next object. */
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (LazyObjectList.this) {
+                    while (loaded.size() <= next && nextPage()) {
+                        // keep reading
+                    }
+                    return next < loaded.size();
+                }
+            }
+
+            @Override
+            public PersistedObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Reads the next page, if any.
+     *
+     * @return false if every page has been read
+     * @throws ListingException if the page can't be read
+     */
+    boolean nextPage() {
+        if (null == listing) {
+            return false;
+        }
+        try {
+            listing = s3.listNextBatchOfObjects(listing);
+        } catch (final AmazonClientException ace) {
+            throw new ListingException("Failed to list " 
+                    + listing.getBucketName() + " after " + loaded.size() 
+                    + " objects: " + ace.getMessage(), ace);
+        }
+        addPage();
+        return true;
+    }
+
+    /**
+     * Adds the objects of the current page, and forgets the listing once the
+     * last page is in.
+     */
+    void addPage() {
+        for (final S3ObjectSummary os : listing.getObjectSummaries()) {
+            System.out.println("getObjects Found " + os.getKey());
+            // written back to the listed bucket, whichever is current
+            loaded.add(saifeManager.getObject(os.getBucketName(), 
+                        os.getKey()));
+        }
+        if (!listing.isTruncated()) {
+            listing = null;
+        }
+    }
+
+    /**
+     * The ListingException is thrown when a later page of the listing can't
+     * be read. It is unchecked, since the List methods can't throw an
+     * IOException.
+     */
+    public static class ListingException extends RuntimeException {
+
+        /** The serial version. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The constructor.
+         *
+         * @param message the message
+         * @param cause the failed request
+         */
+        public ListingException(final String message, 
+                final AmazonClientException cause) {
+            super(message, cause);
+        }
+    }
+}
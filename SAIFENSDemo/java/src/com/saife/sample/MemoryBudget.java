@@ -0,0 +1,320 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The MemoryBudget caps the memory held by transfer buffers across every
+ * push, pull and NetworkShare object at once. Buffers reserve before they
+ * allocate and release when they are done. A reservation that does not fit
+ * waits for others to release; a SegmentBuffer that has waited long enough
+ * spills to a temp file instead, so writers never wait on each other in a
+ * cycle. A reservation larger than the whole cap is granted once nothing
+ * else is held. Idle segments kept in the SegmentBuffer pools are not
+ * counted, they are bounded by the pools.
+ */
+public class MemoryBudget {
+
+    /** The system property setting the cap, e.g. -Dns.mem.budget=128M. */
+    static final String CAP_PROPERTY = "ns.mem.budget";
+
+    /** The cap unless the property or the heap says otherwise. */
+    static final long DEFAULT_CAP = 256L * 1024 * 1024;
+
+    /** How long a SegmentBuffer waits for room before it spills, in ms. */
+    static final long DEFAULT_SPILL_WAIT = 200;
+
+    /** The budget every transfer buffer reserves from. */
+    static final MemoryBudget GLOBAL = new MemoryBudget(defaultCap());
+
+    /** The cap, in bytes. */
+    long cap;
+
+    /** The bytes reserved. */
+    long used = 0;
+
+    /** The most bytes reserved at once. */
+    long peak = 0;
+
+    /** The reservations that had to wait. */
+    long waits = 0;
+
+    /** The buffers spilled to disk. */
+    long spills = 0;
+
+    /** The bytes moved to disk by spills. */
+    long spilledBytes = 0;
+
+    /** The reservations granted over the cap, since nothing could spill. */
+    long overdrafts = 0;
+
+    /** How long a SegmentBuffer waits before it spills, in ms. */
+    volatile long spillWait = DEFAULT_SPILL_WAIT;
+
+    /** The directory spill files go to, null for the temp directory. */
+    volatile File spillDir = null;
+
+    /**
+     * The constructor.
+     *
+     * @param capBytes the most bytes reserved at once
+     */
+    public MemoryBudget(final long capBytes) {
+        cap = Math.max(SegmentBuffer.SEGMENT_SIZE, capBytes);
+    }
+
+    /**
+     * @return the budget every transfer buffer reserves from
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the cap from the system property, or the default, at most half
+     * the heap
+     */
+    static long defaultCap() {
+        final long half = Runtime.getRuntime().maxMemory() / 2;
+        final String prop = System.getProperty(CAP_PROPERTY);
+        if (null != prop && !prop.isEmpty()) {
+            try {
+                return Sizes.parse(prop);
+            } catch (final NumberFormatException e) {
+                System.out.println("Invalid " + CAP_PROPERTY + " " + prop 
+                        + ", using the default");
+            }
+        }
+        return Math.min(DEFAULT_CAP, half);
+    }
+
+    /**
+     * Sets the cap. Lowering it below the bytes reserved makes new 
+     * reservations wait until enough are released.
+     *
+     * @param capBytes the most bytes reserved at once
+     */
+    public synchronized void setCap(final long capBytes) {
+        cap = Math.max(SegmentBuffer.SEGMENT_SIZE, capBytes);
+        notifyAll();
+    }
+
+    /**
+     * Sets where and when SegmentBuffers spill.
+     *
+     * @param waitMillis how long to wait for room before spilling
+     * @param dir the directory for spill files, null for the temp directory
+     */
+    public void setSpill(final long waitMillis, final File dir) {
+        spillWait = Math.max(0, waitMillis);
+        spillDir = dir;
+    }
+
+    /**
+     * Reserves bytes, waiting for room as long as needed.
+     *
+     * @param n the bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void reserve(final long n) throws InterruptedIOException {
+        reserve(n, -1);
+    }
+
+    /**
+     * Reserves bytes, waiting for room at most waitMillis.
+     *
+     * @param n the bytes
+     * @param waitMillis the longest wait, negative to wait as long as needed
+     * @return false if there was no room in time
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized boolean reserve(final long n, final long waitMillis)
+            throws InterruptedIOException {
+        if (!fits(n)) {
+            waits++;
+            final long deadline = System.nanoTime() 
+                + waitMillis * 1000000L;
+            try {
+                while (!fits(n)) {
+                    if (waitMillis < 0) {
+                        wait();
+                    } else {
+                        final long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            return false;
+                        }
+                        wait(Math.max(1, left / 1000000L));
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for " 
+                        + n + " bytes of buffer memory");
+            }
+        }
+        take(n);
+        return true;
+    }
+
+    /**
+     * Reserves bytes even if that goes over the cap. For a buffer that must
+     * grow and cannot spill.
+     *
+     * @param n the bytes
+     */
+    public synchronized void overdraw(final long n) {
+        if (!fits(n)) {
+            overdrafts++;
+        }
+        take(n);
+    }
+
+    /**
+     * Reserves bytes for a buffer that cannot spill, waiting for room at
+     * most waitMillis.
+     *
+     * @param n the bytes
+     * @param waitMillis the longest wait, negative to wait as long as needed
+     * @return the reservation, or null if there was no room in time
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public Reservation hold(final long n, final long waitMillis)
+            throws InterruptedIOException {
+        return reserve(n, waitMillis) ? new Reservation(this, n) : null;
+    }
+
+    /**
+     * Reserves bytes for a buffer that cannot spill, even if that goes over
+     * the cap.
+     *
+     * @param n the bytes
+     * @return the reservation
+     */
+    public Reservation holdOver(final long n) {
+        overdraw(n);
+        return new Reservation(this, n);
+    }
+
+    /**
+     * Gives back reserved bytes.
+     *
+     * @param n the bytes
+     */
+    public synchronized void release(final long n) {
+        if (n > 0) {
+            used = Math.max(0, used - n);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records a buffer moved to disk.
+     *
+     * @param n the bytes written to the spill file
+     */
+    synchronized void spilled(final long n) {
+        spills++;
+        spilledBytes += n;
+    }
+
+    /**
+     * @param n the bytes
+     * @return true if they fit, or nothing else is reserved
+     */
+    boolean fits(final long n) {
+        return used + n <= cap || 0 == used;
+    }
+
+    /**
+     * @param n the bytes to add to the reservations
+     */
+    void take(final long n) {
+        used += n;
+        peak = Math.max(peak, used);
+    }
+
+    /**
+     * @return the bytes reserved now
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return the most bytes reserved at once
+     */
+    public synchronized long getPeak() {
+        return peak;
+    }
+
+    /**
+     * @return the cap, in bytes
+     */
+    public synchronized long getCap() {
+        return cap;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("memory: %.1f of %.1f MB reserved, peak %.1f MB,"
+                + " %d waits, %d spills (%.1f MB), %d over the cap", 
+                used / 1048576.0, cap / 1048576.0, peak / 1048576.0, waits,
+                spills, spilledBytes / 1048576.0, overdrafts);
+    }
+
+    /**
+     * The Reservation class is bytes held from a budget. They are given back
+     * once, however often release is called, so a buffer shared between a
+     * task and its canceller cannot be released twice.
+     */
+    public static class Reservation {
+
+        /** The budget the bytes came from. */
+        final MemoryBudget budget;
+
+        /** The bytes. */
+        final long bytes;
+
+        /** Set once the bytes are given back. */
+        final AtomicBoolean released = new AtomicBoolean(false);
+
+        /**
+         * The constructor.
+         *
+         * @param budget the budget the bytes came from
+         * @param bytes the bytes
+         */
+        Reservation(final MemoryBudget budget, final long bytes) {
+            this.budget = budget;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Gives the bytes back, if not done already.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                budget.release(bytes);
+            }
+        }
+    }
+}
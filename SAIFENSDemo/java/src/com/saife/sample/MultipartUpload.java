@@ -0,0 +1,248 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * The MultipartUpload ships an S3 object as a series of parts while the
+ * object is still being written. Parts are uploaded concurrently on a shared
+ * pool, and at most maxInFlight parts are held in memory for a single upload.
+ * Parts are committed in the order they were submitted.
+ */
+public class MultipartUpload {
+
+    /** The smallest part S3 accepts, except for the last part. */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /** The s3 handler. */
+    final AmazonS3 s3;
+
+    /** The bucket the object is stored in. */
+    final String bucket;
+
+    /** The object key. */
+    final String key;
+
+    /** The pool the parts are uploaded on. */
+    final ExecutorService pool;
+
+    /** The inFlight permits bound the parts held in memory. */
+    final Semaphore inFlight;
+
+    /** The pending parts, in part number order. */
+    final List<Future<PartETag>> parts = new Vector<Future<PartETag>>();
+
+    /** The uploadId assigned by S3 when the upload begins. */
+    String uploadId = null;
+
+    /** The next part number. S3 numbers parts from 1. */
+    int nextPart = 1;
+
+    /** The first failure seen by a part upload, if any. */
+    volatile Exception failure = null;
+
+    /**
+     * The constructor.
+     *
+     * @param s3client the Amazon S3 handler
+     * @param bucketName the bucket to store the object in
+     * @param objectKey the object key
+     * @param partPool the pool to upload parts on
+     * @param maxInFlight the most parts to hold in memory at once
+     */
+    public MultipartUpload(final AmazonS3 s3client, final String bucketName,
+            final String objectKey, final ExecutorService partPool,
+            final int maxInFlight) {
+        s3 = s3client;
+        bucket = bucketName;
+        key = objectKey;
+        pool = partPool;
+        inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * Starts the multipart upload with S3.
+     *
+     * @param meta the object metadata, null for none
+     * @throws IOException if S3 refuses the upload
+     */
+    public void begin(final ObjectMetadata meta) throws IOException {
+        try {
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucket, key, 
+                        (null == meta) ? new ObjectMetadata() : meta))
+                .getUploadId();
+        } catch (final AmazonClientException ace) {
+            throw new IOException("Failed to start multipart upload of " + key
+                    + ": " + ace.getMessage(), ace);
+        }
+    }
+
+    /**
+     * Queues a part for upload. Blocks while maxInFlight parts are already
+     * pending. The buffer is owned by this upload after the call and is
+     * closed once the part is sent.
+     *
+     * @param data the part content
+     * @throws IOException if an earlier part failed or the wait is interrupted
+     */
+    public void submitPart(final SegmentBuffer data) throws IOException {
+        if (null != failure) {
+            data.close();
+            throw new IOException("Multipart upload of " + key + " failed", 
+                    failure);
+        }
+        try {
+            inFlight.acquire();
+        } catch (final InterruptedException e) {
+            data.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        }
+
+        final int partNumber = nextPart++;
+        // set by whichever comes first, the upload or a cancel before it 
+        // ran, and that one owns the buffer
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        final FutureTask<PartETag> part = new FutureTask<PartETag>(
+                new Callable<PartETag>() {
+                    @Override
+                    public PartETag call() throws Exception {
+                        if (!claimed.compareAndSet(false, true)) {
+                            return null;
+                        }
+                        try {
+                            return s3.uploadPart(new UploadPartRequest()
+                                    .withBucketName(bucket).withKey(key)
+                                    .withUploadId(uploadId)
+                                    .withPartNumber(partNumber)
+                                    .withInputStream(data.newInputStream())
+                                    .withPartSize(data.size()))
+                                .getPartETag();
+                        } catch (final Exception e) {
+                            failure = e;
+                            throw e;
+                        } finally {
+                            data.close();
+                            inFlight.release();
+                        }
+                    }
+                }) {
+                @Override
+                protected void done() {
+                    // a part cancelled while queued never runs, so its 
+                    // segments and spill file are given back here
+                    if (claimed.compareAndSet(false, true)) {
+                        data.close();
+                        inFlight.release();
+                    }
+                }
+            };
+        try {
+            pool.execute(part);
+            parts.add(part);
+        } catch (final RuntimeException e) {
+            if (claimed.compareAndSet(false, true)) {
+                data.close();
+                inFlight.release();
+            }
+            throw new IOException("Failed to queue part " + partNumber 
+                    + " of " + key, e);
+        }
+    }
+
+    /**
+     * Waits for every part and commits the object. The upload is aborted if
+     * any part failed.
+     *
+     * @return the ETag of the new object
+     * @throws IOException if a part or the commit failed
+     */
+    public String complete() throws IOException {
+        final List<PartETag> etags = new Vector<PartETag>();
+        try {
+            for (final Future<PartETag> part : parts) {
+                etags.add(part.get());
+            }
+            return s3.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, key, uploadId,
+                        etags)).getETag();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        } catch (final ExecutionException e) {
+            abort();
+            throw new IOException("Part upload of " + key + " failed: " 
+                    + e.getCause().getMessage(), e.getCause());
+        } catch (final AmazonClientException ace) {
+            abort();
+            throw new IOException("Failed to complete upload of " + key + ": "
+                    + ace.getMessage(), ace);
+        }
+    }
+
+    /**
+     * Cancels the pending parts and tells S3 to discard the uploaded ones.
+     * Parts still queued release their buffers as they are cancelled, parts
+     * already running once their request ends.
+     */
+    public void abort() {
+        for (final Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        if (null == uploadId) {
+            return;
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, 
+                        key, uploadId));
+        } catch (final AmazonClientException ace) {
+            System.out.println("Failed to abort upload of " + key + ": " 
+                    + ace.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of parts submitted so far
+     */
+    public int getPartCount() {
+        return nextPart - 1;
+    }
+}
@@ -0,0 +1,478 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The ObjectCache keeps black (still encrypted) objects on disk, one version
+ * per bucket and key, with the ETag they were fetched at. A read sends the
+ * cached ETag in a conditional GET; if S3 answers that the object is
+ * unchanged the content is served from disk. Entries are evicted least
+ * recently used first once the cache is over its size cap.
+ *
+ * The cache only ever holds data as it is stored in S3, so it adds nothing
+ * an attacker could not already read from the bucket.
+ */
+public class ObjectCache {
+
+    /** The suffix of a cached object's content. */
+    static final String DATA_SUFFIX = ".bin";
+
+    /** The suffix of a cached object's description. */
+    static final String META_SUFFIX = ".meta";
+
+    /** The suffix of content still being fetched. */
+    static final String TEMP_SUFFIX = ".part";
+
+    /** The largest share of the cap one object may take. */
+    static final int MAX_OBJECT_SHARE = 4;
+
+    /**
+     * The Meta describes a cached object. It is stored next to the content.
+     */
+    static class Meta {
+
+        /** The bucket. */
+        String bucket;
+
+        /** The object key. */
+        String key;
+
+        /** The ETag of the cached version. */
+        String etag;
+
+        /** The stored size. */
+        long size;
+
+        /** The user metadata S3 returned with the object. */
+        Map<String, String> userMetadata;
+    }
+
+    /** The cache directory. */
+    final Path dir;
+
+    /** The size cap, in bytes. */
+    final long maxBytes;
+
+    /** The cached sizes by file id, least recently used first. */
+    final LinkedHashMap<String, Long> lru = 
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** The bytes held. */
+    long held = 0;
+
+    /** The reads served from disk. */
+    long hits = 0;
+
+    /** The reads that went to S3. */
+    long misses = 0;
+
+    /**
+     * The constructor. Objects left by an earlier run are kept, oldest 
+     * first in the eviction order.
+     *
+     * @param cacheDir the cache directory
+     * @param capBytes the size cap
+     * @throws IOException if the directory can't be created or read
+     */
+    public ObjectCache(final Path cacheDir, final long capBytes) 
+            throws IOException {
+        dir = cacheDir;
+        maxBytes = capBytes;
+        Files.createDirectories(dir);
+
+        final List<Path> found = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (final Path p : ds) {
+                final String n = p.getFileName().toString();
+                if (n.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(p);
+                } else if (n.endsWith(DATA_SUFFIX)) {
+                    found.add(p);
+                }
+            }
+        }
+        final Map<Path, FileTime> times = new LinkedHashMap<Path, FileTime>();
+        for (final Path p : found) {
+            times.put(p, Files.getLastModifiedTime(p));
+        }
+        Collections.sort(found, new Comparator<Path>() {
+            @Override
+            public int compare(final Path a, final Path b) {
+                return times.get(a).compareTo(times.get(b));
+            }
+        });
+        synchronized (this) {
+            for (final Path p : found) {
+                final String n = p.getFileName().toString();
+                final String id = n.substring(0, 
+                        n.length() - DATA_SUFFIX.length());
+                final long size = Files.size(p);
+                lru.put(id, size);
+                held += size;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Looks up the cached version of an object.
+     *
+     * @param bucket the bucket
+     * @param key the object key
+     * @return the description, null if not cached
+     */
+    public synchronized Meta lookup(final String bucket, final String key) {
+        final String id = idOf(bucket, key);
+        if (!lru.containsKey(id)) {
+            return null;
+        }
+        final Meta m = readMeta(id);
+        if (null == m || !bucket.equals(m.bucket) || !key.equals(m.key)) {
+            remove(bucket, key);
+            return null;
+        }
+        return m;
+    }
+
+    /**
+     * Opens the cached content of an object S3 reported unchanged, and 
+     * marks it recently used.
+     *
+     * @param m the description from lookup
+     * @return the content, null if it has since been evicted or replaced
+     */
+    public synchronized InputStream open(final Meta m) {
+        final String id = idOf(m.bucket, m.key);
+        if (null == lru.get(id)) {
+            return null;
+        }
+        // another reader may have cached a newer version meanwhile
+        final Meta current = readMeta(id);
+        if (null == current || !m.etag.equals(current.etag)) {
+            return null;
+        }
+        try {
+            final Path data = dir.resolve(id + DATA_SUFFIX);
+            Files.setLastModifiedTime(data, 
+                    FileTime.fromMillis(System.currentTimeMillis()));
+            final InputStream is = Files.newInputStream(data);
+            hits++;
+            return is;
+        } catch (final IOException e) {
+            remove(m.bucket, m.key);
+            return null;
+        }
+    }
+
+    /**
+     * Wraps content fetched from S3 so it is written into the cache as it 
+     * is read. The entry is committed once the whole object has been read;
+     * a stream closed early leaves the cache unchanged. Objects too large
+     * for the cache are passed through.
+     *
+     * @param m the description of the fetched version
+     * @param is the content
+     * @return the stream to read instead
+     */
+    public InputStream fill(final Meta m, final InputStream is) {
+        synchronized (this) {
+            misses++;
+        }
+        if (null == m.etag || m.size > maxBytes / MAX_OBJECT_SHARE) {
+            return is;
+        }
+        try {
+            return new FillStream(m, is);
+        } catch (final IOException e) {
+            System.out.println("Object cache: cannot cache " + m.key + ": "
+                    + e.getMessage());
+            return is;
+        }
+    }
+
+    /**
+     * Drops an object from the cache.
+     *
+     * @param bucket the bucket
+     * @param key the object key
+     */
+    public void remove(final String bucket, final String key) {
+        final String id = idOf(bucket, key);
+        synchronized (this) {
+            final Long size = lru.remove(id);
+            if (null != size) {
+                held -= size;
+            }
+            deleteFiles(id);
+        }
+    }
+
+    /**
+     * @return the hit and miss counts and the bytes held
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("object cache: %d hits, %d misses, %dB of %dB",
+                hits, misses, held, maxBytes);
+    }
+
+    /**
+     * Records a committed entry and evicts down to the cap.
+     *
+     * @param id the file id
+     * @param size the content size
+     */
+    synchronized void added(final String id, final long size) {
+        final Long old = lru.put(id, size);
+        held += size - (null == old ? 0 : old);
+        evict();
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its cap.
+     * The caller holds the lock.
+     */
+    void evict() {
+        final Iterator<Map.Entry<String, Long>> it = lru.entrySet().iterator();
+        while (held > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> e = it.next();
+            held -= e.getValue();
+            it.remove();
+            deleteFiles(e.getKey());
+        }
+    }
+
+    /**
+     * @param id a file id
+     * @return the stored description, null if missing or unreadable
+     */
+    Meta readMeta(final String id) {
+        try (Reader r = Files.newBufferedReader(dir.resolve(id + META_SUFFIX),
+                    StandardCharsets.UTF_8)) {
+            return new Gson().fromJson(r, Meta.class);
+        } catch (final IOException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param id a file id
+     */
+    void deleteFiles(final String id) {
+        try {
+            Files.deleteIfExists(dir.resolve(id + DATA_SUFFIX));
+            Files.deleteIfExists(dir.resolve(id + META_SUFFIX));
+        } catch (final IOException e) {
+            System.out.println("Object cache: failed to delete " + id);
+        }
+    }
+
+    /**
+     * @param bucket the bucket
+     * @param key the object key
+     * @return the file id of the object, safe for any key
+     */
+    static String idOf(final String bucket, final String key) {
+        final byte[] name = (bucket + "\n" + key)
+            .getBytes(StandardCharsets.UTF_8);
+        return DedupStore.hex(DedupStore.sha256(name, name.length));
+    }
+
+    /**
+     * The FillStream copies what is read into a temp file, and commits it
+     * to the cache when the last byte has been read.
+     */
+    class FillStream extends FilterInputStream {
+
+        /** The description of the object. */
+        final Meta meta;
+
+        /** The file id. */
+        final String id;
+
+        /** The temp file. */
+        final Path temp;
+
+        /** The temp file stream, null once committed or discarded. */
+        OutputStream copy;
+
+        /** The bytes read. */
+        long read = 0;
+
+        /**
+         * The constructor.
+         *
+         * @param m the description of the object
+         * @param is the content
+         * @throws IOException if the temp file can't be created
+         */
+        FillStream(final Meta m, final InputStream is) throws IOException {
+            super(is);
+            meta = m;
+            id = idOf(m.bucket, m.key);
+            temp = dir.resolve(id + "." + UUID.randomUUID() + TEMP_SUFFIX);
+            copy = Files.newOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                copied(new byte[] {(byte) b}, 0, 1);
+            } else {
+                commit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) 
+                throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                copied(b, off, n);
+            } else if (n < 0) {
+                commit();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped bytes can't be cached
+            discard();
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null != copy && read < meta.size 
+                    && in instanceof S3ObjectInputStream) {
+                // don't drain the rest of an abandoned object
+                ((S3ObjectInputStream) in).abort();
+            }
+            discard();
+            super.close();
+        }
+
+        /**
+         * Copies bytes read into the temp file.
+         *
+         * @param b the buffer
+         * @param off the offset
+         * @param n the number of bytes
+         */
+        void copied(final byte[] b, final int off, final int n) {
+            if (null == copy) {
+                return;
+            }
+            try {
+                copy.write(b, off, n);
+                read += n;
+                if (read == meta.size) {
+                    commit();
+                }
+            } catch (final IOException e) {
+                discard();
+            }
+        }
+
+        /**
+         * Moves the temp file into place once it holds the whole object.
+         */
+        void commit() {
+            if (null == copy) {
+                return;
+            }
+            if (read != meta.size) {
+                discard();
+                return;
+            }
+            try {
+                copy.close();
+                copy = null;
+                // content and description change together under the lock
+                synchronized (ObjectCache.this) {
+                    Files.move(temp, dir.resolve(id + DATA_SUFFIX),
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                    try (Writer w = new OutputStreamWriter(
+                                Files.newOutputStream(dir.resolve(id 
+                                        + META_SUFFIX)), 
+                                StandardCharsets.UTF_8)) {
+                        new Gson().toJson(meta, w);
+                    }
+                    added(id, read);
+                }
+            } catch (final IOException e) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (final IOException e1) {}
+                remove(meta.bucket, meta.key);
+            }
+        }
+
+        /**
+         * Drops the temp file.
+         */
+        void discard() {
+            if (null == copy) {
+                return;
+            }
+            try {
+                copy.close();
+            } catch (final IOException e) {}
+            copy = null;
+            try {
+                Files.deleteIfExists(temp);
+            } catch (final IOException e) {}
+        }
+    }
+}
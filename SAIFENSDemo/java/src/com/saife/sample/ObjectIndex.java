@@ -0,0 +1,272 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * The ObjectIndex keeps the keys of one bucket in memory. It is filled by a
+ * fully paginated listing, kept current by the uploads and deletes this
+ * application makes, and reloaded once it is older than its time to live.
+ * Lookups never go to the network. Uploads and deletes recorded while a
+ * reload lists the bucket are logged and replayed onto the new listing
+ * before it replaces the old one, so none of them is lost.
+ */
+public class ObjectIndex {
+
+    /**
+     * The Entry describes one object in the bucket.
+     */
+    public static class Entry {
+
+        /** The object key. */
+        public final String key;
+
+        /** The stored (encrypted) size in bytes. */
+        public final long size;
+
+        /** The last modified time. */
+        public final Date lastModified;
+
+        /** The ETag, null for objects recorded locally. */
+        public final String etag;
+
+        /**
+         * The constructor.
+         *
+         * @param k the key
+         * @param sz the size
+         * @param modified the last modified time
+         * @param tag the ETag
+         */
+        public Entry(final String k, final long sz, final Date modified, 
+                final String tag) {
+            key = k;
+            size = sz;
+            lastModified = modified;
+            etag = tag;
+        }
+    }
+
+    /**
+     * The Change is an upload or delete recorded while a load runs.
+     */
+    static class Change {
+
+        /** The object key. */
+        final String key;
+
+        /** The new entry, null for a removal. */
+        final Entry entry;
+
+        /**
+         * The constructor.
+         *
+         * @param k the key
+         * @param e the entry, null for a removal
+         */
+        Change(final String k, final Entry e) {
+            key = k;
+            entry = e;
+        }
+    }
+
+    /** The most keys S3 returns in one listing page. */
+    static final int PAGE_SIZE = 1000;
+
+    /** The bucket this index covers. */
+    final String bucket;
+
+    /** The entries, sorted by key like an S3 listing. */
+    volatile ConcurrentSkipListMap<String, Entry> entries = 
+        new ConcurrentSkipListMap<String, Entry>();
+
+    /**
+     * The changes recorded since the running load started, null while no
+     * load runs. Guarded by changes.
+     */
+    List<Change> pending = null;
+
+    /** The lock for pending and the swap of entries. */
+    final Object changes = new Object();
+
+    /** The time of the last full load, 0 if never loaded. */
+    volatile long loadedAt = 0;
+
+    /** The time to live of a load, in milliseconds. */
+    final long ttl;
+
+    /**
+     * The constructor.
+     *
+     * @param bucketName the bucket
+     * @param ttlMillis how long a full load stays valid
+     */
+    public ObjectIndex(final String bucketName, final long ttlMillis) {
+        bucket = bucketName;
+        ttl = ttlMillis;
+    }
+
+    /**
+     * @return true if the index has never been loaded or has expired
+     */
+    public boolean isStale() {
+        return 0 == loadedAt || System.currentTimeMillis() - loadedAt > ttl;
+    }
+
+    /**
+     * Reloads the index with a paginated listing of the whole bucket.
+     *
+     * @param s3 the Amazon S3 handler
+     */
+    public synchronized void load(final AmazonS3 s3) {
+        final ConcurrentSkipListMap<String, Entry> fresh = 
+            new ConcurrentSkipListMap<String, Entry>();
+        synchronized (changes) {
+            pending = new ArrayList<Change>();
+        }
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket).withMaxKeys(PAGE_SIZE));
+            while (true) {
+                for (final S3ObjectSummary os 
+                        : listing.getObjectSummaries()) {
+                    fresh.put(os.getKey(), new Entry(os.getKey(), 
+                                os.getSize(), os.getLastModified(), 
+                                os.getETag()));
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+            synchronized (changes) {
+                // the listing may predate what was recorded meanwhile
+                for (final Change c : pending) {
+                    if (null == c.entry) {
+                        fresh.remove(c.key);
+                    } else {
+                        fresh.put(c.key, c.entry);
+                    }
+                }
+                entries = fresh;
+            }
+            loadedAt = System.currentTimeMillis();
+        } finally {
+            synchronized (changes) {
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Forces a reload on the next use.
+     */
+    public void invalidate() {
+        loadedAt = 0;
+    }
+
+    /**
+     * @param key an object key
+     * @return true if the bucket holds the key
+     */
+    public boolean contains(final String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key an object key
+     * @return the entry for the key, null if absent
+     */
+    public Entry get(final String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records an object written by this application.
+     *
+     * @param key the object key
+     * @param size the stored size
+     */
+    public void put(final String key, final long size) {
+        put(key, size, null);
+    }
+
+    /**
+     * Records an object written by this application.
+     *
+     * @param key the object key
+     * @param size the stored size
+     * @param etag the ETag S3 returned, null if unknown
+     */
+    public void put(final String key, final long size, final String etag) {
+        record(key, new Entry(key, size, new Date(), etag));
+    }
+
+    /**
+     * Records an object deleted by this application.
+     *
+     * @param key the object key
+     */
+    public void remove(final String key) {
+        record(key, null);
+    }
+
+    /**
+     * Applies a change, and logs it for a load that is running.
+     *
+     * @param key the object key
+     * @param entry the new entry, null for a removal
+     */
+    void record(final String key, final Entry entry) {
+        synchronized (changes) {
+            if (null == entry) {
+                entries.remove(key);
+            } else {
+                entries.put(key, entry);
+            }
+            if (null != pending) {
+                pending.add(new Change(key, entry));
+            }
+        }
+    }
+
+    /**
+     * @return every key, in listing order
+     */
+    public List<String> keys() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * @return every entry, in listing order
+     */
+    public Collection<Entry> values() {
+        return entries.values();
+    }
+}
@@ -0,0 +1,350 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.gson.Gson;
+
+/**
+ * The ParallelUpload encrypts a large file on every core. The input is read
+ * in segments of at least one part; each segment is encrypted on a
+ * fork-join pool as independent chunks with their own encrypt streams, and
+ * the sealed segments are uploaded as the parts of one multipart upload, in
+ * order. The object uses the ChunkedStore layout, so it is read back, and
+ * decrypted concurrently, by the chunked reader.
+ */
+public class ParallelUpload {
+
+    /**
+     * The Sealed segment holds the ciphertext of a segment's chunks and
+     * where each chunk ends.
+     */
+    static class Sealed {
+
+        /** The ciphertext of every chunk, back to back. */
+        final SegmentBuffer data;
+
+        /** The ciphertext length of each chunk. */
+        final int[] lengths;
+
+        /** The plain text length of each chunk. */
+        final int[] plainLengths;
+
+        /**
+         * The constructor.
+         *
+         * @param buffer the ciphertext buffer
+         * @param chunks the number of chunks
+         */
+        Sealed(final SegmentBuffer buffer, final int chunks) {
+            data = buffer;
+            lengths = new int[chunks];
+            plainLengths = new int[chunks];
+        }
+    }
+
+    /** The S3 manager. */
+    final S3Manager s3m;
+
+    /** The pool the segments are encrypted on. */
+    final ForkJoinPool pool;
+
+    /** The plain text chunk size. */
+    final int chunkSize;
+
+    /** The plain text segment size, a whole number of chunks. */
+    final int segmentSize;
+
+    /**
+     * The constructor. Segments are at least one multipart part, so every
+     * part but the last meets the S3 minimum.
+     *
+     * @param manager the S3 manager
+     * @param cryptoPool the pool to encrypt on
+     * @param plainChunkSize the plain text chunk size
+     * @param partSize the multipart part size
+     */
+    public ParallelUpload(final S3Manager manager, 
+            final ForkJoinPool cryptoPool, final int plainChunkSize,
+            final int partSize) {
+        s3m = manager;
+        pool = cryptoPool;
+        chunkSize = plainChunkSize;
+        final int min = Math.max(MultipartUpload.MIN_PART_SIZE, partSize);
+        segmentSize = ((min + chunkSize - 1) / chunkSize) * chunkSize;
+    }
+
+    /**
+     * Uploads a stream. Up to one segment per pool thread, plus one, is 
+     * encrypted at a time, and the multipart upload bounds the sealed 
+     * segments waiting to be sent. The plain text segments are reserved 
+     * from the memory budget.
+     *
+     * @param in the content, left open
+     * @param key the object key
+     * @return true if the upload worked
+     */
+    public boolean upload(final InputStream in, final String key) {
+        final SaifeManager saife = s3m.getSaife();
+        final MultipartUpload multipart = new MultipartUpload(
+                s3m.getS3Mgr(), s3m.getBucket(), key, saife.getPartPool(),
+                saife.partsInFlight);
+        final Deque<ForkJoinTask<Sealed>> sealing = 
+            new ArrayDeque<ForkJoinTask<Sealed>>();
+        final ChunkedStore.Index index = new ChunkedStore.Index();
+        index.chunkSize = chunkSize;
+        final long[] offset = new long[1];
+        final long started = System.nanoTime();
+        final List<MemoryBudget.Reservation> held = 
+            new ArrayList<MemoryBudget.Reservation>();
+
+        try {
+            final ObjectMetadata meta = new ObjectMetadata();
+            final Map<String, String> user = meta.getUserMetadata();
+            user.put(StoredObject.LAYOUT, ChunkedStore.LAYOUT);
+            meta.setUserMetadata(user);
+            multipart.begin(meta);
+
+            while (true) {
+                final MemoryBudget.Reservation r = 
+                    reserveSegment(multipart, index, offset, sealing);
+                held.add(r);
+                final byte[] plain = new byte[segmentSize];
+                final int len = S3Manager.readFully(in, plain);
+                if (len <= 0) {
+                    r.release();
+                    break;
+                }
+                sealing.add(pool.submit(new Callable<Sealed>() {
+                    @Override
+                    public Sealed call() throws IOException {
+                        try {
+                            return seal(plain, len);
+                        } finally {
+                            r.release();
+                        }
+                    }
+                }));
+                // the newest segment is held back, the index goes out in
+                // the last part
+                while (sealing.size() > pool.getParallelism() + 1) {
+                    ship(multipart, index, offset, sealing.poll().join(), 
+                            false);
+                }
+            }
+            while (sealing.size() > 1) {
+                ship(multipart, index, offset, sealing.poll().join(), false);
+            }
+            final Sealed last = sealing.isEmpty() 
+                ? new Sealed(new SegmentBuffer(saife.directBuffers), 0)
+                : sealing.poll().join();
+            ship(multipart, index, offset, last, true);
+
+            final String etag = multipart.complete();
+            s3m.recordObject(s3m.getBucket(), key, offset[0], etag);
+        } catch (final IOException e) {
+            System.out.println("Failed to upload " + key + ": " 
+                    + e.getMessage());
+            discard(sealing);
+            multipart.abort();
+            return false;
+        } catch (final RuntimeException e) {
+            // a failed segment surfaces from join() unchecked
+            final Throwable cause = (null == e.getCause()) ? e : e.getCause();
+            System.out.println("Failed to upload " + key + ": " 
+                    + cause.getMessage());
+            discard(sealing);
+            multipart.abort();
+            return false;
+        } finally {
+            // segments still sealing when a failure discards them
+            for (final MemoryBudget.Reservation r : held) {
+                r.release();
+            }
+        }
+
+        final double secs = (System.nanoTime() - started) / 1e9;
+        System.out.format("parallel: %s %d parts, %d chunks, %dB in %.2fs "
+                + "(%.1f MB/s on %d threads)%n", key, 
+                multipart.getPartCount(), index.chunks.size(), index.size,
+                secs, index.size / 1048576.0 / Math.max(secs, 1e-9),
+                pool.getParallelism());
+        return true;
+    }
+
+    /**
+     * Reserves the plain text of the next segment from the memory budget. 
+     * While there is no room, the oldest sealed segment is shipped to make
+     * some; with nothing left to ship the segment goes over the cap rather 
+     * than wait on memory held elsewhere.
+     *
+     * @param multipart the upload
+     * @param index the index being built
+     * @param offset the object length so far, updated
+     * @param sealing the segments being sealed, oldest first
+     * @return the reservation
+     * @throws IOException if interrupted, or a part can't be queued
+     */
+    MemoryBudget.Reservation reserveSegment(final MultipartUpload multipart,
+            final ChunkedStore.Index index, final long[] offset, 
+            final Deque<ForkJoinTask<Sealed>> sealing) throws IOException {
+        final MemoryBudget budget = MemoryBudget.global();
+        while (true) {
+            final MemoryBudget.Reservation r = 
+                budget.hold(segmentSize, budget.spillWait);
+            if (null != r) {
+                return r;
+            }
+            // the newest segment stays back for the last part
+            if (sealing.size() <= 1) {
+                return budget.holdOver(segmentSize);
+            }
+            ship(multipart, index, offset, sealing.poll().join(), false);
+        }
+    }
+
+    /**
+     * Encrypts a segment as independent chunks. Runs on the pool.
+     *
+     * @param plain the plain text
+     * @param len the number of bytes to use
+     * @return the sealed segment
+     * @throws IOException if encryption fails
+     */
+    Sealed seal(final byte[] plain, final int len) throws IOException {
+        final SaifeManager saife = s3m.getSaife();
+        final int chunks = (len + chunkSize - 1) / chunkSize;
+        final Sealed sealed = new Sealed(
+                new SegmentBuffer(saife.directBuffers), chunks);
+        final OutputStream keep = keepOpen(sealed.data);
+        try {
+            for (int i = 0; i < chunks; i++) {
+                final int from = i * chunkSize;
+                final int n = Math.min(chunkSize, len - from);
+                final long before = sealed.data.size();
+                final OutputStream os = saife.openEncryptStream(keep);
+                os.write(plain, from, n);
+                os.close();
+                sealed.lengths[i] = (int) (sealed.data.size() - before);
+                sealed.plainLengths[i] = n;
+            }
+        } catch (final IOException e) {
+            sealed.data.close();
+            throw e;
+        }
+        return sealed;
+    }
+
+    /**
+     * Adds a sealed segment's chunks to the index and submits it as the 
+     * next part. The last part also carries the encrypted index and the
+     * trailer.
+     *
+     * @param multipart the upload
+     * @param index the index being built
+     * @param offset the object length so far, updated
+     * @param sealed the segment
+     * @param last true for the last part
+     * @throws IOException if the part can't be queued
+     */
+    void ship(final MultipartUpload multipart, final ChunkedStore.Index index,
+            final long[] offset, final Sealed sealed, final boolean last) 
+            throws IOException {
+        final long partStart = offset[0];
+        for (int i = 0; i < sealed.lengths.length; i++) {
+            final ChunkedStore.Chunk c = new ChunkedStore.Chunk();
+            c.offset = offset[0];
+            c.length = sealed.lengths[i];
+            c.plainLength = sealed.plainLengths[i];
+            index.chunks.add(c);
+            index.size += c.plainLength;
+            offset[0] += c.length;
+        }
+        if (last) {
+            try {
+                final byte[] json = new Gson().toJson(index)
+                    .getBytes(StandardCharsets.UTF_8);
+                final long at = offset[0];
+                final OutputStream os = s3m.getSaife().openEncryptStream(
+                        keepOpen(sealed.data));
+                os.write(json);
+                os.close();
+                sealed.data.write(ByteBuffer.allocate(ChunkedStore.TRAILER)
+                        .putLong(at).array());
+            } catch (final IOException e) {
+                sealed.data.close();
+                throw e;
+            }
+            offset[0] = partStart + sealed.data.size();
+        }
+        multipart.submitPart(sealed.data);
+    }
+
+    /**
+     * Cancels the segments still being encrypted and frees the sealed ones.
+     *
+     * @param sealing the pending segments
+     */
+    static void discard(final Deque<ForkJoinTask<Sealed>> sealing) {
+        for (final ForkJoinTask<Sealed> task : sealing) {
+            task.cancel(true);
+            if (task.isDone() && !task.isCompletedAbnormally()) {
+                task.getRawResult().data.close();
+            }
+        }
+        sealing.clear();
+    }
+
+    /**
+     * Wraps a segment buffer so closing an encrypt stream over it does not
+     * release its segments.
+     *
+     * @param data the buffer
+     * @return a stream that writes to the buffer and ignores close
+     */
+    static OutputStream keepOpen(final SegmentBuffer data) {
+        return new FilterOutputStream(data) {
+            @Override
+            public void write(final byte[] b, final int off, final int n) 
+                    throws IOException {
+                out.write(b, off, n);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
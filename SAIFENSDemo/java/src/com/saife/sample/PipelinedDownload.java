@@ -0,0 +1,459 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.saife.dar.NetworkShare;
+
+/**
+ * The PipelinedDownload moves an object from S3 to a file in three stages
+ * that run at the same time: a prefetch thread fills a bounded ring of large
+ * buffers from the S3 content stream, the calling thread decrypts from that
+ * ring, and a writer thread flushes the plain text to a channel. Network
+ * latency, decryption and disk writes then overlap instead of adding up.
+ * The rings are reserved from the global MemoryBudget as a whole before
+ * they are allocated, so a download never holds part of them while waiting.
+ */
+public class PipelinedDownload {
+
+    /**
+     * The Block is one buffer moving through a ring. A negative length marks
+     * the end of the stream.
+     */
+    static class Block {
+
+        /** The data. */
+        final byte[] data;
+
+        /** The number of valid bytes, -1 at the end of the stream. */
+        int len;
+
+        /**
+         * The constructor.
+         *
+         * @param size the buffer size
+         */
+        Block(final int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * The StageStats tracks how many bytes a stage moved and how long it took.
+     */
+    public static class StageStats {
+
+        /** The stage name. */
+        final String name;
+
+        /** The bytes moved by the stage. */
+        volatile long bytes = 0;
+
+        /** The nanoseconds the stage spent on its own work. */
+        volatile long busyNanos = 0;
+
+        /**
+         * The constructor.
+         *
+         * @param stage the stage name
+         */
+        StageStats(final String stage) {
+            name = stage;
+        }
+
+        /**
+         * @return the throughput while busy, in MB/s
+         */
+        public double getThroughput() {
+            return (0 == busyNanos) ? 0 
+                : (bytes / (1024.0 * 1024.0)) / (busyNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %12d B %10.1f MB/s", name, bytes, 
+                    getThroughput());
+        }
+    }
+
+    /** The raw (encrypted) object content. */
+    final InputStream source;
+
+    /** The NetworkShare used to decrypt. */
+    final NetworkShare ns;
+
+    /** The channel to write to, a file or a stream such as stdout. */
+    final WritableByteChannel out;
+
+    /** The empty buffers of the fetch ring. */
+    final BlockingQueue<Block> fetchFree;
+
+    /** The filled buffers of the fetch ring. */
+    final BlockingQueue<Block> fetched;
+
+    /** The empty buffers of the write ring. */
+    final BlockingQueue<Block> writeFree;
+
+    /** The filled buffers of the write ring. */
+    final BlockingQueue<Block> decrypted;
+
+    /** The size of each ring buffer. */
+    final int blockSize;
+
+    /** The number of buffers in each ring. */
+    final int ringSize;
+
+    /** The prefetch stage statistics. */
+    final StageStats fetchStats = new StageStats("prefetch");
+
+    /** The decrypt stage statistics. */
+    final StageStats decryptStats = new StageStats("decrypt");
+
+    /** The write stage statistics. */
+    final StageStats writeStats = new StageStats("write");
+
+    /** The first failure of any stage. */
+    volatile Exception failure = null;
+
+    /**
+     * The constructor.
+     *
+     * @param raw the encrypted object content, closed by run()
+     * @param share the NetworkShare to decrypt with
+     * @param file the channel to write the plain text to
+     * @param bufferSize the size of each ring buffer
+     * @param depth the number of buffers in each ring
+     */
+    public PipelinedDownload(final InputStream raw, final NetworkShare share,
+            final WritableByteChannel file, final int bufferSize, 
+            final int depth) {
+        source = raw;
+        ns = share;
+        out = file;
+        final int n = Math.max(2, depth);
+        blockSize = bufferSize;
+        ringSize = n;
+        fetchFree = new ArrayBlockingQueue<Block>(n);
+        fetched = new ArrayBlockingQueue<Block>(n);
+        writeFree = new ArrayBlockingQueue<Block>(n);
+        decrypted = new ArrayBlockingQueue<Block>(n);
+    }
+
+    /**
+     * Runs the pipeline to completion. Decryption runs on the calling thread.
+     *
+     * @throws IOException if any stage fails
+     */
+    public void run() throws IOException {
+        final MemoryBudget budget = MemoryBudget.GLOBAL;
+        final long rings = 2L * ringSize * blockSize;
+        budget.reserve(rings);
+        try {
+            for (int i = 0; i < ringSize; i++) {
+                fetchFree.add(new Block(blockSize));
+                writeFree.add(new Block(blockSize));
+            }
+            runStages();
+        } finally {
+            fetchFree.clear();
+            writeFree.clear();
+            fetched.clear();
+            decrypted.clear();
+            budget.release(rings);
+        }
+    }
+
+    /**
+     * Runs the three stages over the allocated rings.
+     *
+     * @throws IOException if any stage fails
+     */
+    void runStages() throws IOException {
+        final DaemonThreadFactory threads = 
+            new DaemonThreadFactory("s3-pipeline");
+        final Thread fetcher = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        });
+        final Thread writer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+        fetcher.start();
+        writer.start();
+
+        InputStream is = null;
+        try {
+            // same lock as SaifeManager.openDecryptStream
+            synchronized (ns) {
+                is = ns.getDecryptStream(new RingInputStream());
+            }
+            while (true) {
+                final Block b = take(writeFree);
+                final long start = System.nanoTime();
+                final int size = readFully(is, b.data);
+                decryptStats.busyNanos += System.nanoTime() - start;
+                if (size <= 0) {
+                    b.len = -1;
+                    decrypted.put(b);
+                    break;
+                }
+                decryptStats.bytes += size;
+                b.len = size;
+                decrypted.put(b);
+            }
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("Download interrupted"));
+        } catch (final IOException e) {
+            fail(e);
+        } finally {
+            if (null != failure) {
+                fetcher.interrupt();
+                writer.interrupt();
+                closeSource();
+            }
+            try {
+                if (null != is) {
+                    is.close();
+                }
+            } catch (final IOException e) {}
+            try {
+                fetcher.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (null != failure) {
+            throw (failure instanceof IOException) ? (IOException) failure 
+                : new IOException(failure);
+        }
+    }
+
+    /**
+     * @return the statistics of the prefetch, decrypt and write stages
+     */
+    public StageStats[] getStats() {
+        return new StageStats[] { fetchStats, decryptStats, writeStats };
+    }
+
+    /**
+     * The prefetch stage. Fills the fetch ring from the S3 content stream.
+     */
+    void prefetch() {
+        try {
+            while (true) {
+                final Block b = fetchFree.take();
+                final long start = System.nanoTime();
+                final int size = readFully(source, b.data);
+                fetchStats.busyNanos += System.nanoTime() - start;
+                if (size <= 0) {
+                    b.len = -1;
+                    fetched.put(b);
+                    break;
+                }
+                fetchStats.bytes += size;
+                b.len = size;
+                fetched.put(b);
+            }
+        } catch (final InterruptedException e) {
+            // the pipeline has failed, stop quietly
+        } catch (final IOException e) {
+            fail(e);
+        } finally {
+            closeSource();
+        }
+    }
+
+    /**
+     * The write stage. Flushes the write ring to the file.
+     */
+    void write() {
+        try {
+            while (true) {
+                final Block b = decrypted.take();
+                if (b.len < 0) {
+                    break;
+                }
+                final long start = System.nanoTime();
+                final ByteBuffer bb = ByteBuffer.wrap(b.data, 0, b.len);
+                while (bb.hasRemaining()) {
+                    out.write(bb);
+                }
+                writeStats.busyNanos += System.nanoTime() - start;
+                writeStats.bytes += b.len;
+                writeFree.put(b);
+            }
+        } catch (final InterruptedException e) {
+            // the pipeline has failed, stop quietly
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records the first failure and unblocks the decrypt stage.
+     *
+     * @param e the failure
+     */
+    void fail(final Exception e) {
+        synchronized (this) {
+            if (null == failure) {
+                failure = e;
+            }
+        }
+        // an end marker stops a decrypt stage waiting on either ring, and
+        // clearing the write ring frees a decrypt stage stuck handing off
+        final Block end = new Block(0);
+        end.len = -1;
+        decrypted.clear();
+        fetched.offer(end);
+        writeFree.offer(end);
+    }
+
+    /**
+     * Closes the S3 stream, aborting the connection if unread data is left.
+     */
+    void closeSource() {
+        try {
+            if (null != failure && source instanceof S3ObjectInputStream) {
+                ((S3ObjectInputStream) source).abort();
+            }
+            source.close();
+        } catch (final IOException e) {}
+    }
+
+    /**
+     * Takes a buffer from a ring, giving up if the pipeline failed.
+     *
+     * @param ring the ring
+     * @return a buffer
+     * @throws InterruptedException if interrupted
+     * @throws IOException if the pipeline failed
+     */
+    Block take(final BlockingQueue<Block> ring) 
+            throws InterruptedException, IOException {
+        final Block b = ring.take();
+        if (null != failure) {
+            throw new IOException("Download failed", failure);
+        }
+        return b;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @param is the stream
+     * @param buf the buffer
+     * @return the number of bytes read, 0 at the end of the stream
+     * @throws IOException if the read fails
+     */
+    static int readFully(final InputStream is, final byte[] buf) 
+            throws IOException {
+        int total = 0;
+        while (total < buf.length) {
+            final int n = is.read(buf, total, buf.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * The RingInputStream feeds the decrypt stream from the fetch ring.
+     */
+    class RingInputStream extends InputStream {
+
+        /** The block being read. */
+        Block block = null;
+
+        /** The read position in block. */
+        int pos = 0;
+
+        /** The eof flag. */
+        boolean eof = false;
+
+        /**
+         * Makes sure there is something to read.
+         *
+         * @return false at the end of the stream
+         * @throws IOException if the pipeline failed
+         */
+        boolean fill() throws IOException {
+            while (!eof && (null == block || pos >= block.len)) {
+                if (null != block) {
+                    fetchFree.offer(block);
+                    block = null;
+                }
+                try {
+                    final Block b = take(fetched);
+                    if (b.len < 0) {
+                        eof = true;
+                    } else {
+                        block = b;
+                        pos = 0;
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                }
+            }
+            return !eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block.data[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) 
+                throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, block.len - pos);
+            System.arraycopy(block.data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
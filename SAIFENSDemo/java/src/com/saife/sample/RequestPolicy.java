@@ -0,0 +1,446 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * The RequestPolicy wraps S3 calls with retries and hedging. Retryable
+ * failures (throttling, 5xx responses, dropped connections) are retried
+ * with exponential backoff and full jitter. A GET that has not answered
+ * within a high percentile of recent GET latencies gets a duplicate request,
+ * and whichever answers first is used; the other is aborted. Latencies are
+ * tracked per operation, so the hedge threshold follows the endpoint.
+ */
+public class RequestPolicy {
+
+    /**
+     * The LatencyTracker keeps the most recent latencies of one operation.
+     */
+    static class LatencyTracker {
+
+        /** The number of samples kept. */
+        static final int WINDOW = 256;
+
+        /** The samples, in nanoseconds, as a ring. */
+        final long[] samples = new long[WINDOW];
+
+        /** The number of samples ever recorded. */
+        long count = 0;
+
+        /**
+         * @param nanos a latency
+         */
+        synchronized void record(final long nanos) {
+            samples[(int) (count++ % WINDOW)] = nanos;
+        }
+
+        /**
+         * @return the number of samples held
+         */
+        synchronized int size() {
+            return (int) Math.min(count, WINDOW);
+        }
+
+        /**
+         * @param pct a percentile, 0 to 100
+         * @return the latency at the percentile, 0 with no samples
+         */
+        synchronized long percentile(final int pct) {
+            final int n = size();
+            if (0 == n) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(samples, n);
+            Arrays.sort(sorted);
+            final int rank = (int) Math.ceil(pct / 100.0 * n) - 1;
+            return sorted[Math.max(0, Math.min(n - 1, rank))];
+        }
+    }
+
+    /** The operation each GET attempt's time to first byte is kept under. */
+    static final String ATTEMPT = "get-ttfb";
+
+    /** The winner a hedged GET sets when it gives up, so late answers abort. */
+    static final Object ABANDONED = new Object();
+
+    /** The samples needed before the hedge threshold is trusted. */
+    static final int MIN_SAMPLES = 20;
+
+    /** The hedge delay used until enough samples are in. */
+    static final long DEFAULT_HEDGE_MILLIS = 1000;
+
+    /** The shortest hedge delay, so fast endpoints are not doubled up. */
+    static final long MIN_HEDGE_MILLIS = 50;
+
+    /** The S3 client. */
+    final AmazonS3 s3;
+
+    /** The threads GET attempts run on. */
+    final ExecutorService pool = Executors.newCachedThreadPool(
+            new DaemonThreadFactory("s3-get"));
+
+    /** The latency trackers, by operation. */
+    final Map<String, LatencyTracker> latencies = 
+        new TreeMap<String, LatencyTracker>();
+
+    /** The jitter source. */
+    final Random random = new Random();
+
+    /** The most attempts per call. */
+    int maxAttempts = 4;
+
+    /** The first backoff, in milliseconds. */
+    long baseBackoff = 100;
+
+    /** The largest backoff, in milliseconds. */
+    long maxBackoff = 5000;
+
+    /** The percentile of GET latency after which a hedge is sent. */
+    int hedgePercentile = 95;
+
+    /** The hedging flag. */
+    boolean hedging = true;
+
+    /** The number of retries made. */
+    final AtomicLong retries = new AtomicLong();
+
+    /** The number of hedges sent. */
+    final AtomicLong hedges = new AtomicLong();
+
+    /** The number of hedges that answered first. */
+    final AtomicLong hedgeWins = new AtomicLong();
+
+    /** The number of throttled attempts, shared with the adaptive batches. */
+    final AtomicLong throttles;
+
+    /**
+     * The constructor.
+     *
+     * @param client the S3 client
+     */
+    public RequestPolicy(final AmazonS3 client) {
+        this(client, new AtomicLong());
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param client the S3 client
+     * @param throttleCount the counter throttled attempts are added to
+     */
+    public RequestPolicy(final AmazonS3 client, 
+            final AtomicLong throttleCount) {
+        s3 = client;
+        throttles = throttleCount;
+    }
+
+    /**
+     * Sets the retry limits.
+     *
+     * @param attempts the most attempts per call
+     * @param baseMillis the first backoff
+     * @param maxMillis the largest backoff
+     */
+    public void setRetries(final int attempts, final long baseMillis, 
+            final long maxMillis) {
+        maxAttempts = Math.max(1, attempts);
+        baseBackoff = baseMillis;
+        maxBackoff = maxMillis;
+    }
+
+    /**
+     * Sets when GETs are hedged.
+     *
+     * @param enabled false to never send a duplicate GET
+     * @param percentile the latency percentile to wait for first
+     */
+    public void setHedging(final boolean enabled, final int percentile) {
+        hedging = enabled;
+        hedgePercentile = percentile;
+    }
+
+    /**
+     * Runs a call, retrying retryable failures with backoff.
+     *
+     * @param op the operation name its latency is tracked under
+     * @param call the call
+     * @param <T> the result type
+     * @return the result
+     * @throws AmazonClientException if the call failed for good
+     * @throws InterruptedIOException if interrupted while backing off
+     */
+    public <T> T execute(final String op, final Callable<T> call) 
+            throws InterruptedIOException {
+        for (int attempt = 1; ; attempt++) {
+            final long start = System.nanoTime();
+            try {
+                final T result = call.call();
+                tracker(op).record(System.nanoTime() - start);
+                return result;
+            } catch (final AmazonClientException ace) {
+                if (isThrottle(ace)) {
+                    throttles.incrementAndGet();
+                }
+                if (attempt >= maxAttempts || !isRetryable(ace)) {
+                    throw ace;
+                }
+                retries.incrementAndGet();
+                backoff(attempt);
+            } catch (final InterruptedIOException e) {
+                throw e;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + op);
+            } catch (final Exception e) {
+                throw new AmazonClientException(op + " failed: " 
+                        + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Fetches an object, with retries and hedging.
+     *
+     * @param req the request
+     * @return the object, null if a constraint in the request was not met
+     * @throws AmazonClientException if the GET failed for good
+     * @throws InterruptedIOException if interrupted
+     */
+    public S3Object getObject(final GetObjectRequest req) 
+            throws InterruptedIOException {
+        return execute("get", new Callable<S3Object>() {
+            @Override
+            public S3Object call() throws Exception {
+                return hedging ? hedgedGet(req) : s3.getObject(req);
+            }
+        });
+    }
+
+    /**
+     * Sends a GET, and a second one if the first is slow. The first answer
+     * wins; an answer that arrives after the winner is aborted. If the 
+     * caller gives up, e.g. when interrupted, an answer that already won is
+     * aborted here, and any later one aborts itself.
+     *
+     * @param req the request
+     * @return the object of the first answer
+     * @throws Exception the failure if every attempt failed
+     */
+    S3Object hedgedGet(final GetObjectRequest req) throws Exception {
+        final AtomicReference<Object> winner = new AtomicReference<Object>();
+        final CompletionService<S3Object> cs = 
+            new ExecutorCompletionService<S3Object>(pool);
+
+        boolean returned = false;
+        try {
+            cs.submit(attempt(req, winner, false));
+            Future<S3Object> done = 
+                cs.poll(hedgeDelay(), TimeUnit.MILLISECONDS);
+            int pending = 1;
+            if (null == done) {
+                hedges.incrementAndGet();
+                cs.submit(attempt(req, winner, true));
+                pending++;
+            }
+
+            Exception failure = null;
+            while (pending > 0) {
+                if (null == done) {
+                    done = cs.take();
+                }
+                pending--;
+                try {
+                    final S3Object o = done.get();
+                    returned = true;
+                    return o;
+                } catch (final ExecutionException e) {
+                    failure = (e.getCause() instanceof Exception) 
+                        ? (Exception) e.getCause() : e;
+                } finally {
+                    done = null;
+                }
+            }
+            throw failure;
+        } finally {
+            if (!returned) {
+                final Object w = winner.getAndSet(ABANDONED);
+                if (w instanceof S3Object) {
+                    ((S3Object) w).getObjectContent().abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes one GET attempt and records its time to first byte, which S3
+     * reaches when getObject returns with the headers. An attempt that 
+     * loses the race aborts its own response, so the connection is not
+     * drained.
+     *
+     * @param req the request
+     * @param winner set to its object by the first attempt to answer
+     * @param hedge true for the duplicate request
+     * @return the attempt
+     */
+    Callable<S3Object> attempt(final GetObjectRequest req, 
+            final AtomicReference<Object> winner, final boolean hedge) {
+        return new Callable<S3Object>() {
+            @Override
+            public S3Object call() {
+                final long start = System.nanoTime();
+                final S3Object o = s3.getObject(req);
+                // losers count too, they are what the threshold is about
+                tracker(ATTEMPT).record(System.nanoTime() - start);
+                if (!winner.compareAndSet(null, (null == o) ? this : o)) {
+                    if (null != o) {
+                        o.getObjectContent().abort();
+                    }
+                    throw new AmazonClientException("hedged GET lost");
+                }
+                if (hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+                return o;
+            }
+        };
+    }
+
+    /**
+     * @return how long to wait for a GET before hedging, in milliseconds
+     */
+    long hedgeDelay() {
+        final LatencyTracker t = tracker(ATTEMPT);
+        if (t.size() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_MILLIS, 
+                TimeUnit.NANOSECONDS.toMillis(t.percentile(hedgePercentile)));
+    }
+
+    /**
+     * Sleeps before a retry, for a random time up to an exponentially 
+     * growing cap.
+     *
+     * @param attempt the attempt that failed, from 1
+     * @throws InterruptedIOException if interrupted
+     */
+    void backoff(final int attempt) throws InterruptedIOException {
+        final long cap = Math.min(maxBackoff, 
+                baseBackoff << Math.min(attempt - 1, 20));
+        final long sleep;
+        synchronized (random) {
+            sleep = (long) (random.nextDouble() * cap);
+        }
+        try {
+            Thread.sleep(sleep);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during backoff");
+        }
+    }
+
+    /**
+     * @param ace a failure
+     * @return true if the call may succeed when repeated
+     */
+    static boolean isRetryable(final AmazonClientException ace) {
+        if (ace instanceof AmazonServiceException) {
+            final AmazonServiceException ase = (AmazonServiceException) ace;
+            final int status = ase.getStatusCode();
+            return status >= 500 || 429 == status 
+                || "SlowDown".equals(ase.getErrorCode())
+                || "RequestTimeout".equals(ase.getErrorCode());
+        }
+        return ace.isRetryable();
+    }
+
+    /**
+     * @param e the failure of an attempt, or null
+     * @return true if S3 asked the client to slow down
+     */
+    static boolean isThrottle(final Exception e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        final AmazonServiceException ase = (AmazonServiceException) e;
+        return 503 == ase.getStatusCode() || 429 == ase.getStatusCode()
+            || "SlowDown".equals(ase.getErrorCode())
+            || "Throttling".equals(ase.getErrorCode());
+    }
+
+    /**
+     * @param op an operation name
+     * @return its latency tracker
+     */
+    LatencyTracker tracker(final String op) {
+        synchronized (latencies) {
+            LatencyTracker t = latencies.get(op);
+            if (null == t) {
+                t = new LatencyTracker();
+                latencies.put(op, t);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * @return the latency percentiles of each operation, and the retry and
+     * hedge counts
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("requests:");
+        synchronized (latencies) {
+            for (final Map.Entry<String, LatencyTracker> e 
+                    : latencies.entrySet()) {
+                final LatencyTracker t = e.getValue();
+                sb.append(String.format(" %s p50 %dms p95 %dms p99 %dms (%d);",
+                            e.getKey(), 
+                            TimeUnit.NANOSECONDS.toMillis(t.percentile(50)),
+                            TimeUnit.NANOSECONDS.toMillis(t.percentile(95)),
+                            TimeUnit.NANOSECONDS.toMillis(t.percentile(99)),
+                            t.size()));
+            }
+        }
+        sb.append(String.format(" %d retries, %d hedges, %d hedges won",
+                    retries.get(), hedges.get(), hedgeWins.get()));
+        return sb.toString();
+    }
+}
@@ -24,10 +24,32 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
@@ -37,11 +59,14 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 import com.amazonaws.services.s3.model.Bucket;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.saife.dar.PersistedObject;
+import com.saife.dar.PersistentStore;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
@@ -67,15 +92,173 @@ public class S3Manager {
         String oName;
         oName = (null == outName) ? fname : outName;
 
+        final TransferScheduler.Ticket ticket = beginTransfer(downloadClass);
+        if (null == ticket) {
+            return false;
+        }
+        boolean result = false;
+        try {
+            StoredObject so = null;
+            try {
+                so = openStored(fname);
+            } catch (final AmazonS3Exception as3e) {
+                System.out.println(as3e.getMessage());
+                return false;
+            } catch (final IOException io) {
+                System.out.println("IOException during download: " + fname);
+                return false;
+            }
+            result = download(fname, so, oName, ticket);
+            return result;
+        } finally {
+            scheduler.end(ticket, result ? new File(oName).length() : 0, 
+                    result);
+        }
+    }
+
+    /**
+     * Decrypts an object that has already been fetched and saves it.
+     * 
+     * @param fname the object name
+     * @param so the object, closed by this call
+     * @param oName the file to save to
+     * @param ticket the scheduler ticket of the download
+     * @return true if download works
+     */
+    boolean download(final String fname, final StoredObject so, 
+            final String oName, final TransferScheduler.Ticket ticket) {
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(oName);
+            if (scheduler.isThrottled()) {
+                final OutputStream limited = scheduler.throttle(os, ticket);
+                return decrypt(fname, so, limited, 
+                        Channels.newChannel(limited));
+            }
+            return decrypt(fname, so, os, os.getChannel());
+        } catch (final FileNotFoundException e) {
+            System.out.println("Failed to create file: " + oName);
+            so.close();
+            return false;
+        } finally {
+            try {
+                os.close();
+            } catch (final Exception e) {}
+        }
+    }
+
+    /**
+     * Downloads an object and writes the plain text to a stream, such as
+     * stdout. Memory use does not depend on the size of the object. The 
+     * stream is flushed, not closed.
+     * 
+     * @param fname the object name
+     * @param out the stream to write to
+     * @return true if download works
+     */
+    public boolean downloadTo(final String fname, final OutputStream out) {
+        final TransferScheduler.Ticket ticket = beginTransfer(downloadClass);
+        if (null == ticket) {
+            return false;
+        }
+        // counts the plain text when there is no cap to count it
+        final Codecs.Meter written = new Codecs.Meter(out);
+        boolean result = false;
+        try {
+            StoredObject so = null;
+            try {
+                so = openStored(fname);
+            } catch (final AmazonS3Exception as3e) {
+                System.out.println(as3e.getMessage());
+                return false;
+            } catch (final IOException io) {
+                System.out.println("IOException during download: " + fname);
+                return false;
+            }
+            final OutputStream limited = scheduler.throttle(written, ticket);
+            result = decrypt(fname, so, limited, 
+                    Channels.newChannel(limited));
+            try {
+                out.flush();
+            } catch (final IOException e) {
+                System.out.println("IOException during download: " + fname);
+                result = false;
+            }
+            return result;
+        } finally {
+            scheduler.end(ticket, written.getBytes(), result);
+        }
+    }
+
+    /**
+     * Decrypts a fetched object in whichever way its layout and the 
+     * settings call for.
+     * 
+     * @param fname the object name
+     * @param so the object, closed by this call
+     * @param os the stream to write the plain text to
+     * @param ch a channel onto the same destination
+     * @return true if download works
+     */
+    boolean decrypt(final String fname, final StoredObject so, 
+            final OutputStream os, final WritableByteChannel ch) {
+
+        // objects written in another layout say so in their metadata
+        if (DedupStore.LAYOUT.equals(so.getLayout())) {
+            return getDedupStore().restore(fname, so, os);
+        }
+        if (ChunkedStore.LAYOUT.equals(so.getLayout())) {
+            // the chunks are read through range GETs instead
+            so.abort();
+            return readChunked(fname, 0, -1, os);
+        }
+
+        final String codecName = so.getMetadata(StoredObject.CODEC);
+        if (null == codecName) {
+            return decryptPlain(fname, so, os, ch);
+        }
+        final Codec codec = Codecs.get(codecName);
+        if (null == codec) {
+            System.out.println("Unknown codec " + codecName + " for " + fname);
+            so.close();
+            return false;
+        }
+
+        // the decrypted data is decompressed on its way to the destination
+        try {
+            final OutputStream inflate = codec.decompress(os);
+            final boolean result = decryptPlain(fname, so, inflate, 
+                    Channels.newChannel(inflate));
+            inflate.close();
+            return result;
+        } catch (final IOException e) {
+            System.out.println("Failed to decompress " + fname + ": " 
+                    + e.getMessage());
+            so.close();
+            return false;
+        }
+    }
+
+    /**
+     * Decrypts a fetched object and writes the result as is.
+     * 
+     * @param fname the object name
+     * @param so the object, closed by this call
+     * @param os the stream to write to
+     * @param ch a channel onto the same destination
+     * @return true if download works
+     */
+    boolean decryptPlain(final String fname, final StoredObject so, 
+            final OutputStream os, final WritableByteChannel ch) {
+
+        if (pipelined) {
+            return downloadPipelined(fname, so.getContent(), ch);
+        }
+
         InputStream is = null;
         boolean result = true;
-        FileOutputStream os = null;
-        File f = null;
         try {
-            f = new File(oName);
-            is = saifeManager.getNS().getDecryptStream(saifeManager
-                    .getPersister().getInputStream(bucketName, fname));
-            os = new FileOutputStream(f);
+            is = saifeManager.openDecryptStream(so.getContent());
 
             final byte[] block = new byte[1024];
 
@@ -95,11 +278,82 @@ public class S3Manager {
             result = false;
         } finally {
             try {
-                os.close();
+                is.close();
             } catch (final Exception e) {}
+            so.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads a range of a file stored in the chunked layout, fetching only 
+     * the chunks that cover it.
+     * 
+     * @param fname the object name
+     * @param offset the offset in the file
+     * @param length the number of bytes, negative for the rest of the file
+     * @param out the stream to write to, left open
+     * @return true if the read works
+     */
+    public boolean readChunked(final String fname, final long offset, 
+            final long length, final OutputStream out) {
+        try {
+            getChunkedStore().read(fname, offset, length, out);
+            out.flush();
+            return true;
+        } catch (final IOException e) {
+            System.out.println("Failed to read " + fname + ": " 
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Fetches an object with its metadata from the current store. Stores 
+     * other than S3 return no metadata.
+     *
+     * @param fname the object name
+     * @return the object
+     * @throws IOException if the object can't be fetched
+     */
+    public StoredObject openStored(final String fname) throws IOException {
+        final PersistentStore store = saifeManager.getPersister();
+        if (store instanceof SaifeManager.Persister) {
+            return ((SaifeManager.Persister) store).open(fname);
+        }
+        return new StoredObject(store.getInputStream("/", fname), null, null);
+    }
 
+    /**
+     * Downloads an object through a PipelinedDownload, so fetching, 
+     * decrypting and writing overlap. Prints the throughput of each stage.
+     *
+     * @param fname the file to retrieve from S3
+     * @param raw the encrypted content, closed by this call
+     * @param out the channel to write to
+     * @return true if download works
+     */
+    boolean downloadPipelined(final String fname, final InputStream raw,
+            final WritableByteChannel out) {
+        boolean result = true;
+        try {
+            final PipelinedDownload pd = new PipelinedDownload(raw, 
+                    saifeManager.getNS(), out, pipelineBlockSize, 
+                    pipelineDepth);
+            pd.run();
+            for (final PipelinedDownload.StageStats st : pd.getStats()) {
+                System.out.println("  " + st);
+            }
+        } catch (final AmazonS3Exception as3e) {
+            System.out.println(as3e.getMessage());
+            result = false;
+        } catch (final IOException io) {
+            System.out.println("IOException during download: " + fname);
+            result = false;
+        } finally {
             try {
-                is.close();
+                raw.close();
             } catch (final Exception e) {}
         }
 
@@ -107,85 +361,760 @@ public class S3Manager {
     }
 
     /**
-     * Encrypts a file with the SAIFE library and then uploads it to Amazon S3 
-     * Note: some S3 operations have financial penalties.
+     * Configures pipelined downloads.
+     *
+     * @param enabled true to overlap fetching, decrypting and writing
+     * @param blockSize the size of each pipeline buffer
+     * @param depth the number of buffers between two stages
+     */
+    public void setPipelined(final boolean enabled, final int blockSize, 
+            final int depth) {
+        pipelined = enabled;
+        pipelineBlockSize = Math.max(1024, blockSize);
+        pipelineDepth = Math.max(2, depth);
+    }
+
+    /**
+     * Encrypts a file with the SAIFE library and then uploads it to Amazon S3 
+     * Note: some S3 operations have financial penalties.
+     * 
+     * @param f the path to a file.
+     * @return true if the write is completed
+     */
+    public boolean upload(final File f) {
+        return upload(f, f.getName());
+    }
+
+    /**
+     * Encrypts a file with the SAIFE library and then uploads it to Amazon S3
+     * under the given key. In dedup mode only the chunks the share does not
+     * already hold are uploaded. Note: some S3 operations have financial 
+     * penalties.
+     * 
+     * @param f the path to a file.
+     * @param key the object key
+     * @return true if the write is completed
+     */
+    public boolean upload(final File f, final String key) {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(f);
+            return uploadFrom(is, key, f.lastModified());
+        } catch (final FileNotFoundException e) {
+            System.out.println("Failed to locate or open file: " 
+                    + f.getName());
+            return false;
+        } finally {
+            try {
+                if (null != is) {
+                    is.close();
+                }
+            } catch (final IOException e) {
+            }
+        }
+    }
+
+    /**
+     * deletes a object from S3
+     * 
+     * @param tag the object tag
+     */
+    public void deleteObject(final String tag) {
+        deleteObject(bucketName, tag);
+    }
+
+    /**
+     * deletes a object from a given bucket, which need not be the current
+     * one, e.g. for a Persister bound to its share
+     * 
+     * @param bucket the full bucket name
+     * @param tag the object tag
+     */
+    public void deleteObject(final String bucket, final String tag) {
+        try {
+            s3.deleteObject(bucket, tag);
+            getIndex(bucket).remove(tag);
+            if (bucket.equals(bucketName)) {
+                recordRemoved(Collections.singletonList(tag));
+            }
+            final ObjectCache cache = saifeManager.getObjectCache();
+            if (null != cache) {
+                cache.remove(bucket, tag);
+            }
+        } catch (final AmazonS3Exception as3e) {
+            System.out.println(as3e.getMessage());
+        } catch (final AmazonClientException e) {
+            System.out.println("Failed to delete file: " + tag);
+        }
+    }
+
+    /**
+     * Encrypts a stream into an object, for input that is not a file such 
+     * as stdin. With multipart uploads on, memory use is bounded by the part
+     * size and parts in flight, whatever the length of the stream. If the
+     * stream fails the object is discarded rather than stored truncated.
+     * 
+     * @param in the content, left open
+     * @param key the object key
+     * @return true if upload works
+     */
+    public boolean uploadFrom(final InputStream in, final String key) {
+        return uploadFrom(in, key, System.currentTimeMillis());
+    }
+
+    /**
+     * Encrypts a stream into an object in the layout selected for uploads,
+     * and records the file in the share index. The bandwidth cap and the
+     * transfer stats count the plain text read, since that is the one stream
+     * every layout shares.
+     * 
+     * @param in the content, left open
+     * @param key the object key
+     * @param mtime the modified time to record, in milliseconds
+     * @return true if upload works
+     */
+    boolean uploadFrom(final InputStream in, final String key, 
+            final long mtime) {
+        final TransferScheduler.Ticket ticket = beginTransfer(uploadClass);
+        if (null == ticket) {
+            return false;
+        }
+        // the plain text is hashed on its way to whichever store takes it
+        final ShareIndex.HashingInputStream hin = 
+            new ShareIndex.HashingInputStream(scheduler.throttle(in, ticket));
+        final boolean local = null != getLocalStore();
+        boolean stored = false;
+        String layout = null;
+        int chunk = 0;
+        try {
+            final ForkJoinPool pool = getCryptoPool();
+            if (local) {
+                // the other layouts read and write S3 directly
+                stored = encryptFrom(hin, key);
+            } else if (dedup) {
+                layout = DedupStore.LAYOUT;
+                stored = getDedupStore().upload(hin, key);
+            } else if (null != pool) {
+                layout = ChunkedStore.LAYOUT;
+                chunk = chunked ? chunkSize : saifeManager.partSize;
+                stored = new ParallelUpload(this, pool, chunk, 
+                        saifeManager.partSize).upload(hin, key);
+            } else if (chunked) {
+                layout = ChunkedStore.LAYOUT;
+                chunk = chunkSize;
+                stored = getChunkedStore().upload(hin, key);
+            } else {
+                stored = encryptFrom(hin, key);
+            }
+        } finally {
+            scheduler.end(ticket, hin.getCount(), stored);
+        }
+
+        if (stored && !local && !isInternal(key)) {
+            try {
+                getShareIndex().put(key, new ShareIndex.Entry(
+                            hin.getCount(), mtime, hin.getHash(), layout, 
+                            chunk));
+            } catch (final IOException e) {
+                System.out.println("Failed to update the share index: " 
+                        + e.getMessage());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Encrypts a stream into a single object, compressed first if enabled
+     * and the data compresses.
+     * 
+     * @param in the content, left open
+     * @param key the object key
+     * @return true if upload works
+     */
+    boolean encryptFrom(final InputStream in, final String key) {
+        final OutputStream store;
+        try {
+            store = saifeManager.getPersister().getOutputStream("/", key);
+        } catch (final IOException e1) {
+            System.out.println(" Failed to open a new encryption stream for " 
+                    + key);
+            return false;
+        }
+
+        // compression is decided on a sample from the start, and recorded 
+        // in the object metadata, which only the S3 store keeps
+        final Codec codec = Codecs.get(compression);
+        byte[] head = new byte[0];
+        int headLen = 0;
+        boolean compress = false;
+        try {
+            if (null != codec && store instanceof SaifeManager.S3OutputStream) {
+                head = new byte[Codecs.SAMPLE_SIZE];
+                headLen = readFully(in, head);
+                final double ratio = Codecs.sampleRatio(codec, head, headLen);
+                compress = ratio <= Codecs.MAX_RATIO;
+                if (compress) {
+                    ((SaifeManager.S3OutputStream) store).setUserMetadata(
+                            StoredObject.CODEC, codec.getName());
+                } else {
+                    System.out.format("compress: %s sample at %.0f%%, stored "
+                            + "uncompressed%n", key, ratio * 100);
+                }
+            }
+        } catch (final IOException e) {
+            System.out.println("Failed to stream " + key + ": " 
+                    + e.getMessage());
+            abortStore(store);
+            return false;
+        }
+
+        OutputStream os;
+        try {
+            os = saifeManager.openEncryptStream(store);
+        } catch (final IOException e1) {
+            System.out.println(" Failed to open a new encryption stream for " 
+                    + key);
+            abortStore(store);
+            return false;
+        }
+
+        Codecs.Meter plain = null;
+        Codecs.Meter packed = null;
+        final byte[] block = new byte[64 * 1024];
+        try {
+            if (compress) {
+                packed = new Codecs.Meter(os);
+                plain = new Codecs.Meter(codec.compress(packed));
+                os = plain;
+            }
+            os.write(head, 0, headLen);
+            int size;
+            while ((size = in.read(block)) >= 0) {
+                os.write(block, 0, size);
+            }
+        } catch (final IOException e) {
+            System.out.println("Failed to stream " + key + ": " 
+                    + e.getMessage());
+            abortStore(store);
+            try {
+                os.close();
+            } catch (final IOException e1) {}
+            return false;
+        }
+
+        // closing the stream commits the object to S3
+        try {
+            os.close();
+        } catch (final IOException e) {
+            System.out.println("Failed to upload " + key + ": " 
+                    + e.getMessage());
+            return false;
+        } catch (final AmazonClientException ace) {
+            System.out.println("Failed to upload " + key + ": " 
+                    + ace.getMessage());
+            return false;
+        }
+
+        if (null != plain) {
+            // the meter below the codec times encryption and upload, the 
+            // difference is the codec's own cost
+            System.out.format("compress: %s %s %dB -> %dB (%.1f%%), %.0fms "
+                    + "compressing%n", key, codec.getName(), plain.getBytes(),
+                    packed.getBytes(), 100.0 * packed.getBytes() 
+                    / Math.max(1, plain.getBytes()),
+                    (plain.getNanos() - packed.getNanos()) / 1e6);
+        }
+        return true;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     * 
+     * @param in the stream
+     * @param buf the buffer
+     * @return the number of bytes read
+     * @throws IOException if the read fails
+     */
+    static int readFully(final InputStream in, final byte[] buf) 
+            throws IOException {
+        int len = 0;
+        int n;
+        while (len < buf.length && (n = in.read(buf, len, buf.length - len)) 
+                >= 0) {
+            len += n;
+        }
+        return len;
+    }
+
+    /**
+     * Discards an object being written, in S3 or in the local store.
+     * 
+     * @param store the store stream
+     */
+    static void abortStore(final OutputStream store) {
+        if (store instanceof SaifeManager.S3OutputStream) {
+            ((SaifeManager.S3OutputStream) store).abort();
+            try {
+                store.close();
+            } catch (final IOException e) {}
+        } else if (store instanceof FilePersister.AtomicFileOutputStream) {
+            ((FilePersister.AtomicFileOutputStream) store).abort();
+        }
+    }
+
+    /**
+     * Uploads a file without blocking. See upload(File, String).
+     * 
+     * The async calls run on a bounded pool against the current share.
+     * Selecting another bucket is refused until they finish.
+     * 
+     * @param f the file
+     * @param key the object key
+     * @return the result, true if the upload worked
+     */
+    public TransferFuture<Boolean> uploadAsync(final File f, 
+            final String key) {
+        return submitAsync(new TransferFuture<Boolean>(), 
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return upload(f, key);
+                    }
+                });
+    }
+
+    /**
+     * Downloads an object without blocking. See download(String, String).
+     * Cancelling aborts the S3 stream.
+     * 
+     * @param fname the object name
+     * @param outName the file to save to, null for the object name
+     * @return the result, true if the download worked
+     */
+    public TransferFuture<Boolean> downloadAsync(final String fname, 
+            final String outName) {
+        final TransferFuture<Boolean> future = new TransferFuture<Boolean>();
+        return submitAsync(future, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                final String oName = (null == outName) ? fname : outName;
+                final TransferScheduler.Ticket ticket = 
+                    scheduler.begin(downloadClass);
+                boolean result = false;
+                try {
+                    final StoredObject so = openStored(fname);
+                    if (!future.attach(so)) {
+                        return false;
+                    }
+                    result = download(fname, so, oName, ticket);
+                    return result;
+                } finally {
+                    scheduler.end(ticket, 
+                            result ? new File(oName).length() : 0, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes objects without blocking. See deleteObjects.
+     * 
+     * @param tags the object tags
+     * @return the number of objects deleted
+     */
+    public TransferFuture<Integer> deleteAsync(final List<String> tags) {
+        return submitAsync(new TransferFuture<Integer>(), 
+                new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return deleteObjects(tags);
+                    }
+                });
+    }
+
+    /**
+     * Lists the files of the current bucket without blocking. See 
+     * listFiles.
+     * 
+     * @return the file names
+     */
+    public TransferFuture<List<String>> listAsync() {
+        return submitAsync(new TransferFuture<List<String>>(), 
+                new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return listFiles();
+                    }
+                });
+    }
+
+    /**
+     * Runs a call on the async pool and completes the future with its 
+     * result. When the queue is full the submit either blocks or fails the
+     * future at once, as set by setAsync.
+     * 
+     * @param future the future to complete
+     * @param work the call
+     * @param <T> the result type
+     * @return the future
+     */
+    <T> TransferFuture<T> submitAsync(final TransferFuture<T> future, 
+            final Callable<T> work) {
+        asyncPending.incrementAndGet();
+        try {
+            getAsyncPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (future.started(Thread.currentThread())) {
+                            call(future, work);
+                        }
+                    } finally {
+                        asyncPending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            asyncPending.decrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs an async call on the current thread and completes its future.
+     * 
+     * @param future the future to complete
+     * @param work the call
+     * @param <T> the result type
+     */
+    static <T> void call(final TransferFuture<T> future, 
+            final Callable<T> work) {
+        try {
+            future.complete(work.call());
+        } catch (final Exception e) {
+            future.completeExceptionally(e);
+        } finally {
+            future.finished();
+            // a cancel may have interrupted this worker
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Sets the async pool size and queue limit. Applies to a pool created
+     * after the call.
+     * 
+     * @param threads the number of concurrent async calls
+     * @param queueLimit the most calls waiting to start
+     * @param failFast true to fail a call submitted to a full queue, false
+     * to block the caller until there is room
+     */
+    public synchronized void setAsync(final int threads, final int queueLimit,
+            final boolean failFast) {
+        asyncThreads = Math.max(1, threads);
+        asyncQueueLimit = Math.max(1, queueLimit);
+        asyncFailFast = failFast;
+        if (null != asyncPool) {
+            asyncPool.shutdown();
+            asyncPool = null;
+        }
+    }
+
+    /**
+     * @return the pool async calls run on
+     */
+    synchronized ExecutorService getAsyncPool() {
+        if (null == asyncPool) {
+            final RejectedExecutionHandler full = asyncFailFast 
+                ? new ThreadPoolExecutor.AbortPolicy()
+                : new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(final Runnable r,
+                            final ThreadPoolExecutor pool) {
+                        if (pool.isShutdown()) {
+                            throw new RejectedExecutionException(
+                                    "Async pool is shut down");
+                        }
+                        try {
+                            pool.getQueue().put(r);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(
+                                    "Interrupted waiting for the async queue");
+                        }
+                    }
+                };
+            asyncPool = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+                    0L, TimeUnit.MILLISECONDS, 
+                    new ArrayBlockingQueue<Runnable>(asyncQueueLimit),
+                    new DaemonThreadFactory("s3-async"), full);
+        }
+        return asyncPool;
+    }
+
+    /**
+     * Deletes objects from the current bucket with batched DeleteObjects 
+     * requests of up to 1000 keys, running the batches concurrently.
+     * 
+     * @param tags the object tags
+     * @return the number of objects deleted
+     */
+    public int deleteObjects(final List<String> tags) {
+        final FilePersister local = getLocalStore();
+        if (null != local) {
+            int deleted = 0;
+            for (final String tag : tags) {
+                try {
+                    local.deleteObject("/", tag);
+                    deleted++;
+                } catch (final IOException e) {
+                    System.out.println("Failed to delete file: " + tag);
+                }
+            }
+            return deleted;
+        }
+        final BatchDeleter deleter = newDeleter(bucketName);
+        deleter.keepDeletedKeys();
+        deleter.submit(tags);
+        final int deleted = deleter.await();
+        recordRemoved(deleter.getDeletedKeys());
+        return deleted;
+    }
+
+    /**
+     * @return the local store the current share keeps its objects in, null
+     * when they are kept in S3
+     */
+    FilePersister getLocalStore() {
+        final PersistentStore store = saifeManager.getPersister();
+        return (store instanceof FilePersister) ? (FilePersister) store 
+            : null;
+    }
+
+    /**
+     * Lists the files of the local store, ignoring NSKs. Sizes are those of
+     * the encrypted files, no hashes are known.
+     * 
+     * @return the files by name, empty if the store can't be read
+     */
+    Map<String, ShareIndex.Entry> localFiles() {
+        final Map<String, ShareIndex.Entry> files = 
+            new TreeMap<String, ShareIndex.Entry>();
+        try {
+            for (final PersistedObject po 
+                    : getLocalStore().getObjects("/", "")) {
+                if (isInternal(po.getName())) {
+                    continue;
+                }
+                final Path p = ((FilePersister.FileObject) po).path;
+                files.put(po.getName(), new ShareIndex.Entry(Files.size(p), 
+                            Files.getLastModifiedTime(p).toMillis(), null, 
+                            null, 0));
+            }
+        } catch (final IOException e) {
+            System.out.println("Failed to list the local store: " 
+                    + e.getMessage());
+        }
+        return files;
+    }
+
+    /**
+     * Records deleted files in the share index. Internal keys are skipped.
+     * 
+     * @param keys the deleted keys
+     */
+    void recordRemoved(final List<String> keys) {
+        final List<String> files = new ArrayList<String>();
+        for (final String key : keys) {
+            if (!isInternal(key)) {
+                files.add(key);
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        try {
+            getShareIndex().remove(files);
+        } catch (final IOException e) {
+            System.out.println("Failed to update the share index: " 
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the scheduler to admit a transfer.
+     * 
+     * @param cls the priority class
+     * @return the ticket, null if the wait was interrupted
+     */
+    TransferScheduler.Ticket beginTransfer(final int cls) {
+        try {
+            return scheduler.begin(cls);
+        } catch (final InterruptedIOException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the scheduler every upload and download goes through
+     */
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets the priority classes of uploads and downloads, by default
+     * background and interactive.
      * 
-     * @param f the path to a file.
-     * @return true if the write is completed
+     * @param upload the class of uploads, e.g. TransferScheduler.BACKGROUND
+     * @param download the class of downloads
      */
-    public boolean upload(final File f) {
-
-        final String fname = f.getName();
-        FileInputStream is = null;
-        OutputStream os = null;
+    public void setTransferClasses(final int upload, final int download) {
+        uploadClass = TransferScheduler.clamp(upload);
+        downloadClass = TransferScheduler.clamp(download);
+    }
 
-        try {
-            os = saifeManager.getNS().getEncryptStream(saifeManager
-                    .getNewS3Stream(f.getName()));
-        } catch (final IOException e1) {
-            System.out.println(" Failed to open a new encryption stream for " 
-                    + f.getName());
+    /**
+     * @return the share index of the current bucket
+     */
+    public ShareIndex getShareIndex() {
+        final String bucket = bucketName;
+        ShareIndex index = shareIndexes.get(bucket);
+        if (null == index) {
+            final ShareIndex fresh = new ShareIndex(this, bucket);
+            index = shareIndexes.putIfAbsent(bucket, fresh);
+            if (null == index) {
+                index = fresh;
+            }
         }
+        return index;
+    }
 
+    /**
+     * Deletes every object in a bucket. The paginated listing is streamed
+     * straight into delete batches, so deletes start with the first page and
+     * the whole listing is never held in memory.
+     * 
+     * @param bucket the full bucket name
+     * @return true if the bucket was emptied
+     */
+    public boolean drainBucket(final String bucket) {
+        final BatchDeleter deleter = newDeleter(bucket);
+        final long start = System.nanoTime();
         try {
-            is = new FileInputStream(f);
-            int size = 0;
-            final byte[] block = new byte[1024];
-
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket)
+                    .withMaxKeys(BatchDeleter.MAX_BATCH));
             while (true) {
-                try {
-                    size = is.read(block);
-                } catch (final IOException e) {
-                    System.out.println("Failed to read file: " + fname);
-                    break;
+                final List<String> keys = new Vector<String>();
+                for (final S3ObjectSummary os : listing.getObjectSummaries()) {
+                    keys.add(os.getKey());
                 }
-                if (size <= 0) {
-                    break;
-                }
-                try {
-                    os.write(block, 0, size);
-                } catch (final IOException writefail) {
-                    System.out.println("Failed to write to output stream to "
-                            + "create file: " + fname);
+                deleter.submit(keys);
+                if (!listing.isTruncated()) {
                     break;
                 }
+                listing = s3.listNextBatchOfObjects(listing);
             }
-        } catch (final AmazonS3Exception as3e) {
-            System.out.println(as3e.getMessage());
+        } catch (final AmazonClientException ace) {
+            System.out.println("Failed to list " + bucket + ": " 
+                    + ace.getMessage());
+            deleter.await();
             return false;
-        } catch (final FileNotFoundException e) {
-            System.out.println("Failed to locate or open file: " + fname);
-        } finally {
-            try {
-                os.close();
-            } catch (final IOException e) {
-            }
-            try {
-                is.close();
-            } catch (final IOException e) {
-            }
         }
 
-        return true;
+        final int count = deleter.await();
+        System.out.format("Drained %d objects from %s in %.1fs%n", count, 
+                bucket, (System.nanoTime() - start) / 1e9);
+        System.out.println("delete " + deleter.getConcurrency());
+        return 0 == deleter.getFailed();
     }
 
     /**
-     * deletes a object from S3
+     * Creates a deleter for a bucket, with a new concurrency controller.
      * 
-     * @param tag the object tag
+     * @param bucket the bucket to delete from
+     * @return the deleter
      */
-    public void deleteObject(final String tag) {
-        try {
-            s3.deleteObject(bucketName, tag);
-        } catch (final AmazonS3Exception as3e) {
-            System.out.println(as3e.getMessage());
-        } catch (final AmazonClientException e) {
-            System.out.println("Failed to delete file: " + tag);
+    BatchDeleter newDeleter(final String bucket) {
+        return new BatchDeleter(s3, bucket, getIndex(bucket), 
+                getDeletePool(), newDeleteConcurrency());
+    }
+
+    /**
+     * Makes the controller of one batched delete. It starts at half the
+     * delete pool and may use all of it, measuring goodput in keys.
+     * 
+     * @return the controller, also kept as the last delete's
+     */
+    AdaptiveConcurrency newDeleteConcurrency() {
+        final AdaptiveConcurrency c = new AdaptiveConcurrency(1, 
+                deleteThreads / 2, deleteThreads, throttles, "keys/s", 1);
+        lastDelete = c;
+        return c;
+    }
+
+    /**
+     * @return the controller of the last batched delete, null if none ran
+     */
+    public AdaptiveConcurrency getDeleteConcurrency() {
+        return lastDelete;
+    }
+
+    /**
+     * Makes the batch a bulk push or pull runs on. With adaptive transfers
+     * on, the concurrency starts low and adapts up to the adaptive limit,
+     * or the scheduler's limit if that is lower, and the worker count is
+     * ignored.
+     * 
+     * @param label the label for status lines, e.g. "push"
+     * @param workers the fixed worker count
+     * @return the batch
+     */
+    public TransferBatch newBatch(final String label, final int workers) {
+        if (adaptiveMax > 0) {
+            // the scheduler admits no more than its own limit, probing past
+            // it would only time the scheduler's queue
+            final int most = Math.min(adaptiveMax, scheduler.getMaxActive());
+            return new TransferBatch(label, new AdaptiveConcurrency(1, 
+                        Math.min(ADAPTIVE_START, most), most,
+                        throttles, "MB/s", 1024 * 1024));
+        }
+        return new TransferBatch(label, workers);
+    }
+
+    /**
+     * Turns adaptive transfer concurrency on or off.
+     * 
+     * @param maxWorkers the most transfers at once, 0 for a fixed count
+     */
+    public void setAdaptive(final int maxWorkers) {
+        adaptiveMax = Math.max(0, maxWorkers);
+    }
+
+    /**
+     * @return the S3 calls seen throttled so far
+     */
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * @return the pool shared by batched deletes
+     */
+    synchronized ExecutorService getDeletePool() {
+        if (null == deletePool) {
+            deletePool = Executors.newFixedThreadPool(deleteThreads,
+                    new DaemonThreadFactory("s3-delete"));
         }
+        return deletePool;
     }
 
     /**
-     * Searches for tags in the current S3 bucket
+     * Searches for tags in the current S3 bucket. Answered from the bucket's
+     * object index, which lists every page of the bucket when it reloads.
      * 
      * @return the object tags
      */
@@ -193,14 +1122,7 @@ public class S3Manager {
         final List<String> names = new Vector<String>();
 
         try {
-            final ListObjectsRequest objectRequest = new ListObjectsRequest()
-                .withBucketName(bucketName).withPrefix("");
-            final ObjectListing objectListing = s3.listObjects(objectRequest);
-
-            for (final S3ObjectSummary objectSummary : objectListing
-                    .getObjectSummaries()) {
-                names.add(objectSummary.getKey());
-            }
+            names.addAll(getFreshIndex().keys());
         } catch (final AmazonS3Exception as3e) {
             System.out.println(as3e.getMessage());
         }
@@ -208,6 +1130,184 @@ public class S3Manager {
         return names;
     }
 
+    /**
+     * Returns the object index of the current bucket, without loading it.
+     * 
+     * @return the index, possibly empty or stale
+     */
+    public ObjectIndex getIndex() {
+        return getIndex(bucketName);
+    }
+
+    /**
+     * Returns the object index of a bucket, without loading it.
+     * 
+     * @param bucket the bucket name
+     * @return the index, possibly empty or stale
+     */
+    ObjectIndex getIndex(final String bucket) {
+        ObjectIndex index = indexes.get(bucket);
+        if (null == index) {
+            final ObjectIndex fresh = new ObjectIndex(bucket, indexTtl);
+            index = indexes.putIfAbsent(bucket, fresh);
+            if (null == index) {
+                index = fresh;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the object index of the current bucket, reloading it with a
+     * paginated listing if it has expired. Catch AmazonS3Exception for 
+     * invalid permissions.
+     * 
+     * @return the loaded index
+     */
+    public ObjectIndex getFreshIndex() {
+        final ObjectIndex index = getIndex();
+        if (index.isStale()) {
+            synchronized (index) {
+                if (index.isStale()) {
+                    index.load(s3);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records an object written by this application, so the bucket's index
+     * stays current without a new listing.
+     * 
+     * @param bucket the bucket name
+     * @param key the object key
+     * @param size the stored size
+     * @param etag the ETag S3 returned, null if unknown
+     */
+    public void recordObject(final String bucket, final String key, 
+            final long size, final String etag) {
+        getIndex(bucket).put(key, size, etag);
+    }
+
+    /**
+     * Sets how long a bucket listing stays valid before it is reloaded.
+     * 
+     * @param millis the time to live, in milliseconds
+     */
+    public void setIndexTtl(final long millis) {
+        indexTtl = millis;
+        indexes.clear();
+    }
+
+    /**
+     * @param key an object key
+     * @return true if the key is a NetworkShare key (NSK) object
+     */
+    static boolean isNsk(final String key) {
+        return key.contains(".NSK.");
+    }
+
+    /**
+     * @param key an object key
+     * @return true if the key is share metadata rather than a user file: an
+     * NSK, or an object under the reserved `.ns/` prefix
+     */
+    static boolean isInternal(final String key) {
+        return isNsk(key) || key.startsWith(INTERNAL_PREFIX);
+    }
+
+    /**
+     * Selects dedup mode for uploads. Downloads follow the layout recorded
+     * with each object, whatever the mode.
+     * 
+     * @param enabled true to upload only new content-defined chunks
+     */
+    public void setDedup(final boolean enabled) {
+        dedup = enabled;
+    }
+
+    /**
+     * Selects compression before encryption for uploads. Each upload 
+     * samples its data first and stores it uncompressed if the sample does
+     * not shrink. Objects record their codec and are decompressed on 
+     * download whatever this setting.
+     * 
+     * @param codecName a registered codec, e.g. "deflate", or null for none
+     */
+    public void setCompression(final String codecName) {
+        compression = codecName;
+    }
+
+    /**
+     * Selects the chunked layout for uploads, which allows ranged reads. 
+     * Chunked files are read back in any mode.
+     * 
+     * @param enabled true to upload in fixed-size encrypted chunks
+     * @param size the plain text chunk size
+     */
+    public synchronized void setChunked(final boolean enabled, 
+            final int size) {
+        chunked = enabled;
+        if (size != chunkSize) {
+            chunkSize = Math.max(4096, size);
+            chunkedStore = null;
+        }
+    }
+
+    /**
+     * Selects parallel encryption. Uploads are then split into segments 
+     * encrypted concurrently and sent as multipart parts, in the chunked 
+     * layout, and chunked files are decrypted concurrently on download.
+     * 
+     * @param threads the encryption threads, 1 or less to encrypt on the
+     * calling thread
+     */
+    public synchronized void setCryptoThreads(final int threads) {
+        if (threads == cryptoThreads) {
+            return;
+        }
+        cryptoThreads = threads;
+        if (null != cryptoPool) {
+            cryptoPool.shutdown();
+            cryptoPool = null;
+        }
+    }
+
+    /**
+     * @return the pool segments are encrypted and decrypted on, null when
+     * parallel encryption is off
+     */
+    synchronized ForkJoinPool getCryptoPool() {
+        if (cryptoThreads <= 1) {
+            return null;
+        }
+        if (null == cryptoPool) {
+            cryptoPool = new ForkJoinPool(cryptoThreads);
+        }
+        return cryptoPool;
+    }
+
+    /**
+     * @return the chunked store of this manager
+     */
+    synchronized ChunkedStore getChunkedStore() {
+        if (null == chunkedStore) {
+            chunkedStore = new ChunkedStore(this, chunkSize);
+        }
+        return chunkedStore;
+    }
+
+    /**
+     * @return the dedup store of this manager
+     */
+    synchronized DedupStore getDedupStore() {
+        if (null == dedupStore) {
+            dedupStore = new DedupStore(this);
+        }
+        return dedupStore;
+    }
+
     /**
      * Looks for the buckets assigned to the current account. (According to the
      * credentials used in this code.) Catch AmazonS3Exception for invalid
@@ -251,6 +1351,110 @@ public class S3Manager {
     /** The s3 handler is provided by Amazon. Check online documentation. */
     AmazonS3 s3;
 
+    /** The system property naming an S3 endpoint to use instead of AWS. */
+    static final String ENDPOINT_PROPERTY = "ns.s3.endpoint";
+
+    /** The requestPolicy retries and hedges GETs. */
+    RequestPolicy requestPolicy;
+
+    /** The prefix of share metadata objects written by this application. */
+    static final String INTERNAL_PREFIX = ".ns/";
+
+    /** The compression codec name for uploads, null for none. */
+    String compression = null;
+
+    /** The chunked flag selects the chunked random-access layout. */
+    boolean chunked = false;
+
+    /** The chunkSize. The plain text chunk size of chunked uploads. */
+    int chunkSize = ChunkedStore.DEFAULT_CHUNK;
+
+    /** The chunkedStore, created on first use. */
+    private ChunkedStore chunkedStore = null;
+
+    /** The cryptoThreads. More than one selects parallel encryption. */
+    int cryptoThreads = 1;
+
+    /** The cryptoPool, created on first use. */
+    private ForkJoinPool cryptoPool = null;
+
+    /** The dedup flag selects deduplicated uploads. */
+    boolean dedup = false;
+
+    /** The dedupStore, created on first use. */
+    private DedupStore dedupStore = null;
+
+    /** The deleteThreads. The size of the batched delete pool. */
+    int deleteThreads = 8;
+
+    /** The deletePool runs batched deletes. */
+    private ExecutorService deletePool = null;
+
+    /** The controller of the last batched delete. */
+    private volatile AdaptiveConcurrency lastDelete = null;
+
+    /** The transfers at once an adaptive batch starts with. */
+    static final int ADAPTIVE_START = 4;
+
+    /** The adaptiveMax. The most transfers at once, 0 for a fixed count. */
+    volatile int adaptiveMax = 0;
+
+    /**
+     * The S3 calls throttled with 503 SlowDown or the like, counted by the
+     * RequestPolicy and the batched deletes.
+     */
+    final AtomicLong throttles = new AtomicLong();
+
+    /** The asyncThreads. The number of async calls run at once. */
+    int asyncThreads = 4;
+
+    /** The asyncQueueLimit. The most async calls waiting to start. */
+    int asyncQueueLimit = 16;
+
+    /** The asyncFailFast flag. True to fail calls beyond the queue limit. */
+    boolean asyncFailFast = false;
+
+    /** The asyncPool runs the async calls. */
+    private ThreadPoolExecutor asyncPool = null;
+
+    /** The async calls submitted and not yet finished. */
+    final AtomicInteger asyncPending = new AtomicInteger();
+
+    /** The bucketDirectory caches the visible bucket names. */
+    BucketDirectory bucketDirectory;
+
+    /** The bucketTtl. How long the bucket names stay valid, in ms. */
+    long bucketTtl = 5 * 60 * 1000;
+
+    /** The object index of each bucket used so far. */
+    final ConcurrentMap<String, ObjectIndex> indexes = 
+        new ConcurrentHashMap<String, ObjectIndex>();
+
+    /** The scheduler admits and throttles uploads and downloads. */
+    final TransferScheduler scheduler = new TransferScheduler(64, 0);
+
+    /** The priority class of uploads. */
+    volatile int uploadClass = TransferScheduler.BACKGROUND;
+
+    /** The priority class of downloads. */
+    volatile int downloadClass = TransferScheduler.INTERACTIVE;
+
+    /** The share index of each bucket used so far. */
+    final ConcurrentMap<String, ShareIndex> shareIndexes = 
+        new ConcurrentHashMap<String, ShareIndex>();
+
+    /** The indexTtl. How long a bucket listing stays valid, in ms. */
+    long indexTtl = 60 * 1000;
+
+    /** The pipelined flag selects the pipelined download. */
+    boolean pipelined = true;
+
+    /** The pipelineBlockSize. The size of each pipeline buffer. */
+    int pipelineBlockSize = 1024 * 1024;
+
+    /** The pipelineDepth. The number of buffers between two stages. */
+    int pipelineDepth = 8;
+
     /**
      * This class doesn't wrap every trivial use of the saifeManager. Pass a 
      * handle to other classes for simple calls.
@@ -290,6 +1494,13 @@ public class S3Manager {
         return s3;
     }
 
+    /**
+     * @return the retry and hedging policy for S3 reads
+     */
+    public RequestPolicy getRequestPolicy() {
+        return requestPolicy;
+    }
+
     /**
      * The trivial constructor.
      */
@@ -300,8 +1511,16 @@ public class S3Manager {
      * select a bucket
      * 
      * @param b the bucket name
+     * @throws IllegalStateException if async calls on another bucket have
+     * not finished, since they read the current bucket and share as they run
      */
     public void setBucket(final String b) {
+        if (asyncPending.get() > 0 && null != bucketName 
+                && !bucketName.equals(b)) {
+            throw new IllegalStateException("Can't select " + b + " while " 
+                    + asyncPending.get() + " async calls on " + bucketName 
+                    + " are pending");
+        }
         bucketName = b;
     }
 
@@ -328,6 +1547,21 @@ public class S3Manager {
         final Region usWest2 = Region.getRegion(Regions.US_WEST_2);
         s3.setRegion(usWest2);
 
+        // a local S3 stand-in, e.g. -Dns.s3.endpoint=http://localhost:9000
+        final String endpoint = System.getProperty(ENDPOINT_PROPERTY);
+        if (null != endpoint && !endpoint.isEmpty()) {
+            s3.setEndpoint(endpoint);
+            s3.setS3ClientOptions(S3ClientOptions.builder()
+                    .setPathStyleAccess(true).build());
+            System.out.println("Using S3 endpoint " + endpoint);
+        }
+        requestPolicy = new RequestPolicy(s3, throttles);
+
+        // bucket names are resolved from a cache that reloads in the 
+        // background, instead of listing buckets for every command
+        bucketDirectory = new BucketDirectory(s3, bucketTtl);
+        bucketDirectory.startBackgroundRefresh();
+
         System.out.println("S3 services are enabled.");
     }
 
@@ -349,6 +1583,7 @@ public class S3Manager {
         System.out.println("Creating bucket " + aName + "\n");
         try {
             s3.createBucket(aName);
+            bucketDirectory.invalidate();
         } catch (final AmazonS3Exception as3e) {
             System.out.println(as3e.getMessage());
         } catch (final AmazonServiceException ase) {
@@ -378,13 +1613,33 @@ public class S3Manager {
      * @return  true of success
      */
     public boolean deleteBucket(final String name) {
+        return deleteBucket(name, false);
+    }
+
+    /**
+     * Delete an existing S3 bucket for this user's account, optionally 
+     * draining it first. Catch AmazonS3Exception for invalid permissions.
+     *
+     * @param name  name of the bucket to delete
+     * @param force  true to delete every object in the bucket first
+     * @return  true of success
+     */
+    public boolean deleteBucket(final String name, final boolean force) {
         boolean ret = true;
         final String fullName = findBucket(name);
 
         try {
             if (null != fullName) {
+                if (force && !drainBucket(fullName)) {
+                    System.out.println("Bucket " + fullName + " could not be "
+                            + "emptied");
+                    return false;
+                }
                 System.out.println("Deleting bucket " + fullName);
                 s3.deleteBucket(fullName);
+                indexes.remove(fullName);
+                saifeManager.invalidateShare(fullName);
+                bucketDirectory.invalidate();
             }
         } catch (final AmazonS3Exception as3e) {
             System.out.println(as3e.getMessage());
@@ -413,36 +1668,24 @@ public class S3Manager {
 
     /**
      * Search through all visible buckets and return the full name of the
-     * bucket, returns null if none or more than one
+     * bucket, returns null if none or more than one. An exact name wins over
+     * longer names that start with it. Answered from the cached bucket 
+     * directory.
      *
      * @param name  name of the bucket to find, has to be minimal String to
      * identify a visible bucket
      * @return  the full name of the bucket, null if not found or more than one
      */
     public String findBucket(String name) {
-        boolean found = false;
-        String fullName = null;
+        final String fullName = bucketDirectory.resolve(name);
 
-        final List<String> buckets = listBuckets();
-
-        for (final String bucket : buckets) {
-            if ( name.length() <= bucket.length() 
-                    && name.equals(bucket.substring(0,name.length()))) {
-                if (!found) {
-                    fullName = bucket;
-                    found = true;
-                } else {
-                    System.out.println("More than one bucket for name " + name);
-                    fullName = null;
-                    break;
-                }
+        if (null == fullName) {
+            if (bucketDirectory.count(name) > 1) {
+                System.out.println("More than one bucket for name " + name);
+            } else {
+                System.out.println("No bucket " + name + " found");
             }
         }
-        
-        if (!found)
-        {
-            System.out.println("No bucket " + name + " found");
-        }
 
         return fullName;
     }
@@ -455,45 +1698,52 @@ public class S3Manager {
      * @return  true of exists
      */
     public boolean doesBucketExist(final String name) {
-        final List<String> buckets = listBuckets();
-
-        return buckets.contains(name);
+        return bucketDirectory.contains(name);
     }
 
     /**
-     * Method to check the contents of a bucket, ignoring NSKs
+     * Method to check the contents of a bucket, ignoring NSKs. Uses the
+     * bucket's object index, so repeated checks cost no extra requests.
      *
      * @param fileName  file to check of containment
      * @return  true if contains
      */
     public boolean doesBucketContain(String fileName) {
-    final List<String> files = this.listFiles();
-        if (files.contains(fileName)) {
-            return true;
+        if (null != getLocalStore()) {
+            return !isInternal(fileName) 
+                && localFiles().containsKey(fileName);
+        }
+        try {
+            return !isInternal(fileName) 
+                && getFreshIndex().contains(fileName);
+        } catch (final AmazonS3Exception as3e) {
+            System.out.println(as3e.getMessage());
         }
 
         return false;
     }
 
     /**
-     * Searches for files in the current S3 bucket, ignoring NSKs. Catch
-     * AmazonS3Exception for invalid permissions
+     * Searches for files in the current S3 bucket, ignoring NSKs. Answered
+     * from the bucket's object index. Catch AmazonS3Exception for invalid 
+     * permissions
      * 
      * @return the object tags
      */
     public List<String> listFiles() {
         final List<String> names = new Vector<String>();
+        if (null != getLocalStore()) {
+            names.addAll(localFiles().keySet());
+            return names;
+        }
 
         try {
-            // filter out NSKs by using `.NSK.` delimiter
-            final ListObjectsRequest objectRequest = new ListObjectsRequest()
-                .withBucketName(bucketName).withPrefix("")
-                .withDelimiter(".NSK.");
-            final ObjectListing objectListing = s3.listObjects(objectRequest);
-
-            for (final S3ObjectSummary objectSummary : objectListing
-                    .getObjectSummaries()) {
-                names.add(objectSummary.getKey());
+            // filter out NSKs, as a `.NSK.` delimiter would, and the other
+            // share metadata
+            for (final String key : getFreshIndex().keys()) {
+                if (!isInternal(key)) {
+                    names.add(key);
+                }
             }
         } catch (final AmazonS3Exception as3e) {
             System.out.println(as3e.getMessage());
@@ -503,10 +1753,58 @@ public class S3Manager {
 
     /**
      * Pretty prints the files in the currently selected share, mimicking
-     * aws-cli's own `ls` command. Catch AmazonS3Exception for invalid
-     * permissions
+     * aws-cli's own `ls` command. The files come from the share index, 
+     * built from a bucket listing the first time a share is listed. Sizes 
+     * are plain text sizes, except for files only the bucket knew of.
+     *
+     * @param reconcile true to also check the index against a new listing
+     * of the bucket, so changes made by clients that keep no index show up
      */
-    public void printFiles() {
+    public void printFiles(final boolean reconcile) {
+        Map<String, ShareIndex.Entry> files = null;
+        try {
+            if (null != getLocalStore()) {
+                // a local store keeps no share index
+                files = localFiles();
+            } else {
+                files = getShareIndex().load();
+                if (null == files) {
+                    files = getShareIndex().rebuild();
+                } else if (reconcile) {
+                    files = getShareIndex().reconcile(files);
+                }
+            }
+        } catch (final IOException e) {
+            System.out.println("Share index unavailable, listing the bucket: "
+                    + e.getMessage());
+            printListing();
+            return;
+        }
+
+        int keyMax = 0;
+        int sizeMax = 10;
+        for (final Map.Entry<String, ShareIndex.Entry> e : files.entrySet()) {
+            sizeMax = Math.max(sizeMax, 
+                    Long.toString(e.getValue().getSize()).length());
+            keyMax = Math.max(keyMax, e.getKey().length());
+        }
+
+        final DateTimeFormatter isodate = ISODateTimeFormat.date();
+        final DateTimeFormatter isotime = ISODateTimeFormat.timeNoMillis();
+        for (final Map.Entry<String, ShareIndex.Entry> e : files.entrySet()) {
+            final DateTime dt = new DateTime(e.getValue().getMtime());
+            System.out.format("%s %10s %8s %" + sizeMax + "dB %-" + keyMax 
+                    + "s%n", bucketName, isodate.print(dt), 
+                    isotime.print(dt).substring(0, 8), e.getValue().getSize(),
+                    e.getKey());
+        }
+    }
+
+    /**
+     * Prints the files of the current bucket from a listing of the bucket,
+     * for shares whose index can't be read.
+     */
+    void printListing() {
 
         int keyMax = 0;
         int dateMax = 10;
@@ -524,6 +1822,9 @@ public class S3Manager {
 
             for (final S3ObjectSummary objectSummary : objectListing
                     .getObjectSummaries()) {
+                if (isInternal(objectSummary.getKey())) {
+                    continue;
+                }
 
                 sizeMax = 
                     (Long.toString(objectSummary.getSize()).length() > sizeMax) 
@@ -536,6 +1837,9 @@ public class S3Manager {
 
             for (final S3ObjectSummary objectSummary : objectListing
                     .getObjectSummaries()) {
+                if (isInternal(objectSummary.getKey())) {
+                    continue;
+                }
                 final long size = objectSummary.getSize();
                 final DateTime dt = new DateTime(objectSummary
                         .getLastModified());
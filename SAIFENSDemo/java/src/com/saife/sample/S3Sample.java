@@ -18,10 +18,18 @@
  */
 package com.saife.sample;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 /**
@@ -78,6 +86,11 @@ public class S3Sample {
         // create a scanner for keyboard input
         final Scanner keyboard = new Scanner(System.in);
 
+        // stdout carries the file, so messages go to stderr from the start
+        if (args.length > 0 && writesStdout(args)) {
+            System.setOut(System.err);
+        }
+
         final S3Sample s = new S3Sample();
 
         if (args.length == 0) {
@@ -111,6 +124,15 @@ public class S3Sample {
      * @param args  arguments from command line
      */
     public static void runCommands(String[] args) {
+        if ("push".equals(args[0]) || "pull".equals(args[0]) 
+                || "sync".equals(args[0])) {
+            args = parseTransferOptions(args);
+        } else if ("files".equals(args[0])) {
+            args = parseListOptions(args);
+            if (null == args) {
+                return;
+            }
+        }
         final int argslen = args.length;
 
         switch (args[0]) {
@@ -134,8 +156,14 @@ public class S3Sample {
             case "delete":
                 if (argslen < 2 ) { 
                     help("delete");
+                } else if ("--force".equals(args[1])) {
+                    if (argslen < 3) {
+                        help("delete");
+                    } else {
+                        deleteShare(args[2], true);
+                    }
                 } else {
-                    deleteShare(args[1]);
+                    deleteShare(args[1], false);
                 }
                 break;
             case "push":
@@ -152,6 +180,21 @@ public class S3Sample {
                     pullFiles(args[1], Arrays.copyOfRange(args, 2, argslen));
                 }
                 break;
+            case "sync":
+                if (argslen < 3) {
+                    help("sync");
+                } else {
+                    syncDirectory(args[1], args[2]);
+                }
+                break;
+            case "cat":
+                if (argslen < 3) {
+                    help("cat");
+                } else {
+                    catFile(args[1], args[2], (argslen > 3) ? args[3] : null,
+                            (argslen > 4) ? args[4] : null);
+                }
+                break;
             case "remove":
                 if (argslen < 3) {
                     help("remove");
@@ -174,6 +217,183 @@ public class S3Sample {
         }
     }
 
+    /**
+     * Strips the transfer options from push, pull or sync arguments. Options
+     * come right after the command, e.g. `push -j 8 <share> <files>`.
+     *
+     * @param args  arguments from command line
+     * @return  the arguments without the options
+     */
+    private static String[] parseTransferOptions(String[] args) {
+        jobs = 1;
+        syncDelete = false;
+        syncPull = false;
+        recursive = false;
+        s3m.setDedup(false);
+        s3m.setCompression(null);
+        s3m.setChunked(false, ChunkedStore.DEFAULT_CHUNK);
+        s3m.setCryptoThreads(1);
+        s3m.setAdaptive(0);
+        s3m.getScheduler().setRate(0);
+        s3m.getScheduler().setMaxActive(DEFAULT_MAX_ACTIVE);
+        MemoryBudget.global().setCap(MemoryBudget.defaultCap());
+        int i = 1;
+        while (i < args.length && args[i].startsWith("-")) {
+            if ("-j".equals(args[i]) && i + 1 < args.length 
+                    && args[i + 1].startsWith("auto")) {
+                jobs = parseAdaptive(args[i + 1]);
+                s3m.setAdaptive(jobs);
+                i += 2;
+            } else if ("-j".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    jobs = Math.max(1, Integer.parseInt(args[i + 1]));
+                } catch (final NumberFormatException e) {
+                    System.out.println("Invalid worker count " + args[i + 1] 
+                        + ", using 1");
+                }
+                i += 2;
+            } else if ("-p".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    s3m.setCryptoThreads(Integer.parseInt(args[i + 1]));
+                } catch (final NumberFormatException e) {
+                    System.out.println("Invalid thread count " + args[i + 1] 
+                        + ", using 1");
+                }
+                i += 2;
+            } else if ("--bwlimit".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    s3m.getScheduler().setRate(
+                            Sizes.parse(args[i + 1]));
+                } catch (final NumberFormatException e) {
+                    System.out.println("Invalid rate " + args[i + 1] 
+                        + ", not limiting");
+                }
+                i += 2;
+            } else if ("--max-active".equals(args[i]) 
+                    && i + 1 < args.length) {
+                try {
+                    s3m.getScheduler().setMaxActive(
+                            Integer.parseInt(args[i + 1]));
+                } catch (final NumberFormatException e) {
+                    System.out.println("Invalid transfer count " 
+                        + args[i + 1] + ", using " + DEFAULT_MAX_ACTIVE);
+                }
+                i += 2;
+            } else if ("--mem".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    MemoryBudget.global().setCap(
+                            Sizes.parse(args[i + 1]));
+                } catch (final NumberFormatException e) {
+                    System.out.println("Invalid memory size " + args[i + 1] 
+                        + ", using " + MemoryBudget.defaultCap() + "B");
+                }
+                i += 2;
+            } else if ("-r".equals(args[i])) {
+                recursive = true;
+                i++;
+            } else if ("--dedup".equals(args[i])) {
+                s3m.setDedup(true);
+                i++;
+            } else if ("--chunked".equals(args[i])) {
+                s3m.setChunked(true, ChunkedStore.DEFAULT_CHUNK);
+                i++;
+            } else if ("--compress".equals(args[i])) {
+                s3m.setCompression(DeflateCodec.NAME);
+                i++;
+            } else if ("--delete".equals(args[i])) {
+                syncDelete = true;
+                i++;
+            } else if ("--pull".equals(args[i])) {
+                syncPull = true;
+                i++;
+            } else {
+                System.out.println("Unknown option " + args[i]);
+                i++;
+            }
+        }
+
+        final String[] rest = new String[args.length - i + 1];
+        rest[0] = args[0];
+        System.arraycopy(args, i, rest, 1, args.length - i);
+        return rest;
+    }
+
+    /**
+     * Strips the listing options from files arguments. Any filter, sort or
+     * count option selects the streaming listing.
+     *
+     * @param args  arguments from command line
+     * @return  the arguments without the options, null if an option is 
+     * invalid
+     */
+    private static String[] parseListOptions(String[] args) {
+        lister = new FileLister();
+        streamList = false;
+        reconcileList = false;
+        int i = 1;
+        try {
+            while (i < args.length && args[i].startsWith("--")) {
+                final String opt = args[i];
+                if ("--reconcile".equals(opt)) {
+                    // reads the share index, so does not stream
+                    reconcileList = true;
+                    i++;
+                    continue;
+                } else if ("--stream".equals(opt)) {
+                    i++;
+                } else if ("--count".equals(opt)) {
+                    lister.setCountOnly(true);
+                    i++;
+                } else if (i + 1 >= args.length) {
+                    System.out.println("Option " + opt + " needs a value");
+                    return null;
+                } else if ("--glob".equals(opt)) {
+                    lister.setGlob(args[i + 1]);
+                    i += 2;
+                } else if ("--min-size".equals(opt)) {
+                    lister.setSizeRange(Sizes.parse(args[i + 1]), 
+                            lister.maxSize);
+                    i += 2;
+                } else if ("--max-size".equals(opt)) {
+                    lister.setSizeRange(lister.minSize, 
+                            Sizes.parse(args[i + 1]));
+                    i += 2;
+                } else if ("--since".equals(opt)) {
+                    lister.setSince(FileLister.parseSince(args[i + 1], 
+                                System.currentTimeMillis()));
+                    i += 2;
+                } else if ("--sort".equals(opt)) {
+                    if (!lister.setOrder(args[i + 1])) {
+                        System.out.println("Unknown sort " + args[i + 1] 
+                            + ", use name, size or mtime");
+                        return null;
+                    }
+                    i += 2;
+                } else if ("--top".equals(opt)) {
+                    lister.setTop(Integer.parseInt(args[i + 1]));
+                    i += 2;
+                } else {
+                    System.out.println("Unknown option " + opt);
+                    return null;
+                }
+                streamList = true;
+            }
+        } catch (final IllegalArgumentException e) {
+            System.out.println("Invalid value for " + args[i] + ": " 
+                + args[i + 1]);
+            return null;
+        }
+        if (!lister.isStreamable()) {
+            System.out.println("Sorting by size or mtime needs --top <n>");
+            return null;
+        }
+
+        final String[] rest = new String[args.length - i + 1];
+        rest[0] = args[0];
+        System.arraycopy(args, i, rest, 1, args.length - i);
+        return rest;
+    }
+
     /**
      * method to list the shares
      *
@@ -193,9 +413,15 @@ public class S3Sample {
      */
     private static void listFiles(String share) {
         final String fullName = s3m.findBucket(share);
-        if (null != fullName) {
+        if (null != fullName && streamList) {
+            s3m.setBucket(fullName);
+            lister.list(s3m.getS3Mgr(), fullName, System.out);
+        } else if (null != fullName) {
             s3m.setBucket(fullName);
-            s3m.printFiles();
+            // the share index is encrypted with the share's key
+            if (saifeManager.setupNS()) {
+                s3m.printFiles(reconcileList);
+            }
         } else {
             System.out.println("Error listing files for share " + share);
             return;
@@ -223,6 +449,30 @@ public class S3Sample {
             return false;
         }
 
+        if (recursive) {
+            boolean result = true;
+            for (String dir : files) {
+                System.out.println("Uploading tree " + dir + "...");
+                result = new TreeTransfer(s3m, jobs).push(Paths.get(dir)) 
+                    && result;
+            }
+            return result;
+        }
+
+        if (2 == files.length && "-".equals(files[0])) {
+            if (isInterp) {
+                System.out.println("Pushing from stdin is not available in "
+                    + "interpreter mode");
+                return false;
+            }
+            System.out.println("Uploading stdin to " + files[1] + "...");
+            return s3m.uploadFrom(System.in, files[1]);
+        }
+
+        if (jobs > 1) {
+            return pushParallel(files);
+        }
+
         for (String fileName : files) {
             System.out.println("Uploading " + fileName + "...");
             File file = new File(fileName);
@@ -261,6 +511,20 @@ public class S3Sample {
             return false;
         }
 
+        if (recursive) {
+            System.out.println("Downloading tree " + files[0] + "...");
+            return new TreeTransfer(s3m, jobs).pull(files[0], 
+                    Paths.get((files.length > 1) ? files[1] : files[0]));
+        }
+
+        if (2 == files.length && "-".equals(files[1])) {
+            return pullToStdout(share, files[0]);
+        }
+
+        if (jobs > 1) {
+            return pullParallel(share, files);
+        }
+
         for (String file : files) {
             System.out.println("Downloading " + file + "...");
             if (s3m.doesBucketContain(file)) {
@@ -276,6 +540,228 @@ public class S3Sample {
         return true;
     }
 
+    /**
+     * method to pull a file to stdout. Messages are sent to stderr while the
+     * file is written, so the output can be piped
+     *
+     * @param share     the network share to pull from
+     * @param file      the file to pull
+     * @return  true if success
+     */
+    private static boolean pullToStdout(String share, String file) {
+        if (!s3m.doesBucketContain(file)) {
+            System.err.println("Bucket " + share + " does not contain "
+                + "the file " + file);
+            return false;
+        }
+
+        final PrintStream messages = System.out;
+        System.setOut(System.err);
+        try {
+            return s3m.downloadTo(file, stdout);
+        } finally {
+            System.setOut(messages);
+        }
+    }
+
+    /**
+     * method to write a file, or a range of it, to stdout. A range is read
+     * from a file pushed with `--chunked` by fetching only the chunks that
+     * cover it
+     *
+     * @param share     the network share to read from
+     * @param file      the file to read
+     * @param offset    the first byte to write, null for the whole file
+     * @param length    the number of bytes to write, null for the rest
+     * @return  true if success
+     */
+    private static boolean catFile(String share, String file, String offset,
+            String length) {
+        long off = 0;
+        long len = -1;
+        try {
+            if (null != offset) {
+                off = Long.parseLong(offset);
+            }
+            if (null != length) {
+                len = Long.parseLong(length);
+            }
+        } catch (final NumberFormatException e) {
+            System.out.println("Invalid offset or length");
+            return false;
+        }
+
+        final String fullName = s3m.findBucket(share);
+        if (null != fullName) {
+            s3m.setBucket(fullName);
+        } else {
+            System.out.println("Bucket " + share + " does not exist");
+            return false;
+        }
+
+        if (!saifeManager.setupNS()) {
+            return false;
+        }
+
+        if (!s3m.doesBucketContain(file)) {
+            System.err.println("Bucket " + share + " does not contain "
+                + "the file " + file);
+            return false;
+        }
+
+        final PrintStream messages = System.out;
+        System.setOut(System.err);
+        try {
+            return (null == offset) ? s3m.downloadTo(file, stdout)
+                : s3m.readChunked(file, off, len, stdout);
+        } finally {
+            System.setOut(messages);
+        }
+    }
+
+    /**
+     * method to parse `-j auto` or `-j auto:<n>`, the adaptive worker count
+     *
+     * @param arg   the option value
+     * @return  the most workers the transfers may adapt up to
+     */
+    private static int parseAdaptive(String arg) {
+        if (arg.startsWith("auto:")) {
+            try {
+                return Math.max(1, Integer.parseInt(arg.substring(5)));
+            } catch (final NumberFormatException e) {
+                System.out.println("Invalid worker count " + arg.substring(5)
+                    + ", using " + DEFAULT_ADAPTIVE_MAX);
+            }
+        } else if (!"auto".equals(arg)) {
+            System.out.println("Invalid worker count " + arg + ", using " 
+                + DEFAULT_ADAPTIVE_MAX);
+        }
+        return DEFAULT_ADAPTIVE_MAX;
+    }
+
+    /**
+     * method to tell whether a command writes a file to stdout, i.e. `cat`
+     * or `pull <share> <file> -`
+     *
+     * @param args  arguments from command line
+     * @return  true if stdout carries data
+     */
+    private static boolean writesStdout(String[] args) {
+        return "cat".equals(args[0]) || "pull".equals(args[0])
+            && args.length > 3 && "-".equals(args[args.length - 1]);
+    }
+
+    /**
+     * method to push files concurrently, using `jobs` workers that share the
+     * NetworkShare set up by pushFiles
+     *
+     * @param files     the list of files to push
+     * @return  true if every file was pushed
+     */
+    private static boolean pushParallel(String[] files) {
+        final TransferBatch batch = s3m.newBatch("push", jobs);
+        boolean result = true;
+
+        for (String fileName : files) {
+            final File file = new File(fileName);
+            if (!file.exists()) {
+                System.out.println("File " + file + " does not exist");
+                result = false;
+            } else if (fileName.length() < 3) {
+                System.out.println("Filename too short: must be at least 3 "
+                    + "characters");
+                result = false;
+            } else {
+                batch.submit(fileName, new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return s3m.upload(file) ? file.length() : -1L;
+                    }
+                });
+            }
+        }
+
+        final boolean done = batch.await();
+        System.out.println(s3m.getScheduler());
+        System.out.println(MemoryBudget.global());
+        return done && result;
+    }
+
+    /**
+     * method to pull files concurrently, using `jobs` workers that share the
+     * NetworkShare set up by pullFiles
+     *
+     * @param share     the network share to pull from
+     * @param files     the list of files to pull
+     * @return  true if every file was pulled
+     */
+    private static boolean pullParallel(String share, String[] files) {
+        final TransferBatch batch = s3m.newBatch("pull", jobs);
+        boolean result = true;
+
+        for (final String file : files) {
+            if (s3m.doesBucketContain(file)) {
+                batch.submit(file, new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return s3m.download(file, null) 
+                            ? new File(file).length() : -1L;
+                    }
+                });
+            } else {
+                System.out.println("Bucket " + share + " does not contain "
+                    + "the file " + file);
+                result = false;
+            }
+        }
+
+        final boolean done = batch.await();
+        System.out.println(s3m.getRequestPolicy());
+        System.out.println(s3m.getScheduler());
+        System.out.println(MemoryBudget.global());
+        return done && result;
+    }
+
+    /**
+     * method to mirror a directory and a network share. Pushes by default,
+     * pulls with `--pull`; only new or changed files are transferred
+     *
+     * @param share     the network share to sync with
+     * @param dir       the local directory
+     * @return  true if success
+     */
+    private static boolean syncDirectory(String share, String dir) {
+        final File root = new File(dir);
+        if (!root.isDirectory()) {
+            if (syncPull && root.mkdirs()) {
+                System.out.println("Created " + dir);
+            } else {
+                System.out.println("Directory " + dir + " does not exist");
+                return false;
+            }
+        }
+
+        final String fullName = s3m.findBucket(share);
+        if (null != fullName) {
+            s3m.setBucket(fullName);
+        } else {
+            System.out.println("Bucket " + share + " does not exist");
+            return false;
+        }
+
+        if (!saifeManager.setupNS()) {
+            return false;
+        }
+
+        final DirectorySync sync = new DirectorySync(s3m, root.toPath(), 
+                jobs, syncDelete);
+        final boolean result = syncPull ? sync.pull() : sync.push();
+        System.out.println(s3m.getScheduler());
+        System.out.println(MemoryBudget.global());
+        return result;
+    }
+
     /**
      * method to remove a file from a network share
      *
@@ -296,18 +782,31 @@ public class S3Sample {
             return false;
         }
 
+        // membership comes from the object index, the deletes go out in
+        // batches of up to 1000 keys
+        final List<String> found = new ArrayList<String>();
+        boolean result = true;
         for (String file : files) {
-            System.out.println("Removing " + file + "...");
             if (s3m.doesBucketContain(file)) {
-                s3m.deleteObject(file);
+                System.out.println("Removing " + file + "...");
+                found.add(file);
             } else {
                 System.out.println("Bucket " + fullName + " does not contain the "
                     + "file " + file);
-                return false;
+                result = false;
             }
+        }
 
+        if (!found.isEmpty()) {
+            final int removed = s3m.deleteObjects(found);
+            System.out.println("Removed " + removed + " of " + found.size() 
+                + " files");
+            if (found.size() > BatchDeleter.MAX_BATCH) {
+                System.out.println("delete " + s3m.getDeleteConcurrency());
+            }
+            result = result && removed == found.size();
         }
-        return true;
+        return result;
     }
 
     /**
@@ -331,9 +830,10 @@ public class S3Sample {
      * method to delete a network share
      *
      * @param share     name of share to delete
+     * @param force     true to delete every object in the share first
      * @return  true if success
      */
-    private static boolean deleteShare(String share) {
+    private static boolean deleteShare(String share, boolean force) {
         final String fullName = s3m.findBucket(share);
         if (null == fullName) {
             System.out.println("Bucket " + share + " does not exist");
@@ -341,9 +841,7 @@ public class S3Sample {
         }
 
         System.out.println("Removing bucket " + fullName);
-        s3m.deleteBucket(fullName);
-
-        return true;
+        return s3m.deleteBucket(fullName, force);
     }
 
     /**
@@ -371,6 +869,12 @@ public class S3Sample {
                 case "pull":
                     helpPull();
                     break;
+                case "sync":
+                    helpSync();
+                    break;
+                case "cat":
+                    helpCat();
+                    break;
                 case "remove":
                     helpRemove();
                     break;
@@ -404,6 +908,67 @@ public class S3Sample {
      */
     private static boolean isInterp = false;
 
+    /**
+     * the process's standard output, kept for file data when messages are 
+     * moved to stderr
+     */
+    private static final OutputStream stdout = new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), 64 * 1024);
+
+    /**
+     * number of concurrent transfers for the current push or pull, set by the
+     * `-j` option
+     */
+    private static int jobs = 1;
+
+    /**
+     * true if the current sync deletes files missing from its source, set by
+     * the `--delete` option
+     */
+    private static boolean syncDelete = false;
+
+    /**
+     * true if the current sync pulls from the share, set by the `--pull`
+     * option
+     */
+    private static boolean syncPull = false;
+
+    /**
+     * the most transfers running at once unless `--max-active` says
+     * otherwise
+     */
+    private static final int DEFAULT_MAX_ACTIVE = 64;
+
+    /**
+     * the most transfers at once `-j auto` adapts up to, unless `auto:<n>`
+     * says otherwise
+     */
+    private static final int DEFAULT_ADAPTIVE_MAX = 32;
+
+    /**
+     * the filters and order of the current streaming listing, set by the
+     * `files` options
+     */
+    private static FileLister lister = new FileLister();
+
+    /**
+     * true if the current `files` streams the bucket listing rather than
+     * reading the share index
+     */
+    private static boolean streamList = false;
+
+    /**
+     * true if the current `files` checks the share index against a listing
+     * of the bucket, set by the `--reconcile` option
+     */
+    private static boolean reconcileList = false;
+
+    /**
+     * true if the current push or pull transfers a directory tree, set by
+     * the `-r` option
+     */
+    private static boolean recursive = false;
+
     /**
      * private class to hold all help method strings
      */
@@ -432,7 +997,9 @@ public class S3Sample {
             + "print error if it %n               does not exist. Delete will "
             + "provide some inferential detection %n               of the "
             + "bucket name.%n               Use the command `help share` for "
-            + "more information.%n";
+            + "more information.%n   --force     Delete every file in the "
+            + "share first, in concurrent batches %n               of up to "
+            + "1000 files.%n";
 
         /**
          * string for files command
@@ -442,7 +1009,27 @@ public class S3Sample {
             + "network share to list the files in. Files will "
             + "%n               provide some inferential detection of the "
             + "bucket name. %n               Use the command `help share` for "
-            + "more information%n";
+            + "more information%n%n   "
+            + "--reconcile         Check the share index against a listing "
+            + "of the %n                       bucket, for files pushed by "
+            + "clients that keep %n                       no index.%n%n"
+            + "Any of these options stream the bucket "
+            + "listing a page at a time, %nin constant memory; sizes are "
+            + "then those of the encrypted objects.%n   "
+            + "--stream            Stream without filtering.%n   "
+            + "--glob <pattern>    List names matching the glob, e.g. "
+            + "'logs/**.gz'.%n   "
+            + "--min-size <n>      List files of at least n bytes, e.g. "
+            + "10M.%n   "
+            + "--max-size <n>      List files of at most n bytes.%n   "
+            + "--since <time>      List files modified since a date, or an "
+            + "age %n                       such as 12h or 7d.%n   "
+            + "--sort <key>        Order by name, size (largest first) or "
+            + "mtime %n                       (newest first). size and mtime "
+            + "need --top.%n   "
+            + "--top <n>           List only the first n files.%n   "
+            + "--count             Print only the number and total size of "
+            + "the files.%n";
 
         /**
          * help string for push command
@@ -452,7 +1039,25 @@ public class S3Sample {
             + "network share to push into. Push will provide %n               "
             + "some inferential detection of the bucket name. %n               "
             + "Use the command `help share` for more information.%n   "
-            + "<files>     The names of the files you want to push. %n";
+            + "<files>     The names of the files you want to push. Use "
+            + "`- <name>` to %n               push stdin as the file <name>."
+            + "%n   "
+            + "-j <n>      Push up to n files at once, then print a summary."
+            + "%n   -j auto[:n] Adapt the files at once to the link, up to n "
+            + "%n               (32), cutting back when S3 throttles.%n   "
+            + "--bwlimit <rate>  Share at most rate bytes/s, e.g. 10M, "
+            + "among %n               transfers; pulls go first.%n   "
+            + "--max-active <n>  Run at most n transfers at once.%n   "
+            + "--mem <size> Hold at most size bytes, e.g. 64M, in transfer "
+            + "%n               buffers, spilling to disk beyond it.%n   "
+            + "-p <n>      Encrypt each file on n threads, as segments sent "
+            + "%n               in parallel.%n   "
+            + "-r          Push directories as trees, with a manifest "
+            + "%n               that `pull -r` restores them from.%n   "
+            + "--dedup     Send only chunks the share does not already "
+            + "hold.%n   --compress  Deflate files that compress well before "
+            + "encrypting them.%n   --chunked   Store files in encrypted 1 MB "
+            + "chunks, so `cat` can %n               read ranges of them.%n";
 
         /**
          * help string for pull command
@@ -462,7 +1067,64 @@ public class S3Sample {
             + "network share to pull from. Pull will provide %n               "
             + "some inferential detection of the bucket name. %n               "
             + "Use the command `help share` for more information.%n   "
-            + "<files>     The names of the files you want to pull.%n";
+            + "<files>     The names of the files you want to pull. Use "
+            + "`<name> -` to %n               write the file <name> to "
+            + "stdout.%n   "
+            + "-j <n>      Pull up to n files at once, then print a summary."
+            + "%n   -j auto[:n] Adapt the files at once to the link, up to n "
+            + "%n               (32), cutting back when S3 throttles.%n   "
+            + "--bwlimit <rate>  Share at most rate bytes/s, e.g. 10M, "
+            + "among %n               transfers.%n   "
+            + "--max-active <n>  Run at most n transfers at once.%n   "
+            + "--mem <size> Hold at most size bytes, e.g. 64M, in transfer "
+            + "%n               buffers, spilling to disk beyond it.%n   "
+            + "-p <n>      Decrypt files pushed with -p or --chunked on n "
+            + "threads.%n   -r          Pull the tree pushed as <name> with "
+            + "`push -r`, into %n               the directory <dir>, or "
+            + "./<name>.%n";
+
+        /**
+         * help string for sync command
+         */
+        public static final String SYNC = "Mirrors a local directory and the "
+            + "provided network share, transferring %nonly new or changed "
+            + "files. The state of each file is kept in `.ns-sync` %nin the "
+            + "directory, so unchanged files are not read again.%n%n   "
+            + "<share>     The name of the network share to sync with. Sync "
+            + "will provide %n               some inferential detection of "
+            + "the bucket name. %n               Use the command `help share` "
+            + "for more information.%n   <dir>       The directory to sync. "
+            + "Files in subdirectories are %n               named by their "
+            + "relative path.%n   "
+            + "-j <n>      Transfer up to n files at once.%n   "
+            + "-j auto[:n] Adapt the files at once to the link, up to n "
+            + "%n               (32), cutting back when S3 throttles.%n   "
+            + "--bwlimit <rate>  Share at most rate bytes/s, e.g. 10M, "
+            + "among %n               transfers.%n   "
+            + "--max-active <n>  Run at most n transfers at once.%n   "
+            + "--mem <size> Hold at most size bytes, e.g. 64M, in transfer "
+            + "%n               buffers, spilling to disk beyond it.%n   "
+            + "-p <n>      Encrypt and decrypt each file on n threads.%n   "
+            + "--pull      Copy the share into the directory. By default the "
+            + "directory %n               is copied into the share.%n   "
+            + "--delete    Delete files that are missing from the source.%n   "
+            + "--dedup     Send only chunks the share does not already "
+            + "hold.%n   --compress  Deflate files that compress well before "
+            + "encrypting them.%n";
+
+        /**
+         * help string for cat command
+         */
+        public static final String CAT = "Writes a file, or a range of it, "
+            + "to stdout.%n%n   <share>     The name of the network share to "
+            + "read from. Cat will provide %n               some inferential "
+            + "detection of the bucket name. %n               Use the command "
+            + "`help share` for more information.%n   <file>      The name of "
+            + "the file to read.%n   <offset>    The first byte to write. "
+            + "Ranges need a file pushed %n               with `--chunked`; "
+            + "only the chunks covering the range %n               are "
+            + "downloaded.%n   <length>    The number of bytes to write, the "
+            + "rest of the file %n               if omitted.%n";
 
         /**
          * help string for remove command
@@ -530,7 +1192,9 @@ public class S3Sample {
             + "%ncommands that deal with files inside of shares%n  files     "
             + "list all the files in the selected share%n  push      push the "
             + "selected files into the specified share%n  pull      pull the "
-            + "selected files from the specified share%n  remove    remove "
+            + "selected files from the specified share%n  sync      mirror a "
+            + "directory and the specified share%n  cat       write a file, "
+            + "or a range of it, to stdout%n  remove    remove "
             + "the selected files from the specified share%n%nmiscellaneous "
             + "commands:%n  help      display the help screen, or help with a "
             + "specific command%n";
@@ -557,7 +1221,8 @@ public class S3Sample {
      * method to print the help dialog for the delete command
      */
     private static void helpDelete() {
-        System.out.printf("usage:%s delete <share>%n", isInterp ? "" : " ns");
+        System.out.printf("usage:%s delete [--force] <share>%n", 
+                isInterp ? "" : " ns");
         System.out.printf(HelpStrings.DELETE);
     }
 
@@ -573,7 +1238,11 @@ public class S3Sample {
      * method to print the help dialog for the files command
      */
     private static void helpFiles() {
-        System.out.printf("usage:%s files <share>%n", isInterp ? "" : " ns");
+        System.out.printf("usage:%s files [--reconcile] [--stream] "
+                + "[--glob <pattern>] %n             [--min-size <n>] "
+                + "[--max-size <n>] [--since <time>] %n             "
+                + "[--sort <key>] [--top <n>] [--count] <share>%n", 
+                isInterp ? "" : " ns");
         System.out.printf(HelpStrings.FILES);
     }
 
@@ -581,8 +1250,11 @@ public class S3Sample {
      * method to print the help dialog for the push command
      */
     private static void helpPush() {
-        System.out.printf("usage:%s push <share> <files>%n", isInterp ? "" 
-                : " ns");
+        System.out.printf("usage:%s push [-j <n>] [-p <n>] [-r] "
+                + "[--bwlimit <rate>] [--max-active <n>] %n            "
+                + "[--mem <size>] [--dedup] [--compress] [--chunked] "
+                + "<share> <files>%n", 
+                isInterp ? "" : " ns");
         System.out.printf(HelpStrings.PUSH);
     }
 
@@ -590,11 +1262,36 @@ public class S3Sample {
      * method to print the help dialog for the pull command
      */
     private static void helpPull() {
-        System.out.printf("usage:%s pull <share> <files>%n", isInterp ? "" 
-                : " ns");
+        System.out.printf("usage:%s pull [-j <n>] [-p <n>] [--bwlimit <rate>] "
+                + "[--max-active <n>] %n            [--mem <size>] "
+                + "<share> <files>%n", 
+                isInterp ? "" : " ns");
+        System.out.printf("      %s pull -r [-j <n>] <share> <name> "
+                + "[<dir>]%n", isInterp ? "" : " ns");
         System.out.printf(HelpStrings.PULL);
     }
 
+    /**
+     * method to print the help dialog for the sync command
+     */
+    private static void helpSync() {
+        System.out.printf("usage:%s sync [-j <n>] [-p <n>] [--pull] "
+                + "[--delete] [--dedup] [--compress] %n            "
+                + "[--bwlimit <rate>] [--max-active <n>] [--mem <size>] "
+                + "%n            <share> <dir>%n", 
+                isInterp ? "" : " ns");
+        System.out.printf(HelpStrings.SYNC);
+    }
+
+    /**
+     * method to print the help dialog for the cat command
+     */
+    private static void helpCat() {
+        System.out.printf("usage:%s cat <share> <file> [<offset> "
+                + "[<length>]]%n", isInterp ? "" : " ns");
+        System.out.printf(HelpStrings.CAT);
+    }
+
     /**
      * method to print the help dialog for the remove command
      */
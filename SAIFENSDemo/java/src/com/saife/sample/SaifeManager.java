@@ -18,7 +18,6 @@
  */
 package com.saife.sample;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileInputStream;
@@ -27,11 +26,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.S3Object;
 import com.google.gson.Gson;
 import com.saife.NotAllowedException;
@@ -76,25 +87,81 @@ public class SaifeManager {
     public class S3OutputStream extends OutputStream {
 
         /** The objectData stream to store data in until it is written out. */
-        ByteArrayOutputStream objectData = null;
+        SegmentBuffer objectData = null;
 
         /** The objectName. */
         String objectName;
 
+        /** The bucket the object is written to. */
+        final String bucket;
+
+        /**
+         * The multipart upload, started once a full part has been written.
+         * Null while the object is still small enough for a single put.
+         */
+        MultipartUpload multipart = null;
+
+        /** The multipart flag. False keeps the object in one put. */
+        final boolean multipartEnabled;
+
+        /** The number of bytes written to the object. */
+        long written = 0;
+
+        /** The aborted flag. True once the object is to be discarded. */
+        boolean aborted = false;
+
+        /** The failure of a shipped part, null while the upload is fine. */
+        IOException failure = null;
+
+        /** The user metadata stored with the object. */
+        final Map<String, String> userMetadata = 
+            new HashMap<String, String>();
+
         /**
          * The constructor initializes a byte output stream
          *
          * @param name the S3 object tag
          */
         public S3OutputStream(final String name) {
-            objectName = name;
-            objectData = new ByteArrayOutputStream();
+            this(name, multipartUploads);
+        }
 
+        /**
+         * The constructor initializes a byte output stream
+         *
+         * @param name the S3 object tag
+         * @param useMultipart true to ship full parts while writing
+         */
+        public S3OutputStream(final String name, final boolean useMultipart) {
+            this(s3m.getBucket(), name, useMultipart);
+        }
+
+        /**
+         * The constructor initializes a byte output stream
+         *
+         * @param bucketName the bucket to write to
+         * @param name the S3 object tag
+         * @param useMultipart true to ship full parts while writing
+         */
+        public S3OutputStream(final String bucketName, final String name, 
+                final boolean useMultipart) {
+            bucket = bucketName;
+            objectName = name;
+            objectData = new SegmentBuffer(directBuffers);
+            multipartEnabled = useMultipart;
         }
 
         @Override
         public void write(final int arg0) throws IOException {
+            if (aborted) {
+                checkFailure();
+                return;
+            }
             objectData.write(arg0);
+            written++;
+            if (multipartEnabled && objectData.size() >= partSize) {
+                shipPart();
+            }
         }
 
         @Override
@@ -104,50 +171,169 @@ public class SaifeManager {
 
         @Override
         public void write(final byte[] b) throws IOException {
-            objectData.write(b);
+            write(b, 0, b.length);
         }
 
         @Override
         public void write(final byte[] b, final int off, final int len) 
                 throws IOException {
-            objectData.write(b, off, len);
+            if (aborted) {
+                checkFailure();
+                return;
+            }
+            written += len;
+            if (!multipartEnabled) {
+                objectData.write(b, off, len);
+                return;
+            }
+
+            int pos = off;
+            int left = len;
+            while (left > 0) {
+                final int n = (int) Math.min(left, 
+                        partSize - objectData.size());
+                objectData.write(b, pos, n);
+                pos += n;
+                left -= n;
+                if (objectData.size() >= partSize) {
+                    shipPart();
+                }
+            }
+        }
+
+        /**
+         * Discards the object: parts already sent are dropped and close() 
+         * will not write anything to S3.
+         */
+        public void abort() {
+            aborted = true;
+            if (null != multipart) {
+                multipart.abort();
+                multipart = null;
+            }
+            objectData.reset();
         }
 
         @Override
         public void close() throws IOException {
+            if (aborted) {
+                objectData.close();
+                // a failed part must not leave the caller thinking the
+                // object was stored
+                checkFailure();
+                return;
+            }
             try {
                 flush();
             } catch (final Exception e) {
                 // do nothing.
             }
-            if (objectData.size() > 0) {
-                writeOut();
+            try {
+                if (null != multipart) {
+                    // the tail goes out as the last part; an empty tail is
+                    // skipped since at least one full part was shipped
+                    if (objectData.size() > 0) {
+                        shipPart();
+                    }
+                    System.out.println("writeOut: file " + objectName + " in "
+                            + multipart.getPartCount() + " parts.");
+                    final String etag = multipart.complete();
+                    multipart = null;
+                    s3m.recordObject(bucket, objectName, written, etag);
+                } else if (objectData.size() > 0) {
+                    writeOut();
+                }
+            } finally {
+                objectData.close();
+            }
+        }
+
+        /**
+         * Hands the buffered bytes to the multipart upload as the next part,
+         * starting the upload first if needed. Blocks when the configured
+         * number of parts are already in flight.
+         *
+         * @throws IOException if the upload can't be started or has failed
+         */
+        void shipPart() throws IOException {
+            if (null == multipart) {
+                multipart = new MultipartUpload(s3m.getS3Mgr(), 
+                        bucket, objectName, getPartPool(), 
+                        partsInFlight);
+                multipart.begin(newMetadata());
+            }
+            // the part keeps the filled segments, writing goes on in a new
+            // buffer so nothing is copied
+            final SegmentBuffer part = objectData;
+            objectData = new SegmentBuffer(directBuffers);
+            try {
+                multipart.submitPart(part);
+            } catch (final IOException e) {
+                failure = e;
+                abort();
+                throw e;
             }
-            objectData.close();
         }
 
         /**
-         * Writes the file out to S3
+         * Throws again the failure of a shipped part, if any. Once a part 
+         * fails the object is discarded, and the bytes written after it are
+         * never stored as an object of their own.
+         *
+         * @throws IOException if a part failed
+         */
+        void checkFailure() throws IOException {
+            if (null != failure) {
+                throw new IOException("Upload of " + objectName 
+                        + " failed: " + failure.getMessage(), failure);
+            }
+        }
+
+        /**
+         * Writes the file out to S3. The segments are streamed straight into
+         * the request, with the length known up front, so no temp file is
+         * needed.
          */
         public void writeOut() {
             System.out.println("writeOut: file " + objectName + ".");
 
-            final File file = toFile();
-            if (null != file) {
-                s3m.getS3Mgr().putObject(new PutObjectRequest(s3m.getBucket(), 
-                            objectName, file));
-                file.delete();
-            } else {
-                System.out.println("writeOut: Uploadable persistent object "
-                        + "without a file.");
-            }
+            final ObjectMetadata meta = newMetadata();
+            meta.setContentLength(objectData.size());
+            final PutObjectRequest req = new PutObjectRequest(bucket,
+                    objectName, objectData.newInputStream(), meta);
+            // the segment stream supports mark/reset for retries
+            req.getRequestClientOptions().setReadLimit(
+                    (int) Math.min(Integer.MAX_VALUE, objectData.size() + 1));
+            final PutObjectResult result = s3m.getS3Mgr().putObject(req);
+            s3m.recordObject(bucket, objectName, objectData.size(), 
+                    result.getETag());
             objectData.reset();
         }
 
         /**
-         * S3 uploads entire files, so the easiest thing is to create a temp 
-         * file and let Amazon handle it. The temp file is encrypted and 
-         * secure, just like the data stored in S3. Also only temporary.
+         * Sets a user metadata entry, such as the object layout. Must be 
+         * called before the first part is shipped.
+         *
+         * @param key the metadata key
+         * @param value the value
+         */
+        public void setUserMetadata(final String key, final String value) {
+            userMetadata.put(key, value);
+        }
+
+        /**
+         * @return new S3 metadata carrying the user metadata
+         */
+        ObjectMetadata newMetadata() {
+            final ObjectMetadata meta = new ObjectMetadata();
+            meta.setUserMetadata(userMetadata);
+            return meta;
+        }
+
+        /**
+         * Copies the object to a temp file, for callers that need one. The
+         * temp file is encrypted and secure, just like the data stored in S3.
+         * Also only temporary.
          * 
          * @return File. Deleted after use.
          */
@@ -161,7 +347,7 @@ public class SaifeManager {
                 return null;
             }
 
-            OutputStream os = null;
+            FileOutputStream os = null;
             try {
                 os = new FileOutputStream(file);
             } catch (final FileNotFoundException e) {
@@ -172,22 +358,58 @@ public class SaifeManager {
                 return null;
             }
             try {
-                objectData.writeTo(os);
+                // gathering write, straight from the segments
+                objectData.writeTo(os.getChannel());
             } catch (final IOException e) {
                 System.out.println("getFile: could not write to temp file.");
                 e.printStackTrace();
+                file.delete();
+                return null;
+            } finally {
                 try {
                     os.close();
                 } catch (final IOException e1) {
                     // do nothing
                 }
-                file.delete();
-                return null;
             }
             return file;
         }
     }
 
+    /**
+     * @return the pool shared by every multipart upload
+     */
+    synchronized ExecutorService getPartPool() {
+        if (null == partPool) {
+            partPool = Executors.newFixedThreadPool(partThreads,
+                    new DaemonThreadFactory("s3-part"));
+        }
+        return partPool;
+    }
+
+    /**
+     * Configures multipart uploads for new S3 streams.
+     *
+     * @param enabled true to ship parts while the object is written
+     * @param size the part size in bytes, at least 5 MB
+     * @param inFlight the most parts one stream may hold in memory
+     */
+    public void setMultipart(final boolean enabled, final int size, 
+            final int inFlight) {
+        multipartUploads = enabled;
+        partSize = Math.max(MultipartUpload.MIN_PART_SIZE, size);
+        partsInFlight = Math.max(1, inFlight);
+    }
+
+    /**
+     * Selects heap or direct (off-heap) segments for new S3 streams.
+     *
+     * @param offHeap true to buffer objects outside the Java heap
+     */
+    public void setDirectBuffers(final boolean offHeap) {
+        directBuffers = offHeap;
+    }
+
     /**
      * @param name a storage tag for S3
      * @return a new S3Stream
@@ -196,6 +418,16 @@ public class SaifeManager {
         return new S3OutputStream(name);
     }
 
+    /**
+     * @param bucket the bucket to write to
+     * @param name a storage tag for S3
+     * @return a new S3Stream
+     */
+    public S3OutputStream getNewS3Stream(final String bucket, 
+            final String name) {
+        return new S3OutputStream(bucket, name, multipartUploads);
+    }
+
     /**
      * The saifeUpdater. The SAIFE library needs to updated successfully at 
      * least once. The thread can go away after that.
@@ -266,25 +498,40 @@ public class SaifeManager {
          */
         String objName;
 
+        /** The bucket of the Persister that listed the object. */
+        final String bucket;
+
         /** The objectData. */
         public S3OutputStream s3Data = null;
 
         /**
          * @return the stream for an object to be written to
          */
-        public ByteArrayOutputStream getStream() {
+        public SegmentBuffer getStream() {
             if (null == s3Data) {
-                s3Data = new S3OutputStream(objName);
+                s3Data = new S3OutputStream(bucket, objName, 
+                        multipartUploads);
             }
             return s3Data.objectData;
         }
 
         /**
-         * The constructor.
+         * The constructor. The object belongs to the current bucket.
          *
          * @param aName is set here, since it is convenient
          */
         public AnObject(final String aName) {
+            this(s3m.getBucket(), aName);
+        }
+
+        /**
+         * The constructor.
+         *
+         * @param bucketName the bucket the object is stored in
+         * @param aName the object name
+         */
+        public AnObject(final String bucketName, final String aName) {
+            bucket = bucketName;
             objName = aName;
         }
 
@@ -309,30 +556,47 @@ public class SaifeManager {
      */
     public class Persister implements PersistentStore {
 
+        /** The bucket holding this store's objects. */
+        final String bucket;
+
         /**
-         * The constructor.
+         * The constructor. The store is bound to the current bucket, so a
+         * cached NetworkShare keeps using the right one.
          */
         public Persister() {
+            this(s3m.getBucket());
+        }
+
+        /**
+         * The constructor.
+         *
+         * @param bucketName the bucket holding the store's objects
+         */
+        public Persister(final String bucketName) {
+            bucket = bucketName;
         }
 
+        /**
+         * Lists the objects whose names start with prefix. The prefix and a
+         * `/` delimiter go to S3 with the request, so only the matching
+         * objects at the top of the flat store come back. Pages are read as
+         * the NetworkShare walks the list.
+         */
         @Override
         public List<PersistedObject> getObjects(final String storagePath, 
                 final String prefix) throws IOException {
 
-            final List<PersistedObject> returnObjects = 
-                new Vector<PersistedObject>();
-            returnObjects.clear();
-
-            for (final String name : s3m.listObjects()) {
-                if (name.startsWith(prefix, 0)) {
-                    System.out.println("getObjects Found " + name);
-
-                    final AnObject newObj = new AnObject(name);
-
-                    returnObjects.add(newObj);
-                }
+            // ignoring storage path in this example everything is flat.
+            try {
+                return new LazyObjectList(SaifeManager.this, s3m.getS3Mgr(),
+                        new ListObjectsRequest().withBucketName(
+                            bucket).withPrefix(prefix)
+                        .withDelimiter("/")
+                        .withMaxKeys(ObjectIndex.PAGE_SIZE));
+            } catch (final AmazonClientException ace) {
+                throw new IOException("getObjects: failed to list " + prefix
+                        + ": " + ace.getMessage(), ace);
             }
-            return returnObjects;
         }
 
         @Override
@@ -358,11 +622,86 @@ public class SaifeManager {
         public InputStream getInputStream(final PersistedObject object) 
                 throws IOException {
 
-            final S3Object s3object = s3m.getS3Mgr().getObject(
-                    new GetObjectRequest(s3m.getBucket(), object.getName()));
-
             // This must be closed via the NS
-            return s3object.getObjectContent();
+            return open(object.getName()).getContent();
+        }
+
+        /**
+         * Fetches an object with its metadata. With an object cache, the 
+         * GET is conditional on the cached ETag, and an unchanged object is
+         * read from disk.
+         *
+         * @param name the object name
+         * @return the object
+         * @throws IOException if the object can't be fetched
+         */
+        public StoredObject open(final String name) throws IOException {
+            final ObjectCache cache = getObjectCache();
+            final ObjectCache.Meta cached = (null == cache) ? null 
+                : cache.lookup(bucket, name);
+
+            final GetObjectRequest req = new GetObjectRequest(bucket, name);
+            if (null != cached) {
+                req.setNonmatchingETagConstraints(
+                        Collections.singletonList(cached.etag));
+            }
+            final S3Object s3object = getObject(req);
+
+            if (null == s3object) {
+                // 304: the cached version is current
+                final InputStream is = cache.open(cached);
+                if (null != is) {
+                    return new StoredObject(is, cached.userMetadata, 
+                            cached.etag);
+                }
+                // evicted in the meantime
+                return open(name, null);
+            }
+            return open(name, s3object);
+        }
+
+        /**
+         * Wraps a fetched object, filling the object cache as it is read.
+         *
+         * @param name the object name
+         * @param fetched the object, null to fetch it unconditionally
+         * @return the object
+         * @throws IOException if the object can't be fetched
+         */
+        StoredObject open(final String name, final S3Object fetched) 
+                throws IOException {
+            final S3Object s3object = (null != fetched) ? fetched 
+                : getObject(new GetObjectRequest(bucket, name));
+            final ObjectMetadata meta = s3object.getObjectMetadata();
+            InputStream content = s3object.getObjectContent();
+
+            final ObjectCache cache = getObjectCache();
+            if (null != cache) {
+                final ObjectCache.Meta m = new ObjectCache.Meta();
+                m.bucket = bucket;
+                m.key = name;
+                m.etag = meta.getETag();
+                m.size = meta.getContentLength();
+                m.userMetadata = meta.getUserMetadata();
+                content = cache.fill(m, content);
+            }
+            return new StoredObject(content, meta.getUserMetadata(), 
+                    meta.getETag());
+        }
+
+        /**
+         * Sends a GET through the request policy.
+         *
+         * @param req the request
+         * @return the object, null if the ETag constraint was not met
+         * @throws IOException if the GET failed after its retries
+         */
+        S3Object getObject(final GetObjectRequest req) throws IOException {
+            final RequestPolicy policy = s3m.getRequestPolicy();
+            if (null == policy) {
+                return s3m.getS3Mgr().getObject(req);
+            }
+            return policy.getObject(req);
         }
 
         @Override
@@ -370,11 +709,8 @@ public class SaifeManager {
                 final String name) throws IOException {
 
             // ignoring storage path in this example everything is flat.
-            final S3Object s3object = s3m.getS3Mgr().getObject(
-                    new GetObjectRequest(s3m.getBucket(), name));
-
             // This must be closed via the NS
-            return s3object.getObjectContent();
+            return open(name).getContent();
         }
 
         @Override
@@ -403,7 +739,7 @@ public class SaifeManager {
         @Override
         public OutputStream getOutputStream(final String storagePath, 
                 final String name) throws IOException {
-            return new S3OutputStream(name);
+            return new S3OutputStream(bucket, name, multipartUploads);
         }
 
         @Override
@@ -414,13 +750,13 @@ public class SaifeManager {
         @Override
         public void deleteObject(final PersistedObject object) 
                 throws IOException {
-            s3m.deleteObject(object.getName());
+            s3m.deleteObject(bucket, object.getName());
         }
 
         @Override
         public void deleteObject(final String storagePath, final String name) 
                 throws IOException {
-            s3m.deleteObject(name);
+            s3m.deleteObject(bucket, name);
         }
     }
 
@@ -449,6 +785,7 @@ public class SaifeManager {
             for (Contact c : cl) {
                 ns.removeMember(c.getFingerprint());
             }
+            invalidateShare(s3m.getBucket());
         } catch (final NoSuchContactException e) {
             return false;
         } catch (final InvalidManagementStateException e) {
@@ -476,6 +813,7 @@ public class SaifeManager {
             for (Contact c : list) {
                 ns.addMember(c);    
             }
+            invalidateShare(s3m.getBucket());
         } catch (final NoSuchContactException e) {
             return false;
         } catch (final InvalidManagementStateException e) {
@@ -493,6 +831,39 @@ public class SaifeManager {
         return true;
     }
 
+    /**
+     * Opens an encrypt stream on the current NetworkShare. Streams are opened
+     * one at a time so concurrent transfers can share one NetworkShare; each
+     * stream is then used by a single thread.
+     *
+     * @param os the stream to write the encrypted data to
+     * @return the encrypt stream
+     * @throws IOException if the stream can't be opened
+     */
+    public OutputStream openEncryptStream(final OutputStream os) 
+            throws IOException {
+        final NetworkShare share = ns;
+        synchronized (share) {
+            return share.getEncryptStream(os);
+        }
+    }
+
+    /**
+     * Opens a decrypt stream on the current NetworkShare. See 
+     * openEncryptStream.
+     *
+     * @param is the stream to read the encrypted data from
+     * @return the decrypt stream
+     * @throws IOException if the stream can't be opened
+     */
+    public InputStream openDecryptStream(final InputStream is) 
+            throws IOException {
+        final NetworkShare share = ns;
+        synchronized (share) {
+            return share.getDecryptStream(is);
+        }
+    }
+
     /**
      * @return the NetworkShare handler
      */
@@ -501,9 +872,9 @@ public class SaifeManager {
     }
 
     /**
-     * @return the persister
+     * @return the persister, S3 or local
      */
-    public Persister getPersister() {
+    public PersistentStore getPersister() {
         return blackDataHandler;
     }
 
@@ -515,6 +886,15 @@ public class SaifeManager {
         return new AnObject(name);
     }
 
+    /**
+     * @param bucket the bucket the object is stored in
+     * @param name the name of the object
+     * @return a new object
+     */
+    public AnObject getObject(final String bucket, final String name) {
+        return new AnObject(bucket, name);
+    }
+
     /**
      * @return a new persister
      */
@@ -522,8 +902,141 @@ public class SaifeManager {
         return new Persister();
     }
 
+    /**
+     * @param bucket the bucket holding the store's objects
+     * @return a new persister bound to the bucket
+     */
+    public Persister newPersister(final String bucket) {
+        return new Persister(bucket);
+    }
+
+    /**
+     * Creates the PersistentStore for the current bucket: a FilePersister 
+     * under the local store directory if one is set, otherwise the S3 
+     * Persister.
+     *
+     * @return a new store, null if the local directory can't be used
+     */
+    public PersistentStore newStore() {
+        if (null == localStore) {
+            return newPersister();
+        }
+        try {
+            return new FilePersister(localStore.resolve(s3m.getBucket()));
+        } catch (final IOException e) {
+            System.out.println("Cannot use local store " + localStore + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the local store directory set by the system property, null if
+     * none is set
+     */
+    static Path defaultLocalStore() {
+        final String prop = System.getProperty(LOCAL_STORE_PROPERTY);
+        if (null == prop || prop.isEmpty()) {
+            return null;
+        }
+        return Paths.get(prop);
+    }
+
+    /**
+     * Keeps NetworkShare black data in a local directory tree instead of S3,
+     * one sub-directory per share. Applies to shares set up after the call.
+     *
+     * @param dir the store directory, null to go back to S3
+     */
+    public void setLocalStore(final Path dir) {
+        localStore = dir;
+        openShares.clear();
+    }
+
+    /**
+     * Returns the cache of encrypted S3 objects, opening it on first use.
+     *
+     * @return the cache, null if disabled or unusable
+     */
+    public synchronized ObjectCache getObjectCache() {
+        if (null == objectCache && null != cacheDir) {
+            try {
+                objectCache = new ObjectCache(cacheDir, cacheBytes);
+            } catch (final IOException e) {
+                System.out.println("Cannot use object cache " + cacheDir 
+                        + ": " + e.getMessage());
+                cacheDir = null;
+            }
+        }
+        return objectCache;
+    }
+
+    /**
+     * Sets where encrypted S3 objects are cached, and how much they may 
+     * take up.
+     *
+     * @param dir the cache directory, null to disable the cache
+     * @param maxBytes the size cap
+     */
+    public synchronized void setObjectCache(final Path dir, 
+            final long maxBytes) {
+        cacheDir = dir;
+        cacheBytes = maxBytes;
+        objectCache = null;
+    }
+
+    /**
+     * The OpenShare is a NetworkShare kept open across commands, with the
+     * store it was opened on.
+     */
+    static class OpenShare {
+
+        /** The share. */
+        final NetworkShare share;
+
+        /** The store the share reads and writes through. */
+        final PersistentStore store;
+
+        /**
+         * The constructor.
+         *
+         * @param s the share
+         * @param ps the store
+         */
+        OpenShare(final NetworkShare s, final PersistentStore ps) {
+            share = s;
+            store = ps;
+        }
+    }
+
+    /** The open NetworkShares, by bucket name. */
+    final Map<String, OpenShare> openShares = 
+        new ConcurrentHashMap<String, OpenShare>();
+
     /** The blackDataHandler. */
-    Persister blackDataHandler;
+    PersistentStore blackDataHandler;
+
+    /**
+     * The system property selecting a local store, e.g. 
+     * -Dns.local.store=/tmp/ns.
+     */
+    static final String LOCAL_STORE_PROPERTY = "ns.local.store";
+
+    /** The localStore directory, null to store black data in S3. */
+    Path localStore = defaultLocalStore();
+
+    /**
+     * The cacheDir, null to always read objects from S3. Per user, so it
+     * does not depend on where the demo is started from.
+     */
+    Path cacheDir = Paths.get(System.getProperty("user.home"), ".cache", 
+            "ns");
+
+    /** The cacheBytes. The size cap of the object cache. */
+    long cacheBytes = 256L * 1024 * 1024;
+
+    /** The objectCache, opened on first use. */
+    private ObjectCache objectCache = null;
 
     /** The saifeUpdated flag indicates the library has updated. */
     boolean saifeUpdated = false;
@@ -543,6 +1056,24 @@ public class SaifeManager {
     /** The S3Manager. */
     final S3Manager s3m;
 
+    /** The multipartUploads flag, applies to streams created after a change */
+    boolean multipartUploads = true;
+
+    /** The partSize. Objects larger than one part go out as multipart. */
+    int partSize = 8 * 1024 * 1024;
+
+    /** The partsInFlight. The most parts a single stream holds in memory. */
+    int partsInFlight = 4;
+
+    /** The directBuffers flag. True to buffer objects off-heap. */
+    boolean directBuffers = false;
+
+    /** The partThreads. The size of the shared part upload pool. */
+    int partThreads = 8;
+
+    /** The partPool uploads parts for every S3 stream. */
+    private ExecutorService partPool = null;
+
     /** The default path where all persisted SAIFE data is written. */
     static final String defaultKeyStore = ".SaifeStore";
 
@@ -703,7 +1234,10 @@ public class SaifeManager {
 
         // Start a PersistentStore so the network share can do its reads and 
         // writes
-        blackDataHandler = newPersister();
+        blackDataHandler = newStore();
+        if (null == blackDataHandler) {
+            return;
+        }
 
         //
         // This creates a network share manager.
@@ -794,15 +1328,29 @@ public class SaifeManager {
     }
 
     /**
-     * Sets up a Network Share
+     * Sets up a Network Share. A share already opened for the current bucket
+     * is reused, so its keys are not fetched and decrypted again.
      *
      * @return  true if successful
      */
     public boolean setupNS() {
+        final String bucket = s3m.getBucket();
+        final OpenShare cached = openShares.get(bucket);
+        if (null != cached) {
+            ns = cached.share;
+            blackDataHandler = cached.store;
+            return true;
+        }
 
         // Start a PersistentStore so the network share can do its reads and 
         // writes
-        blackDataHandler = newPersister();
+        blackDataHandler = newStore();
+        if (null == blackDataHandler) {
+            return false;
+        }
+
+        // never fall back to a share opened for another bucket
+        ns = null;
 
         //
         // This creates a network share manager.
@@ -824,6 +1372,9 @@ public class SaifeManager {
         } catch (final IOException e1) {
             System.out.println("getNetworkShare IO exception!");
             return false;
+        } catch (final LazyObjectList.ListingException le) {
+            System.out.println(le.getMessage());
+            return false;
         } catch (final NetworkShareDoesNotExistException e1) {
             System.out.println("NetworkShareDoesNotExistException.  Creating "
                     + "NetworkShare.");
@@ -850,10 +1401,29 @@ public class SaifeManager {
                 System.out.println("Unrecoverable NetworkShareExistsException, "
                         + "since GetNetworkShare also failed.");
                 return false;
+            } catch (final LazyObjectList.ListingException le) {
+                System.out.println(le.getMessage());
+                return false;
             }
         }
 
+        if (null == ns) {
+            return false;
+        }
+        openShares.put(bucket, new OpenShare(ns, blackDataHandler));
         return true;
     }
 
+    /**
+     * Drops the cached NetworkShare of a bucket, so the next setupNS() opens
+     * it again. Call when the share's membership changes or it is deleted.
+     *
+     * @param bucket the full bucket name
+     */
+    public void invalidateShare(final String bucket) {
+        if (null != bucket) {
+            openShares.remove(bucket);
+        }
+    }
+
 }
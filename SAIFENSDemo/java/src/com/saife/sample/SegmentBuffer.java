@@ -0,0 +1,474 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SegmentBuffer collects written bytes in a list of fixed-size segments.
+ * Unlike ByteArrayOutputStream it takes no lock per write and never copies
+ * what it already holds when it grows. Segments come from a shared pool and
+ * go back to it on reset() or close(). A buffer is meant to be used by one
+ * thread at a time.
+ *
+ * Every segment in use is reserved from the global MemoryBudget. When the
+ * budget has no room for another segment after a short wait, the buffer
+ * spills: what it holds goes to a temp file, and from then on one segment
+ * collects writes in front of the file. The content is ciphertext either
+ * way, just like what is stored in S3.
+ */
+public class SegmentBuffer extends OutputStream {
+
+    /** The size of every segment. */
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    /** The most idle segments each pool keeps. */
+    static final int POOL_LIMIT = 256;
+
+    /** The pool of idle heap segments. */
+    static final ConcurrentLinkedQueue<ByteBuffer> heapPool = 
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** The pool of idle direct (off-heap) segments. */
+    static final ConcurrentLinkedQueue<ByteBuffer> directPool = 
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** The number of segments in heapPool. */
+    static final AtomicInteger heapPooled = new AtomicInteger();
+
+    /** The number of segments in directPool. */
+    static final AtomicInteger directPooled = new AtomicInteger();
+
+    /** The direct flag. True to hold the data off-heap. */
+    final boolean direct;
+
+    /** The segments, all full except the last one. */
+    final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    /** The segment being written, null until the first write. */
+    ByteBuffer current = null;
+
+    /** The number of bytes written. */
+    long count = 0;
+
+    /** The budget the segments are reserved from. */
+    final MemoryBudget budget = MemoryBudget.GLOBAL;
+
+    /** The spill file, null while the content is all in memory. */
+    File spillFile = null;
+
+    /** The channel to the spill file, null while not spilled. */
+    FileChannel spill = null;
+
+    /** The number of bytes in the spill file. */
+    long spilled = 0;
+
+    /**
+     * The constructor for a heap buffer.
+     */
+    public SegmentBuffer() {
+        this(false);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param offHeap true to keep the segments in direct buffers
+     */
+    public SegmentBuffer(final boolean offHeap) {
+        direct = offHeap;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (null == current || !current.hasRemaining()) {
+            nextSegment();
+        }
+        current.put((byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) 
+            throws IOException {
+        int pos = off;
+        int left = len;
+        while (left > 0) {
+            if (null == current || !current.hasRemaining()) {
+                nextSegment();
+            }
+            final int n = Math.min(left, current.remaining());
+            current.put(b, pos, n);
+            pos += n;
+            left -= n;
+            count += n;
+        }
+    }
+
+    /**
+     * @return the number of bytes held
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return true if part of the content is in a spill file
+     */
+    public boolean isSpilled() {
+        return null != spill;
+    }
+
+    /**
+     * Drops the content, returns the segments to the pool and deletes the
+     * spill file.
+     */
+    public void reset() {
+        for (final ByteBuffer seg : segments) {
+            release(seg);
+        }
+        segments.clear();
+        current = null;
+        count = 0;
+        if (null != spill) {
+            try {
+                spill.close();
+            } catch (final IOException e) {
+                // the file goes anyway
+            }
+            if (!spillFile.delete()) {
+                System.out.println("Failed to delete spill file " 
+                        + spillFile);
+            }
+            spill = null;
+            spillFile = null;
+            spilled = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        reset();
+    }
+
+    /**
+     * Writes the content to a channel. A gathering channel, such as a
+     * FileChannel, takes all the segments in a single call.
+     *
+     * @param channel the channel to drain into
+     * @throws IOException if the channel fails
+     */
+    public void writeTo(final WritableByteChannel channel) 
+            throws IOException {
+        long pos = 0;
+        while (pos < spilled) {
+            pos += spill.transferTo(pos, spilled - pos, channel);
+        }
+        final ByteBuffer[] views = views();
+        if (channel instanceof GatheringByteChannel) {
+            final GatheringByteChannel gc = (GatheringByteChannel) channel;
+            long left = count - spilled;
+            while (left > 0) {
+                left -= gc.write(views);
+            }
+        } else {
+            for (final ByteBuffer v : views) {
+                while (v.hasRemaining()) {
+                    channel.write(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the content to a stream.
+     *
+     * @param os the stream to drain into
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(final OutputStream os) throws IOException {
+        final byte[] tmp = (direct || null != spill) ? new byte[8192] : null;
+        long pos = 0;
+        while (pos < spilled) {
+            final int n = spill.read(ByteBuffer.wrap(tmp, 0, 
+                        (int) Math.min(tmp.length, spilled - pos)), pos);
+            if (n < 0) {
+                throw new IOException("Spill file " + spillFile 
+                        + " is short");
+            }
+            os.write(tmp, 0, n);
+            pos += n;
+        }
+        for (final ByteBuffer v : views()) {
+            if (v.hasArray()) {
+                os.write(v.array(), v.arrayOffset(), v.remaining());
+            } else {
+                while (v.hasRemaining()) {
+                    final int n = Math.min(tmp.length, v.remaining());
+                    v.get(tmp, 0, n);
+                    os.write(tmp, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a stream over the content without copying it. The stream is only
+     * valid until the buffer is written to, reset or closed. It supports
+     * mark/reset so an upload can be retried. A spilled buffer is read from
+     * its file first, then from the segment in front of it.
+     *
+     * @return a stream over the buffered bytes
+     */
+    public InputStream newInputStream() {
+        final ByteBuffer[] views = views();
+        final FileChannel file = spill;
+        final long fileLength = spilled;
+        return new InputStream() {
+
+            /** The read position in the spill file. */
+            long filePos = 0;
+
+            /** The marked position in the spill file. */
+            long markFilePos = 0;
+
+            /** The index of the segment being read. */
+            int seg = 0;
+
+            /** The marked segment. */
+            int markSeg = 0;
+
+            /** The marked position within markSeg. */
+            int markPos = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (filePos < fileLength) {
+                    final byte[] one = new byte[1];
+                    return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+                }
+                while (seg < views.length) {
+                    if (views[seg].hasRemaining()) {
+                        return views[seg].get() & 0xff;
+                    }
+                    seg++;
+                }
+                return -1;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) 
+                    throws IOException {
+                if (0 == len) {
+                    return 0;
+                }
+                if (filePos < fileLength) {
+                    final int n = file.read(ByteBuffer.wrap(b, off, 
+                                (int) Math.min(len, fileLength - filePos)),
+                            filePos);
+                    if (n < 0) {
+                        throw new IOException("Spill file is short");
+                    }
+                    filePos += n;
+                    return n;
+                }
+                while (seg < views.length && !views[seg].hasRemaining()) {
+                    seg++;
+                }
+                if (seg == views.length) {
+                    return -1;
+                }
+                final int n = Math.min(len, views[seg].remaining());
+                views[seg].get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                long left = fileLength - filePos;
+                for (int i = seg; i < views.length; i++) {
+                    left += views[i].remaining();
+                }
+                return (int) Math.min(Integer.MAX_VALUE, left);
+            }
+
+            @Override
+            public boolean markSupported() {
+                return true;
+            }
+
+            @Override
+            public synchronized void mark(final int readlimit) {
+                markFilePos = filePos;
+                markSeg = Math.min(seg, Math.max(0, views.length - 1));
+                markPos = (0 == views.length) ? 0 : views[markSeg].position();
+            }
+
+            @Override
+            public synchronized void reset() {
+                filePos = markFilePos;
+                for (int i = markSeg + 1; i < views.length; i++) {
+                    views[i].position(0);
+                }
+                if (views.length > 0) {
+                    views[markSeg].position(markPos);
+                }
+                seg = markSeg;
+            }
+        };
+    }
+
+    /**
+     * @return read-only views of the written part of every segment
+     */
+    ByteBuffer[] views() {
+        final ByteBuffer[] views = new ByteBuffer[segments.size()];
+        for (int i = 0; i < views.length; i++) {
+            final ByteBuffer v = segments.get(i).duplicate();
+            v.flip();
+            views[i] = v;
+        }
+        return views;
+    }
+
+    /**
+     * Makes room to write: drains the segment in front of the spill file, or
+     * takes a new segment. If the budget has no room in time, a buffer that
+     * holds segments spills, and one that holds none goes over the cap by
+     * one segment.
+     *
+     * @throws IOException if the spill file can't be written
+     */
+    void nextSegment() throws IOException {
+        if (null != spill) {
+            drain();
+            return;
+        }
+        if (!budget.reserve(SEGMENT_SIZE, budget.spillWait)) {
+            if (!segments.isEmpty() && spill()) {
+                return;
+            }
+            budget.overdraw(SEGMENT_SIZE);
+        }
+        final ConcurrentLinkedQueue<ByteBuffer> pool = 
+            direct ? directPool : heapPool;
+        ByteBuffer seg = pool.poll();
+        if (null != seg) {
+            (direct ? directPooled : heapPooled).decrementAndGet();
+        } else {
+            seg = direct ? ByteBuffer.allocateDirect(SEGMENT_SIZE) 
+                : ByteBuffer.allocate(SEGMENT_SIZE);
+        }
+        segments.add(seg);
+        current = seg;
+    }
+
+    /**
+     * Moves the content to a temp file and keeps only the last segment, to
+     * collect writes in front of the file.
+     *
+     * @return false if the file could not be written
+     */
+    boolean spill() {
+        File f = null;
+        FileChannel ch = null;
+        try {
+            f = File.createTempFile("ns-spill", ".bin", budget.spillDir);
+            ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, 
+                    StandardOpenOption.WRITE);
+            long pos = 0;
+            for (final ByteBuffer v : views()) {
+                while (v.hasRemaining()) {
+                    pos += ch.write(v, pos);
+                }
+            }
+        } catch (final IOException e) {
+            System.out.println("Failed to spill a buffer to disk: " 
+                    + e.getMessage());
+            if (null != ch) {
+                try {
+                    ch.close();
+                } catch (final IOException e1) {
+                    // nothing more to do
+                }
+            }
+            if (null != f) {
+                f.delete();
+            }
+            return false;
+        }
+        spillFile = f;
+        spill = ch;
+        spilled = count;
+        budget.spilled(count);
+
+        current = segments.remove(segments.size() - 1);
+        current.clear();
+        for (final ByteBuffer seg : segments) {
+            release(seg);
+        }
+        segments.clear();
+        segments.add(current);
+        return true;
+    }
+
+    /**
+     * Appends the segment in front of the spill file to the file and empties
+     * it.
+     *
+     * @throws IOException if the write fails
+     */
+    void drain() throws IOException {
+        final ByteBuffer v = current.duplicate();
+        v.flip();
+        while (v.hasRemaining()) {
+            spilled += spill.write(v, spilled);
+        }
+        current.clear();
+    }
+
+    /**
+     * Returns a segment to its pool, or drops it when the pool is full, and
+     * gives its reservation back to the budget.
+     *
+     * @param seg the segment
+     */
+    void release(final ByteBuffer seg) {
+        budget.release(SEGMENT_SIZE);
+        final AtomicInteger pooled = direct ? directPooled : heapPooled;
+        if (pooled.incrementAndGet() <= POOL_LIMIT) {
+            seg.clear();
+            (direct ? directPool : heapPool).offer(seg);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The ShareIndex is the share's own encrypted listing of its files, kept
+ * under `.ns/index/`. It is a base snapshot plus an append-only log of
+ * small delta objects, one per upload or delete, so writers never rewrite
+ * the whole index. Loading reads the base and the deltas after it; once
+ * enough deltas pile up they are folded into a new base and deleted.
+ *
+ * Compaction assumes one writer at a time, as the rest of the CLI does. A
+ * delta written by another client while a compaction runs is kept, since
+ * the base names the deltas it merged rather than a cut-off.
+ */
+public class ShareIndex {
+
+    /** The prefix of every index object. */
+    static final String PREFIX = S3Manager.INTERNAL_PREFIX + "index/";
+
+    /** The key of the base snapshot. */
+    static final String BASE = PREFIX + "base";
+
+    /** The prefix of the delta objects. */
+    static final String DELTA_PREFIX = PREFIX + "delta/";
+
+    /** The layout recorded in the user metadata of index objects. */
+    public static final String LAYOUT = "index";
+
+    /** The number of deltas that triggers a compaction on load. */
+    static final int COMPACT_AT = 32;
+
+    /**
+     * The Entry is what the index knows about one file.
+     */
+    public static class Entry {
+
+        /** The plain text size, or the stored size if unknown. */
+        long size;
+
+        /** The modified time, in milliseconds. */
+        long mtime;
+
+        /** The SHA-256 of the plain text, null if unknown. */
+        String sha256;
+
+        /** The object layout, null for a plain object. */
+        String layout;
+
+        /** The plain text chunk size of a chunked object, 0 if none. */
+        int chunkSize;
+
+        /**
+         * The constructor.
+         *
+         * @param sz the size
+         * @param modified the modified time
+         * @param hash the content hash, may be null
+         * @param objectLayout the layout, may be null
+         * @param chunk the chunk size, 0 if none
+         */
+        public Entry(final long sz, final long modified, final String hash,
+                final String objectLayout, final int chunk) {
+            size = sz;
+            mtime = modified;
+            sha256 = hash;
+            layout = objectLayout;
+            chunkSize = chunk;
+        }
+
+        /**
+         * @return the plain text size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the modified time, in milliseconds
+         */
+        public long getMtime() {
+            return mtime;
+        }
+
+        /**
+         * @return the SHA-256 of the plain text, null if unknown
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @return the object layout, null for a plain object
+         */
+        public String getLayout() {
+            return layout;
+        }
+
+        /**
+         * @return the number of chunks, 0 if the object is not chunked
+         */
+        public long getChunks() {
+            return (chunkSize <= 0) ? 0 : (size + chunkSize - 1) / chunkSize;
+        }
+    }
+
+    /**
+     * The Op is one change in a delta: a put with its entry, or a delete.
+     */
+    static class Op {
+
+        /** The file name. */
+        String name;
+
+        /** The new entry, null for a delete. */
+        Entry entry;
+    }
+
+    /**
+     * The Delta is the content of one delta object.
+     */
+    static class Delta {
+
+        /** The changes, in order. */
+        List<Op> ops = new ArrayList<Op>();
+    }
+
+    /**
+     * The Snapshot is the content of the base object.
+     */
+    static class Snapshot {
+
+        /** The format version. */
+        int version = 1;
+
+        /** The files by name. */
+        Map<String, Entry> files = new TreeMap<String, Entry>();
+
+        /** The delta keys already folded into this snapshot. */
+        List<String> merged = new ArrayList<String>();
+    }
+
+    /**
+     * The HashingInputStream counts and hashes the bytes read through it.
+     */
+    static class HashingInputStream extends DigestInputStream {
+
+        /** The number of bytes read. */
+        long count = 0;
+
+        /**
+         * The constructor.
+         *
+         * @param in the stream to read
+         */
+        HashingInputStream(final InputStream in) {
+            super(in, DedupStore.newSha256());
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) 
+                throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        /**
+         * @return the number of bytes read
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the SHA-256 of the bytes read, in hex
+         */
+        String getHash() {
+            return DedupStore.hex(getMessageDigest().digest());
+        }
+    }
+
+    /** The S3 manager, set up for the share. */
+    final S3Manager s3m;
+
+    /** The bucket of the share. */
+    final String bucket;
+
+    /** The writer id keeps delta keys from different clients apart. */
+    final String writer;
+
+    /** The number of deltas written by this client. */
+    final AtomicInteger written = new AtomicInteger();
+
+    /**
+     * The constructor.
+     *
+     * @param manager the S3 manager
+     * @param bucketName the bucket of the share
+     */
+    public ShareIndex(final S3Manager manager, final String bucketName) {
+        s3m = manager;
+        bucket = bucketName;
+        final byte[] id = new byte[4];
+        new SecureRandom().nextBytes(id);
+        writer = DedupStore.hex(id);
+    }
+
+    /**
+     * Records a new or replaced file.
+     *
+     * @param name the file name
+     * @param entry what is known about it
+     * @throws IOException if the delta can't be written
+     */
+    public void put(final String name, final Entry entry) 
+            throws IOException {
+        final Op op = new Op();
+        op.name = name;
+        op.entry = entry;
+        writeDelta(Collections.singletonList(op));
+    }
+
+    /**
+     * Records deleted files, in one delta.
+     *
+     * @param names the file names
+     * @throws IOException if the delta can't be written
+     */
+    public void remove(final Collection<String> names) throws IOException {
+        if (names.isEmpty()) {
+            return;
+        }
+        final List<Op> ops = new ArrayList<Op>(names.size());
+        for (final String name : names) {
+            final Op op = new Op();
+            op.name = name;
+            ops.add(op);
+        }
+        writeDelta(ops);
+    }
+
+    /**
+     * Loads the index: one listing of the index prefix, the base, and the
+     * deltas not yet folded into it. Compacts when the deltas pile up.
+     *
+     * @return the files by name, null if the share has no index yet
+     * @throws IOException if the index can't be read
+     */
+    public Map<String, Entry> load() throws IOException {
+        final List<String> deltas = new ArrayList<String>();
+        boolean hasBase = false;
+        try {
+            ObjectListing listing = s3m.getS3Mgr().listObjects(
+                    new ListObjectsRequest().withBucketName(bucket)
+                    .withPrefix(PREFIX));
+            while (true) {
+                for (final S3ObjectSummary os : listing.getObjectSummaries()) {
+                    if (BASE.equals(os.getKey())) {
+                        hasBase = true;
+                    } else if (os.getKey().startsWith(DELTA_PREFIX)) {
+                        deltas.add(os.getKey());
+                    }
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = s3m.getS3Mgr().listNextBatchOfObjects(listing);
+            }
+        } catch (final AmazonClientException ace) {
+            throw new IOException("Failed to list the share index: " 
+                    + ace.getMessage(), ace);
+        }
+        if (!hasBase && deltas.isEmpty()) {
+            return null;
+        }
+
+        final Snapshot base = hasBase 
+            ? read(BASE, Snapshot.class) : new Snapshot();
+        if (null == base.files || null == base.merged) {
+            throw new IOException("Invalid share index base");
+        }
+        // Gson reads the map in file order, keep it sorted by name
+        final Map<String, Entry> files = 
+            new TreeMap<String, Entry>(base.files);
+        final Set<String> merged = new HashSet<String>(base.merged);
+        final List<String> applied = new ArrayList<String>();
+        // delta keys sort by the time they were written
+        Collections.sort(deltas);
+        for (final String key : deltas) {
+            if (merged.contains(key)) {
+                continue;
+            }
+            final Delta d = read(key, Delta.class);
+            if (null == d.ops) {
+                throw new IOException("Invalid index object " + key);
+            }
+            for (final Op op : d.ops) {
+                if (null == op.entry) {
+                    files.remove(op.name);
+                } else {
+                    files.put(op.name, op.entry);
+                }
+            }
+            applied.add(key);
+        }
+
+        if (applied.size() >= COMPACT_AT) {
+            // deltas an earlier compaction failed to delete are still in
+            // the base, they must stay marked as merged
+            final List<String> folded = new ArrayList<String>(applied);
+            for (final String key : deltas) {
+                if (merged.contains(key)) {
+                    folded.add(key);
+                }
+            }
+            compact(files, folded);
+        }
+        return files;
+    }
+
+    /**
+     * Replaces the index with one built from a listing of the bucket. Sizes
+     * are those of the stored objects and no hashes are known.
+     *
+     * @return the files by name
+     * @throws IOException if the index can't be written
+     */
+    public Map<String, Entry> rebuild() throws IOException {
+        final Map<String, Entry> files = new TreeMap<String, Entry>();
+        final List<String> deltas = new ArrayList<String>();
+        for (final ObjectIndex.Entry e : listBucket()) {
+            if (e.key.startsWith(DELTA_PREFIX)) {
+                deltas.add(e.key);
+            } else if (!S3Manager.isInternal(e.key) 
+                    && !e.key.endsWith("/")) {
+                files.put(e.key, new Entry(e.size, 
+                            (null == e.lastModified) ? 0 
+                            : e.lastModified.getTime(), null, null, 0));
+            }
+        }
+        compact(files, deltas);
+        System.out.println("Built the share index, " + files.size() 
+                + " files");
+        return files;
+    }
+
+    /**
+     * Lists the bucket anew, whatever the age of its object index. A file 
+     * is recorded in a delta only once it is stored, so a listing taken 
+     * after the deltas were read holds every file they name.
+     *
+     * @return the objects in the bucket
+     * @throws IOException if the bucket can't be listed
+     */
+    Collection<ObjectIndex.Entry> listBucket() throws IOException {
+        final ObjectIndex index = s3m.getIndex(bucket);
+        try {
+            index.load(s3m.getS3Mgr());
+        } catch (final AmazonClientException ace) {
+            throw new IOException("Failed to list the share: " 
+                    + ace.getMessage(), ace);
+        }
+        return index.values();
+    }
+
+    /**
+     * Brings the index in line with a new listing of the bucket. Files 
+     * written or deleted by clients that keep no index, such as the Swing 
+     * client, never reach it otherwise. Files missing from the index are 
+     * added with their stored size and no hash, files no longer stored are
+     * removed, and the fixes go out as one delta. Run on request only, 
+     * since it lists the whole bucket.
+     *
+     * @param files the files by name, as loaded; updated in place
+     * @return the files by name
+     * @throws IOException if the bucket can't be listed or the delta can't
+     * be written
+     */
+    public Map<String, Entry> reconcile(final Map<String, Entry> files) 
+            throws IOException {
+        final Map<String, ObjectIndex.Entry> stored = 
+            new HashMap<String, ObjectIndex.Entry>();
+        for (final ObjectIndex.Entry e : listBucket()) {
+            if (!S3Manager.isInternal(e.key) && !e.key.endsWith("/")) {
+                stored.put(e.key, e);
+            }
+        }
+
+        final List<Op> ops = new ArrayList<Op>();
+        for (final String name : files.keySet()) {
+            if (!stored.containsKey(name)) {
+                final Op op = new Op();
+                op.name = name;
+                ops.add(op);
+            }
+        }
+        final int removed = ops.size();
+        for (final ObjectIndex.Entry e : stored.values()) {
+            if (!files.containsKey(e.key)) {
+                final Op op = new Op();
+                op.name = e.key;
+                op.entry = new Entry(e.size, (null == e.lastModified) ? 0 
+                        : e.lastModified.getTime(), null, null, 0);
+                ops.add(op);
+            }
+        }
+        if (ops.isEmpty()) {
+            return files;
+        }
+
+        for (final Op op : ops) {
+            if (null == op.entry) {
+                files.remove(op.name);
+            } else {
+                files.put(op.name, op.entry);
+            }
+        }
+        writeDelta(ops);
+        System.out.println("The share index was behind the share: " 
+                + (ops.size() - removed) + " files added, " + removed 
+                + " removed");
+        return files;
+    }
+
+    /**
+     * Writes a new base and deletes the deltas folded into it. The deltas
+     * are deleted only once the base is stored.
+     *
+     * @param files the files by name
+     * @param deltas every delta key folded into the files that is still
+     * listed
+     * @throws IOException if the base can't be written
+     */
+    void compact(final Map<String, Entry> files, final List<String> deltas)
+            throws IOException {
+        final Snapshot s = new Snapshot();
+        s.files = files;
+        s.merged = deltas;
+        write(BASE, s);
+        if (!deltas.isEmpty()) {
+            final BatchDeleter deleter = s3m.newDeleter(bucket);
+            deleter.submit(deltas);
+            deleter.await();
+        }
+    }
+
+    /**
+     * Writes a delta object. Keys start with the time, so deltas sort in
+     * the order they were written.
+     *
+     * @param ops the changes
+     * @throws IOException if the write fails
+     */
+    void writeDelta(final List<Op> ops) throws IOException {
+        final Delta d = new Delta();
+        d.ops.addAll(ops);
+        write(String.format("%s%013d-%s-%06d", DELTA_PREFIX, 
+                    System.currentTimeMillis(), writer, 
+                    written.incrementAndGet()), d);
+    }
+
+    /**
+     * Encrypts an index object into the share.
+     *
+     * @param key the object key
+     * @param content the object to store as JSON
+     * @throws IOException if the write fails
+     */
+    void write(final String key, final Object content) throws IOException {
+        try {
+            final SaifeManager.S3OutputStream s3os = 
+                s3m.getSaife().getNewS3Stream(bucket, key);
+            s3os.setUserMetadata(StoredObject.LAYOUT, LAYOUT);
+            final OutputStream os = s3m.getSaife().openEncryptStream(s3os);
+            try {
+                os.write(new Gson().toJson(content)
+                        .getBytes(StandardCharsets.UTF_8));
+            } finally {
+                os.close();
+            }
+        } catch (final AmazonClientException ace) {
+            throw new IOException(ace.getMessage(), ace);
+        }
+    }
+
+    /**
+     * Reads and decrypts an index object.
+     *
+     * @param key the object key
+     * @param type the class of the content
+     * @param <T> the type of the content
+     * @return the content
+     * @throws IOException if it can't be read or parsed
+     */
+    <T> T read(final String key, final Class<T> type) throws IOException {
+        final StoredObject so;
+        try {
+            so = s3m.getSaife().newPersister(bucket).open(key);
+        } catch (final AmazonClientException ace) {
+            throw new IOException("Failed to read " + key + ": " 
+                    + ace.getMessage(), ace);
+        }
+        try {
+            final InputStream is = s3m.getSaife().openDecryptStream(
+                    so.getContent());
+            try {
+                final Reader r = new InputStreamReader(is, 
+                        StandardCharsets.UTF_8);
+                final T t = new Gson().fromJson(r, type);
+                if (null == t) {
+                    throw new IOException("Empty index object " + key);
+                }
+                return t;
+            } catch (final JsonParseException e) {
+                throw new IOException("Invalid index object " + key, e);
+            } finally {
+                is.close();
+            }
+        } finally {
+            so.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+/**
+ * The Sizes class parses the byte sizes given on the command line and in
+ * system properties.
+ */
+public final class Sizes {
+
+    /** The unit suffixes, each 1024 times the one before. */
+    static final String UNITS = "KMGT";
+
+    /**
+     * Not instantiated.
+     */
+    private Sizes() {
+    }
+
+    /**
+     * Parses a size such as 4096, 10K, 5M or 2G.
+     *
+     * @param s the size
+     * @return the size in bytes
+     * @throws NumberFormatException if the size is not valid
+     */
+    public static long parse(final String s) {
+        if (s.isEmpty()) {
+            throw new NumberFormatException("Empty size");
+        }
+        final int u = UNITS.indexOf(Character.toUpperCase(
+                    s.charAt(s.length() - 1)));
+        if (u < 0) {
+            return Long.parseLong(s);
+        }
+        return Long.parseLong(s.substring(0, s.length() - 1)) << (10 * (u + 1));
+    }
+}
@@ -0,0 +1,114 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * The StoredObject is the encrypted content of an object together with the
+ * metadata S3 returned with it. The layout and codec of an object are
+ * recorded in its user metadata. Stores without metadata return an empty
+ * map.
+ */
+public class StoredObject {
+
+    /** The user metadata key for the object layout. */
+    public static final String LAYOUT = "ns-layout";
+
+    /** The user metadata key for the compression codec. */
+    public static final String CODEC = "ns-codec";
+
+    /** The encrypted content. */
+    final InputStream content;
+
+    /** The user metadata, never null. */
+    final Map<String, String> userMetadata;
+
+    /** The ETag, null if unknown. */
+    final String etag;
+
+    /**
+     * The constructor.
+     *
+     * @param is the encrypted content
+     * @param meta the user metadata, null for none
+     * @param tag the ETag, null if unknown
+     */
+    public StoredObject(final InputStream is, final Map<String, String> meta,
+            final String tag) {
+        content = is;
+        userMetadata = (null == meta) ? Collections.<String, String>emptyMap()
+            : meta;
+        etag = tag;
+    }
+
+    /**
+     * @return the encrypted content. The caller closes it.
+     */
+    public InputStream getContent() {
+        return content;
+    }
+
+    /**
+     * @param key a user metadata key
+     * @return the value, null if absent
+     */
+    public String getMetadata(final String key) {
+        return userMetadata.get(key);
+    }
+
+    /**
+     * @return the object layout, null for a plain encrypted stream
+     */
+    public String getLayout() {
+        return userMetadata.get(LAYOUT);
+    }
+
+    /**
+     * @return the ETag, null if unknown
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Closes the content, aborting the HTTP connection if it is an S3 
+     * stream, so a transfer in progress fails at once.
+     */
+    public void abort() {
+        if (content instanceof S3ObjectInputStream) {
+            ((S3ObjectInputStream) content).abort();
+        }
+        close();
+    }
+
+    /**
+     * Closes the content.
+     */
+    public void close() {
+        try {
+            content.close();
+        } catch (final IOException e) {}
+    }
+}
@@ -0,0 +1,218 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TransferBatch runs a set of file transfers on a fixed number of
+ * workers. It prints a status line as each transfer finishes, and prints a
+ * throughput and latency summary at the end. Submitting blocks while the
+ * workers are busy and a full backlog is already queued, so callers can feed
+ * it from a long listing without holding every task in memory. A batch made
+ * with an AdaptiveConcurrency has a worker per slot the controller may 
+ * allow, and runs only as many transfers as it currently does.
+ */
+public class TransferBatch {
+
+    /** The label used in status lines, e.g. "push". */
+    final String label;
+
+    /** The worker count. */
+    final int workers;
+
+    /** The concurrency controller, null for a fixed worker count. */
+    final AdaptiveConcurrency control;
+
+    /** The pool running the transfers. */
+    final ExecutorService pool;
+
+    /** The queued permits bound the submitted but unfinished transfers. */
+    final Semaphore queued;
+
+    /** The latency of every finished transfer, in nanoseconds. */
+    final List<Long> latencies = 
+        Collections.synchronizedList(new ArrayList<Long>());
+
+    /** The number of transfers submitted. */
+    final AtomicInteger submitted = new AtomicInteger();
+
+    /** The number of transfers that succeeded. */
+    final AtomicInteger succeeded = new AtomicInteger();
+
+    /** The number of transfers that failed. */
+    final AtomicInteger failed = new AtomicInteger();
+
+    /** The bytes moved by successful transfers. */
+    final AtomicLong bytes = new AtomicLong();
+
+    /** The time the batch started. */
+    final long started = System.nanoTime();
+
+    /**
+     * The constructor.
+     *
+     * @param name the label for status lines
+     * @param workerCount the number of concurrent transfers
+     */
+    public TransferBatch(final String name, final int workerCount) {
+        this(name, workerCount, null);
+    }
+
+    /**
+     * The constructor for a batch whose concurrency adapts.
+     *
+     * @param name the label for status lines
+     * @param concurrency the controller that sets the transfers at once
+     */
+    public TransferBatch(final String name, 
+            final AdaptiveConcurrency concurrency) {
+        this(name, concurrency.getMax(), concurrency);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param name the label for status lines
+     * @param workerCount the number of workers
+     * @param concurrency the controller, or null
+     */
+    TransferBatch(final String name, final int workerCount, 
+            final AdaptiveConcurrency concurrency) {
+        label = name;
+        workers = Math.max(1, workerCount);
+        control = concurrency;
+        pool = Executors.newFixedThreadPool(workers, 
+                new DaemonThreadFactory("ns-" + name));
+        queued = new Semaphore(workers * 2);
+    }
+
+    /**
+     * Queues a transfer. The task returns the number of bytes it moved, or a
+     * negative number if it failed. Blocks while the backlog is full.
+     *
+     * @param name the file or key being transferred
+     * @param task the transfer
+     */
+    public void submit(final String name, final Callable<Long> task) {
+        queued.acquireUninterruptibly();
+        submitted.incrementAndGet();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (null != control) {
+                    control.acquire();
+                }
+                final long start = System.nanoTime();
+                long moved = -1;
+                String error = null;
+                try {
+                    moved = task.call();
+                } catch (final Exception e) {
+                    error = e.getMessage();
+                } finally {
+                    queued.release();
+                }
+                final long took = System.nanoTime() - start;
+                if (null != control) {
+                    control.release(Math.max(0, moved), took, moved >= 0);
+                }
+                latencies.add(took);
+                if (moved >= 0) {
+                    succeeded.incrementAndGet();
+                    bytes.addAndGet(moved);
+                    System.out.format("[%s ok]   %s %dB %.2fs%n", label, name,
+                            moved, took / 1e9);
+                } else {
+                    failed.incrementAndGet();
+                    System.out.format("[%s FAIL] %s%s%n", label, name,
+                            (null == error) ? "" : ": " + error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for every queued transfer and prints the summary.
+     *
+     * @return true if no transfer failed
+     */
+    public boolean await() {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println(label + ": " 
+                        + (succeeded.get() + failed.get()) + " of "
+                        + submitted.get() + " transfers done...");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+        printSummary();
+        return 0 == failed.get();
+    }
+
+    /**
+     * Prints the file counts, aggregate throughput and latency percentiles.
+     */
+    void printSummary() {
+        final double secs = (System.nanoTime() - started) / 1e9;
+        final List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<Long>(latencies);
+        }
+        Collections.sort(sorted);
+
+        System.out.format("%s: %d ok, %d failed, %d workers, %dB in %.2fs "
+                + "(%.2f MB/s, %.1f files/s)%n", label, succeeded.get(), 
+                failed.get(), (null == control) ? workers 
+                : control.getLimit(), bytes.get(), secs, 
+                bytes.get() / (1024.0 * 1024.0) / Math.max(secs, 1e-9),
+                sorted.size() / Math.max(secs, 1e-9));
+        if (!sorted.isEmpty()) {
+            System.out.format("%s latency: p50 %.3fs  p95 %.3fs  max %.3fs%n",
+                    label, percentile(sorted, 50) / 1e9, 
+                    percentile(sorted, 95) / 1e9, 
+                    sorted.get(sorted.size() - 1) / 1e9);
+        }
+        if (null != control) {
+            System.out.println(label + " " + control);
+        }
+    }
+
+    /**
+     * @param sorted the samples, in ascending order
+     * @param pct the percentile, 0 to 100
+     * @return the sample at that percentile
+     */
+    static long percentile(final List<Long> sorted, final int pct) {
+        final int i = (int) Math.ceil(pct / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i)));
+    }
+}
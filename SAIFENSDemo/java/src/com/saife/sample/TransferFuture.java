@@ -0,0 +1,91 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The TransferFuture is the result of an asynchronous S3Manager call. 
+ * Cancelling it stops the transfer itself: the S3 stream being read is
+ * aborted and the worker thread is interrupted, which makes the SDK abort
+ * a request in progress.
+ *
+ * @param <T> the result type
+ */
+public class TransferFuture<T> extends CompletableFuture<T> {
+
+    /** The thread running the transfer, null when not running. */
+    Thread runner = null;
+
+    /** The object being read, null if none. */
+    StoredObject stream = null;
+
+    /**
+     * Marks the transfer started on a thread.
+     *
+     * @param t the worker thread
+     * @return false if the transfer was cancelled before it started
+     */
+    synchronized boolean started(final Thread t) {
+        if (isDone()) {
+            return false;
+        }
+        runner = t;
+        return true;
+    }
+
+    /**
+     * Marks the transfer finished, so a late cancel leaves the worker alone.
+     */
+    synchronized void finished() {
+        runner = null;
+        stream = null;
+    }
+
+    /**
+     * Attaches the object the transfer reads, to be aborted on cancel.
+     *
+     * @param so the object
+     * @return false if the transfer has been cancelled
+     */
+    synchronized boolean attach(final StoredObject so) {
+        if (isCancelled()) {
+            so.abort();
+            return false;
+        }
+        stream = so;
+        return true;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            synchronized (this) {
+                if (null != stream) {
+                    stream.abort();
+                }
+                if (null != runner) {
+                    runner.interrupt();
+                }
+            }
+        }
+        return cancelled;
+    }
+}
@@ -0,0 +1,421 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TransferScheduler sits in front of every upload and download of an
+ * S3Manager. It caps the number of transfers running at once and, when a
+ * rate is set, the bandwidth they share through a token bucket. Waiting
+ * transfers start in priority order, so an interactive pull queued behind
+ * background pushes goes first, and a class only takes bandwidth while no
+ * higher class is waiting for it. Queue depth and per-class throughput are
+ * kept as the transfers run.
+ */
+public class TransferScheduler {
+
+    /** The class of transfers a user is waiting on, e.g. pulls. */
+    public static final int INTERACTIVE = 0;
+
+    /** The class of ordinary transfers. */
+    public static final int NORMAL = 1;
+
+    /** The class of bulk transfers, e.g. pushes and syncs. */
+    public static final int BACKGROUND = 2;
+
+    /** The names of the classes, for stats. */
+    static final String[] CLASS_NAMES = {"interactive", "normal", 
+        "background"};
+
+    /** The smallest token bucket, so one block always fits. */
+    static final long MIN_BURST = 64 * 1024;
+
+    /**
+     * The Ticket is a transfer admitted by, or waiting in, the scheduler.
+     */
+    public static class Ticket implements Comparable<Ticket> {
+
+        /** The priority class. */
+        final int cls;
+
+        /** The arrival order, for first come first served within a class. */
+        final long seq;
+
+        /** The time the transfer started, in nanoseconds. */
+        long started;
+
+        /** The bytes counted by throttled streams. */
+        final AtomicLong counted = new AtomicLong();
+
+        /**
+         * The constructor.
+         *
+         * @param priority the priority class
+         * @param order the arrival order
+         */
+        Ticket(final int priority, final long order) {
+            cls = priority;
+            seq = order;
+        }
+
+        @Override
+        public int compareTo(final Ticket o) {
+            return (cls != o.cls) ? Integer.compare(cls, o.cls) 
+                : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * The ClassStats counts the transfers of one priority class.
+     */
+    static class ClassStats {
+
+        /** The bytes moved, counted live by throttled streams. */
+        final AtomicLong bytes = new AtomicLong();
+
+        /** The transfers finished. */
+        final AtomicLong done = new AtomicLong();
+
+        /** The transfers failed. */
+        final AtomicLong failed = new AtomicLong();
+
+        /** The time spent with at least one transfer running, in ns. */
+        long busyNanos = 0;
+
+        /** The start of the current busy period, in ns. */
+        long busySince = 0;
+
+        /** The transfers running. */
+        int active = 0;
+
+        /** The transfers waiting to start. */
+        int queued = 0;
+
+        /** The throttled streams waiting for bandwidth. */
+        int waiting = 0;
+    }
+
+    /** The waiting transfers, best first. */
+    final PriorityQueue<Ticket> waiters = new PriorityQueue<Ticket>();
+
+    /** The stats of each class. */
+    final ClassStats[] stats = new ClassStats[CLASS_NAMES.length];
+
+    /** The most transfers running at once. */
+    int maxActive;
+
+    /** The transfers running. */
+    int active = 0;
+
+    /** The arrival counter. */
+    long arrivals = 0;
+
+    /** The bandwidth cap in bytes per second, 0 for none. */
+    volatile long rate;
+
+    /** The bucket size, one second of the rate. */
+    long burst;
+
+    /** The tokens in the bucket. */
+    double tokens;
+
+    /** The time the bucket was last refilled, in nanoseconds. */
+    long refilled = System.nanoTime();
+
+    /**
+     * The constructor.
+     *
+     * @param maxTransfers the most transfers running at once
+     * @param bytesPerSecond the bandwidth cap, 0 for none
+     */
+    public TransferScheduler(final int maxTransfers, 
+            final long bytesPerSecond) {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new ClassStats();
+        }
+        setMaxActive(maxTransfers);
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * @param maxTransfers the most transfers running at once
+     */
+    public synchronized void setMaxActive(final int maxTransfers) {
+        maxActive = Math.max(1, maxTransfers);
+        notifyAll();
+    }
+
+    /**
+     * @param bytesPerSecond the bandwidth cap, 0 for none
+     */
+    public synchronized void setRate(final long bytesPerSecond) {
+        rate = Math.max(0, bytesPerSecond);
+        burst = Math.max(MIN_BURST, rate);
+        tokens = Math.min(tokens, burst);
+        notifyAll();
+    }
+
+    /**
+     * @return true if transfers should send their bytes through throttle
+     */
+    public boolean isThrottled() {
+        return rate > 0;
+    }
+
+    /**
+     * Waits until a transfer of the class may start: a slot is free and no
+     * better ticket is waiting.
+     *
+     * @param cls the priority class
+     * @return the ticket to hand back to end
+     * @throws InterruptedIOException if the wait is interrupted
+     */
+    public synchronized Ticket begin(final int cls) 
+            throws InterruptedIOException {
+        final Ticket t = new Ticket(clamp(cls), arrivals++);
+        final ClassStats s = stats[t.cls];
+        waiters.add(t);
+        s.queued++;
+        try {
+            while (active >= maxActive || waiters.peek() != t) {
+                wait();
+            }
+        } catch (final InterruptedException e) {
+            waiters.remove(t);
+            s.queued--;
+            notifyAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to "
+                    + "transfer");
+        }
+        waiters.poll();
+        s.queued--;
+        active++;
+        if (0 == s.active++) {
+            s.busySince = System.nanoTime();
+        }
+        t.started = System.nanoTime();
+        notifyAll();
+        return t;
+    }
+
+    /**
+     * Ends a transfer and lets the next one start.
+     *
+     * @param t the ticket from begin
+     * @param bytes the bytes moved; those already counted by throttled
+     * streams are not counted again
+     * @param ok true if the transfer worked
+     */
+    public synchronized void end(final Ticket t, final long bytes, 
+            final boolean ok) {
+        final ClassStats s = stats[t.cls];
+        s.bytes.addAndGet(Math.max(0, bytes - t.counted.get()));
+        (ok ? s.done : s.failed).incrementAndGet();
+        active--;
+        if (0 == --s.active) {
+            s.busyNanos += System.nanoTime() - s.busySince;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Takes bandwidth for a number of bytes, waiting for the bucket to 
+     * refill and for higher classes to be served first.
+     *
+     * @param cls the priority class
+     * @param n the number of bytes
+     * @throws InterruptedIOException if the wait is interrupted
+     */
+    synchronized void take(final int cls, final long n) 
+            throws InterruptedIOException {
+        final ClassStats s = stats[cls];
+        long left = n;
+        s.waiting++;
+        try {
+            while (left > 0 && rate > 0) {
+                final long now = System.nanoTime();
+                tokens = Math.min(burst, 
+                        tokens + (now - refilled) * rate / 1e9);
+                refilled = now;
+                final long want = Math.min(left, burst);
+                if (tokens >= want && !higherWaiting(cls)) {
+                    tokens -= want;
+                    left -= want;
+                    continue;
+                }
+                final long ms = Math.max(1, (long) ((want - tokens) * 1000 
+                            / rate));
+                wait(Math.min(ms, 100));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "
+                    + "bandwidth");
+        } finally {
+            s.waiting--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param cls a priority class
+     * @return true if a stream of a better class is waiting for bandwidth
+     */
+    boolean higherWaiting(final int cls) {
+        for (int i = 0; i < cls; i++) {
+            if (stats[i].waiting > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps a stream so reads take bandwidth. Bytes are counted as they go.
+     *
+     * @param in the stream
+     * @param t the ticket of the transfer
+     * @return the throttled stream, or in itself when there is no cap
+     */
+    public InputStream throttle(final InputStream in, final Ticket t) {
+        if (!isThrottled()) {
+            return in;
+        }
+        final int c = t.cls;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                take(c, 1);
+                final int b = super.read();
+                if (b >= 0) {
+                    count(t, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) 
+                    throws IOException {
+                final int n = super.read(b, off, len);
+                if (n > 0) {
+                    take(c, n);
+                    count(t, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream so writes take bandwidth. Bytes are counted as they 
+     * go. Closing the wrapper closes the stream.
+     *
+     * @param out the stream
+     * @param t the ticket of the transfer
+     * @return the throttled stream, or out itself when there is no cap
+     */
+    public OutputStream throttle(final OutputStream out, final Ticket t) {
+        if (!isThrottled()) {
+            return out;
+        }
+        final int c = t.cls;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                take(c, 1);
+                out.write(b);
+                count(t, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                    throws IOException {
+                take(c, len);
+                out.write(b, off, len);
+                count(t, len);
+            }
+        };
+    }
+
+    /**
+     * Counts bytes moved by a throttled stream, so stats are live.
+     *
+     * @param t the ticket of the transfer
+     * @param n the number of bytes
+     */
+    void count(final Ticket t, final long n) {
+        t.counted.addAndGet(n);
+        stats[t.cls].bytes.addAndGet(n);
+    }
+
+    /**
+     * @param cls a priority class
+     * @return the class, within range
+     */
+    static int clamp(final int cls) {
+        return Math.max(INTERACTIVE, Math.min(BACKGROUND, cls));
+    }
+
+    /**
+     * @return the most transfers running at once
+     */
+    public synchronized int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * @return the transfers waiting to start
+     */
+    public synchronized int getQueueDepth() {
+        return waiters.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("scheduler: %d/%d active, %d queued, %s", 
+                    active, maxActive, waiters.size(), 
+                    (rate > 0) ? String.format("cap %.1f MB/s", 
+                        rate / 1048576.0) : "no cap"));
+        final long now = System.nanoTime();
+        for (int i = 0; i < stats.length; i++) {
+            final ClassStats s = stats[i];
+            if (0 == s.done.get() + s.failed.get() + s.active + s.queued) {
+                continue;
+            }
+            final long busy = s.busyNanos 
+                + ((s.active > 0) ? now - s.busySince : 0);
+            sb.append(String.format("%n  %-11s %d active, %d queued, %d "
+                        + "done, %d failed, %dB, %.2f MB/s", CLASS_NAMES[i],
+                        s.active, s.queued, s.done.get(), s.failed.get(),
+                        s.bytes.get(), s.bytes.get() / 1048576.0 
+                        / Math.max(busy / 1e9, 1e-9)));
+        }
+        return sb.toString();
+    }
+}
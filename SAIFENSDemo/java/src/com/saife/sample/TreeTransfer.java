@@ -0,0 +1,356 @@
+/* 
+ * Copyright (c) 2016 SAIFE Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING, THE SOFTWARE
+ * AND DOCUMENTATION ARE DISTRIBUTED ON AN "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR
+ * PURPOSE AND NONINFRINGEMENT.  REFER TO THE WRITTEN AGREEMENT FOR SPECIFIC
+ * LANGUAGE GOVERNING PERMISSIONS AND LIMITATIONS.
+ *
+ *
+ */
+package com.saife.sample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import com.amazonaws.AmazonClientException;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * The TreeTransfer pushes a directory tree into a network share and pulls
+ * it back. Each file is stored under `<name>/<relative path>`, where name
+ * is the name of the directory, and the tree is described by an encrypted
+ * manifest at `.ns/tree/<name>`. The walk feeds a TransferBatch as it goes,
+ * so a large tree is never listed in memory before the first upload starts.
+ */
+public class TreeTransfer {
+
+    /** The prefix of tree manifest objects. */
+    static final String PREFIX = S3Manager.INTERNAL_PREFIX + "tree/";
+
+    /** The layout recorded in a tree manifest's user metadata. */
+    public static final String LAYOUT = "tree";
+
+    /**
+     * The Entry is one file of the tree.
+     */
+    static class Entry {
+
+        /** The size. */
+        long size;
+
+        /** The modified time, in milliseconds. */
+        long mtime;
+
+        /**
+         * The constructor.
+         *
+         * @param sz the size
+         * @param modified the modified time
+         */
+        Entry(final long sz, final long modified) {
+            size = sz;
+            mtime = modified;
+        }
+    }
+
+    /**
+     * The Tree is the manifest of a pushed directory.
+     */
+    static class Tree {
+
+        /** The format version. */
+        int version = 1;
+
+        /** The name of the tree, the prefix of its object keys. */
+        String name;
+
+        /** The relative paths of the directories, so empty ones return. */
+        List<String> dirs = new ArrayList<String>();
+
+        /** The files by relative path. */
+        Map<String, Entry> files = new TreeMap<String, Entry>();
+    }
+
+    /** The S3 manager, set up for the share. */
+    final S3Manager s3m;
+
+    /** The number of concurrent transfers. */
+    final int workers;
+
+    /**
+     * The constructor. The S3 manager must already point at the share and
+     * have its NetworkShare set up.
+     *
+     * @param manager the S3 manager
+     * @param workerCount the number of concurrent transfers
+     */
+    public TreeTransfer(final S3Manager manager, final int workerCount) {
+        s3m = manager;
+        workers = Math.max(1, workerCount);
+    }
+
+    /**
+     * Pushes a directory tree. The manifest is written last and lists only
+     * the files that were uploaded.
+     *
+     * @param dir the directory
+     * @return true if every file and the manifest were written
+     */
+    public boolean push(final Path dir) {
+        final Path root = dir.toAbsolutePath().normalize();
+        if (null == root.getFileName() || !Files.isDirectory(root)) {
+            System.out.println("Directory " + dir + " does not exist");
+            return false;
+        }
+        final Tree tree = new Tree();
+        tree.name = root.getFileName().toString();
+        final Map<String, Entry> pushed = 
+            Collections.synchronizedMap(tree.files);
+        final TransferBatch batch = s3m.newBatch("push", workers);
+
+        boolean walked = true;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path d,
+                        final BasicFileAttributes attrs) {
+                    if (!d.equals(root)) {
+                        tree.dirs.add(relative(root, d));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file,
+                        final BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        submitPush(batch, pushed, tree.name, 
+                                relative(root, file), file, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, 
+                        final IOException e) {
+                    System.out.println("Skipping " + file + ": " 
+                            + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            System.out.println("Failed to read " + root + ": " 
+                    + e.getMessage());
+            walked = false;
+        }
+
+        final boolean done = batch.await();
+        try {
+            writeTree(tree);
+        } catch (final IOException | AmazonClientException e) {
+            System.out.println("Failed to write the manifest of " + tree.name
+                    + ": " + e.getMessage());
+            return false;
+        }
+        System.out.format("push: tree %s, %d files, %d directories%n", 
+                tree.name, tree.files.size(), tree.dirs.size());
+        return walked && done;
+    }
+
+    /**
+     * Queues the upload of one file of the tree.
+     *
+     * @param batch the batch
+     * @param pushed the uploaded files, added to on success
+     * @param name the tree name
+     * @param path the relative path
+     * @param file the file
+     * @param attrs its attributes
+     */
+    void submitPush(final TransferBatch batch, final Map<String, Entry> pushed,
+            final String name, final String path, final Path file,
+            final BasicFileAttributes attrs) {
+        final String key = name + "/" + path;
+        final Entry entry = new Entry(attrs.size(), 
+                attrs.lastModifiedTime().toMillis());
+        batch.submit(key, new Callable<Long>() {
+            @Override
+            public Long call() {
+                if (!s3m.upload(file.toFile(), key)) {
+                    return -1L;
+                }
+                pushed.put(path, entry);
+                return entry.size;
+            }
+        });
+    }
+
+    /**
+     * Pulls a tree into a directory, creating it if needed. Files keep 
+     * their modified times.
+     *
+     * @param name the tree name
+     * @param dir the directory to restore into
+     * @return true if every file was restored
+     */
+    public boolean pull(final String name, final Path dir) {
+        final Tree tree;
+        try {
+            tree = readTree(name);
+        } catch (final IOException | AmazonClientException e) {
+            System.out.println("Failed to read the manifest of " + name 
+                    + ": " + e.getMessage());
+            return false;
+        }
+
+        final Path root = dir.toAbsolutePath().normalize();
+        try {
+            Files.createDirectories(root);
+            for (final String d : tree.dirs) {
+                final Path p = resolve(root, d);
+                if (null != p) {
+                    Files.createDirectories(p);
+                }
+            }
+        } catch (final IOException e) {
+            System.out.println("Failed to create " + e.getMessage());
+            return false;
+        }
+
+        final TransferBatch batch = s3m.newBatch("pull", workers);
+        boolean result = true;
+        for (final Map.Entry<String, Entry> e : tree.files.entrySet()) {
+            final Path target = resolve(root, e.getKey());
+            if (null == target) {
+                System.out.println("Skipping " + e.getKey() 
+                        + ": outside " + root);
+                result = false;
+                continue;
+            }
+            final String key = name + "/" + e.getKey();
+            final Entry entry = e.getValue();
+            batch.submit(key, new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    Files.createDirectories(target.getParent());
+                    if (!s3m.download(key, target.toString())) {
+                        return -1L;
+                    }
+                    Files.setLastModifiedTime(target, 
+                            FileTime.fromMillis(entry.mtime));
+                    return Files.size(target);
+                }
+            });
+        }
+        return batch.await() && result;
+    }
+
+    /**
+     * Encrypts a tree manifest into the share.
+     *
+     * @param tree the tree
+     * @throws IOException if the write fails
+     */
+    void writeTree(final Tree tree) throws IOException {
+        // through the share's store, which may be a local one
+        final OutputStream store = s3m.getSaife().getPersister()
+            .getOutputStream("/", PREFIX + tree.name);
+        if (store instanceof SaifeManager.S3OutputStream) {
+            ((SaifeManager.S3OutputStream) store).setUserMetadata(
+                    StoredObject.LAYOUT, LAYOUT);
+        }
+        final OutputStream os = s3m.getSaife().openEncryptStream(store);
+        try {
+            os.write(new Gson().toJson(tree).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Reads and decrypts a tree manifest.
+     *
+     * @param name the tree name
+     * @return the tree
+     * @throws IOException if it can't be read or parsed
+     */
+    Tree readTree(final String name) throws IOException {
+        final StoredObject so = s3m.openStored(PREFIX + name);
+        try {
+            final InputStream is = s3m.getSaife().openDecryptStream(
+                    so.getContent());
+            try {
+                final Reader r = new InputStreamReader(is, 
+                        StandardCharsets.UTF_8);
+                final Tree t = new Gson().fromJson(r, Tree.class);
+                if (null == t || null == t.files || null == t.dirs) {
+                    throw new IOException("Empty tree manifest");
+                }
+                return t;
+            } catch (final JsonParseException e) {
+                throw new IOException("Invalid tree manifest", e);
+            } finally {
+                is.close();
+            }
+        } finally {
+            so.close();
+        }
+    }
+
+    /**
+     * @param root the tree root
+     * @param p a path in the tree
+     * @return the relative path, separated by `/`
+     */
+    static String relative(final Path root, final Path p) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Path part : root.relativize(p)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Resolves a relative path from a manifest.
+     *
+     * @param root the directory restored into
+     * @param path the relative path
+     * @return the file, null if the path would escape the directory
+     */
+    static Path resolve(final Path root, final String path) {
+        final Path p = root.resolve(path).normalize();
+        if (!p.startsWith(root) || p.equals(root)) {
+            return null;
+        }
+        return p;
+    }
+}
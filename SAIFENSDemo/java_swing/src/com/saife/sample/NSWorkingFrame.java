@@ -142,7 +142,7 @@ public class NSWorkingFrame {
     void populateFiles() {
         final List<String> files = S3.listObjects();
         for (final String f : files) {
-            if (!f.contains("NSK")) {
+            if (!S3Manager.isInternal(f)) {
                 lm.addElement(f);
             }
         }
@@ -188,6 +188,15 @@ public class S3Manager {
         return names;
     }
 
+    /**
+     * @param key an object key
+     * @return true if the key is share metadata rather than a user file: an
+     * NSK, or an object under the reserved `.ns/` prefix written by ns-cli
+     */
+    public static boolean isInternal(final String key) {
+        return key.contains(".NSK.") || key.startsWith(".ns/");
+    }
+
     /**
      * Looks for the buckets assigned to the current account. (According to the credentials used in this code.)
      * 